@@ -8,6 +8,7 @@ import com.practice.policy.impl.ConcurrentLruPolicy;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.function.BiFunction;
 
 /**
@@ -30,6 +31,17 @@ public class ConcurrentLruLocalCache<T> extends LocalCache<T> {
         );
     }
 
+    /**
+     * @param capacity 缓存容量
+     * @param refreshPool 异步刷新线程池，由调用者指定，如虚拟线程池
+     */
+    public ConcurrentLruLocalCache(int capacity, ExecutorService refreshPool) throws NoSuchFieldException, IllegalAccessException {
+        this(
+                new ConcurrentHashMap<>(Math.max(capacity, 4)),
+                new ConcurrentLruPolicy<>(capacity, refreshPool)
+        );
+    }
+
     private ConcurrentLruLocalCache(Map<String, CacheWrapper<T>> map, EvictionPolicy<T> policy) {
         super(map, policy);
     }
@@ -20,12 +20,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ConcurrentLruPolicy<T> implements EvictionPolicy<T> {
     private final AtomicInteger size  = new AtomicInteger(); // 缓存当前大小
     private final int capacity; // 缓存容量
-    private final ExecutorService refreshPool = // 异步刷新线程池
-            new ThreadPoolExecutor(
-                    2, 8, 60L, TimeUnit.SECONDS,
-                    new LinkedBlockingQueue<>(1024), r -> new Thread(r,"AsyncRefreshHandler"),
-                    // 拒绝策略为调用者自己执行
-                    new ThreadPoolExecutor.CallerRunsPolicy());
+    private final ExecutorService refreshPool; // 异步刷新线程池
     private final VarHandle PREV; // 前指针变量句柄
     private final VarHandle NEXT; // 后指针变量句柄
     private final VarHandle MIDPOINT; // 中间节点指针变量句柄
@@ -36,7 +31,20 @@ public class ConcurrentLruPolicy<T> implements EvictionPolicy<T> {
     private volatile int tailPrevLockReentrant; // 链表尾部指示节点的前指针的乐观锁的重入标志
 
     public ConcurrentLruPolicy(int capacity) throws NoSuchFieldException, IllegalAccessException {
+        this(capacity, new ThreadPoolExecutor(
+                2, 8, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(1024), r -> new Thread(r,"AsyncRefreshHandler"),
+                // 拒绝策略为调用者自己执行
+                new ThreadPoolExecutor.CallerRunsPolicy()));
+    }
+
+    /**
+     * @param capacity 缓存容量
+     * @param refreshPool 异步刷新线程池，由调用者指定，如虚拟线程池
+     */
+    public ConcurrentLruPolicy(int capacity, ExecutorService refreshPool) throws NoSuchFieldException, IllegalAccessException {
         this.capacity = capacity;
+        this.refreshPool = refreshPool;
         this.head = new LruCacheNode(null, null);
         this.tail = new LruCacheNode(null, null);
         this.head.next = this.tail;
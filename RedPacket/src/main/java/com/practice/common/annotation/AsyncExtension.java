@@ -0,0 +1,18 @@
+package com.practice.common.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 异步扩展类注解<br/>
+ * 标注此注解的扩展类，其发起抢红包后、红包结算后、红包结束且未抢完时、红包结果移除时的扩展方法将在扩展专用线程池中异步执行，
+ * 不占用请求线程和消息消费线程<br/>
+ * 发起抢红包前、参与抢红包前、抢红包结果写入缓存前和参与抢红包后的扩展方法始终同步执行<br/>
+ * 异步执行的扩展方法不保证与其他扩展类之间的优先级顺序，抛出的异常只会被记录，不会传播给调用方
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AsyncExtension {
+}
@@ -0,0 +1,22 @@
+package com.practice.common.pojo;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 热点账户的子账户封装类，包括子账户编号和余额
+ */
+@Setter
+@Getter
+@ToString
+public class AccountShard {
+    /**
+     * 子账户编号
+     */
+    private int shard;
+    /**
+     * 子账户余额
+     */
+    private long balance;
+}
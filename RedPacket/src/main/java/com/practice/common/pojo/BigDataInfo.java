@@ -554,7 +554,11 @@ public class BigDataInfo {
         /**
          * 用户不匹配
          */
-        USER_MISMATCH(7);
+        USER_MISMATCH(7),
+        /**
+         * 批量发起抢红包数量超出范围
+         */
+        WRONG_BATCH_SIZE(8);
 
         private final Integer code;
 
@@ -577,6 +581,7 @@ public class BigDataInfo {
                 case 5 -> WRONG_EXPIRE_TIME;
                 case 6 -> SHARE_ERROR;
                 case 7 -> USER_MISMATCH;
+                case 8 -> WRONG_BATCH_SIZE;
                 default -> throw new IllegalStateException("Unexpected ErrorType: " + code);
             };
         }
@@ -0,0 +1,191 @@
+package com.practice.common.pojo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.practice.common.util.RedPacketKeyUtil;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 写入本地缓存的红包结果，不可变<br/>
+ * 按列存储所有抢到红包的用户：用户ID按字典序排序，金额、耗时和排名存储在与之对齐的基本类型数组中，通过二分查找定位用户<br/>
+ * 相比每个用户一个映射项和信息对象的存储方式，不需要哈希表节点和装箱对象，缓存命中时也不需要访问映射<br/>
+ * 序列化格式与用户ID到信息对象的映射相同，即 {"用户ID": {"share": 金额, "timeCost": 耗时, "shareRank": 金额排名, "timeCostRank": 耗时排名}}，
+ * 未进行排名时不包含排名字段<br/>
+ * 红包结束后所有用户查询到的红包结果相同，因此序列化结果在首次序列化时生成并保留，之后直接写出其UTF-8字节
+ */
+@JsonSerialize(using = CachedResult.Serializer.class)
+public final class CachedResult {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory(); // 生成预序列化结果的JSON工厂，线程安全
+    private final String[] userIds; // 按字典序排序的用户ID
+    private final int[] shares; // 与用户ID对齐的抢到的红包金额
+    private final long[] timeCosts; // 与用户ID对齐的抢到红包的耗时
+    private final int[] shareRanks; // 与用户ID对齐的金额排名，-1表示未进入排名，为空表示未进行排名
+    private final int[] timeCostRanks; // 与用户ID对齐的耗时排名，-1表示未进入排名，为空表示未进行排名
+    private volatile SerializedString json; // 预序列化结果，首次序列化时生成，并发生成时结果相同，不需要加锁
+
+    private CachedResult(String[] userIds, int[] shares, long[] timeCosts, int[] shareRanks, int[] timeCostRanks) {
+        this.userIds = userIds;
+        this.shares = shares;
+        this.timeCosts = timeCosts;
+        this.shareRanks = shareRanks;
+        this.timeCostRanks = timeCostRanks;
+    }
+
+    /**
+     * 从Redis获取的红包结果原始信息创建<br/>
+     * 只读取原始信息，不对其进行修改，因此同一份原始信息可以被多个请求共享
+     * @param rawResult 红包结果原始信息，值为金额耗时项字符串
+     * @param placeholder 预生成结果占位项，创建时跳过
+     * @return 红包结果
+     */
+    public static CachedResult of(Map<String, ?> rawResult, String placeholder) {
+        int size = rawResult.size() - (rawResult.containsKey(placeholder) ? 1 : 0);
+        String[] userIds = new String[size];
+        int n = 0;
+        for (String userId : rawResult.keySet()) {
+            if (!userId.equals(placeholder)) userIds[n++] = userId;
+        }
+        Arrays.sort(userIds);
+
+        int[] shares = new int[size];
+        long[] timeCosts = new long[size];
+        for (int i = 0; i < size; i++) {
+            String shareAndTimeCost = (String) rawResult.get(userIds[i]);
+            shares[i] = RedPacketKeyUtil.parseShare(shareAndTimeCost);
+            timeCosts[i] = RedPacketKeyUtil.parseTimeCost(shareAndTimeCost);
+        }
+        return new CachedResult(userIds, shares, timeCosts, null, null);
+    }
+
+    /**
+     * 创建带有排名的红包结果，原红包结果不变
+     * @param shareRanks 与用户ID对齐的金额排名，-1表示未进入排名
+     * @param timeCostRanks 与用户ID对齐的耗时排名，-1表示未进入排名
+     * @return 带有排名的红包结果
+     */
+    public CachedResult withRanks(int[] shareRanks, int[] timeCostRanks) {
+        if (shareRanks.length != userIds.length || timeCostRanks.length != userIds.length) {
+            throw new IllegalArgumentException("rank arrays should be aligned with user ids");
+        }
+        return new CachedResult(userIds, shares, timeCosts, shareRanks, timeCostRanks);
+    }
+
+    /**
+     * 查找用户在红包结果中的下标
+     * @param userId 用户ID
+     * @return 下标，如果用户没有抢到红包则返回负数
+     */
+    public int indexOf(String userId) {
+        return Arrays.binarySearch(userIds, userId);
+    }
+
+    /**
+     * 抢到红包的用户数量
+     * @return 用户数量
+     */
+    public int size() {
+        return userIds.length;
+    }
+
+    /**
+     * 是否已经进行排名
+     * @return 是否已经进行排名
+     */
+    public boolean isRanked() {
+        return shareRanks != null;
+    }
+
+    public String getUserId(int i) {
+        return userIds[i];
+    }
+
+    public int getShare(int i) {
+        return shares[i];
+    }
+
+    public long getTimeCost(int i) {
+        return timeCosts[i];
+    }
+
+    /**
+     * 获取金额排名
+     * @param i 下标
+     * @return 金额排名，-1表示未进入排名或未进行排名
+     */
+    public int getShareRank(int i) {
+        return shareRanks == null ? -1 : shareRanks[i];
+    }
+
+    /**
+     * 获取耗时排名
+     * @param i 下标
+     * @return 耗时排名，-1表示未进入排名或未进行排名
+     */
+    public int getTimeCostRank(int i) {
+        return timeCostRanks == null ? -1 : timeCostRanks[i];
+    }
+
+    /**
+     * 获取预序列化结果，如果尚未生成则生成<br/>
+     * 预序列化结果会缓存自身的UTF-8编码，写出时不需要重复编码
+     * @return 预序列化结果
+     */
+    public SerializedString getJson() {
+        SerializedString json = this.json;
+        if (json == null) {
+            StringWriter writer = new StringWriter(size() << 6);
+            try (JsonGenerator gen = JSON_FACTORY.createGenerator(writer)) {
+                write(gen);
+            } catch (IOException e) {
+                // 写入字符串不会发生IO异常
+                throw new UncheckedIOException(e);
+            }
+            this.json = json = new SerializedString(writer.toString());
+        }
+        return json;
+    }
+
+    /**
+     * 按用户ID到信息对象的映射格式写出，不创建中间映射和信息对象
+     * @param gen JSON生成器
+     */
+    private void write(JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        for (int i = 0; i < userIds.length; i++) {
+            gen.writeFieldName(userIds[i]);
+            gen.writeStartObject();
+            gen.writeNumberField("share", shares[i]);
+            gen.writeNumberField("timeCost", timeCosts[i]);
+            if (isRanked()) {
+                gen.writeNumberField("shareRank", shareRanks[i]);
+                gen.writeNumberField("timeCostRank", timeCostRanks[i]);
+            }
+            gen.writeEndObject();
+        }
+        gen.writeEndObject();
+    }
+
+    @Override
+    public String toString() {
+        return "CachedResult(size=" + userIds.length + ", ranked=" + isRanked() + ")";
+    }
+
+    /**
+     * 直接写出预序列化结果
+     */
+    public static class Serializer extends JsonSerializer<CachedResult> {
+        @Override
+        public void serialize(CachedResult result, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeRawValue(result.getJson());
+        }
+    }
+}
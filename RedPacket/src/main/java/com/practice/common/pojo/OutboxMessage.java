@@ -0,0 +1,26 @@
+package com.practice.common.pojo;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 发件箱消息封装类，对应一条等待发送的结算延时消息
+ */
+@Setter
+@Getter
+@ToString
+public class OutboxMessage {
+    /**
+     * 消息ID，自增主键
+     */
+    private long id;
+    /**
+     * 红包key
+     */
+    private String redPacketKey;
+    /**
+     * 消息投递毫秒时间戳，即红包过期时间
+     */
+    private long deliverTime;
+}
@@ -0,0 +1,30 @@
+package com.practice.common.pojo;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * 组提交模式下的扣减记录封装类，对应一次已经提交但发起抢红包尚未完成的扣减
+ */
+@Setter
+@Getter
+@ToString
+public class PublishDebit {
+    /**
+     * 扣减记录ID
+     */
+    private String debitId;
+    /**
+     * 发起抢红包用户ID
+     */
+    private String userId;
+    /**
+     * 扣减金额
+     */
+    private int amount;
+    /**
+     * 扣减毫秒时间戳
+     */
+    private long debitTime;
+}
@@ -0,0 +1,40 @@
+package com.practice.common.pojo;
+
+import com.practice.common.util.RedPacketKeyUtil;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * 解析后的红包key，不可变<br/>
+ * 在参与抢红包拦截器中校验并解析一次，之后随请求传递给业务处理和数据访问，避免各环节重复解析
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class RedPacketKey {
+    /**
+     * 红包key负载数据部分，即去除校验和后的红包key，作为红包在Redis等存储中的标识
+     */
+    private final String payload;
+    /**
+     * 红包总金额
+     */
+    private final int amount;
+    /**
+     * 红包有效期，单位为秒
+     */
+    private final int expireTime;
+    /**
+     * 红包发起的毫秒时间戳
+     */
+    private final long timestamp;
+
+    /**
+     * 获取发起用户ID，只在需要时从负载数据中截取
+     * @return 发起用户ID
+     */
+    public String getUserId() {
+        return RedPacketKeyUtil.parseUserId(payload);
+    }
+}
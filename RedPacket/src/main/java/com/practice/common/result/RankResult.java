@@ -0,0 +1,32 @@
+package com.practice.common.result;
+
+import lombok.Getter;
+
+import java.util.Map;
+
+/**
+ * 红包排名统一响应结果类
+ */
+@Getter
+public class RankResult {
+    /**
+     * 抢到的红包金额排名，按金额降序排列的用户ID和金额
+     */
+    private final Map<String, Integer> shareRank;
+    /**
+     * 抢到红包的耗时排名，按耗时升序排列的用户ID和耗时
+     */
+    private final Map<String, Long> timeCostRank;
+
+    /**
+     * 返回金额排名和耗时排名
+     */
+    public static RankResult of(Map<String, Integer> shareRank, Map<String, Long> timeCostRank) {
+        return new RankResult(shareRank, timeCostRank);
+    }
+
+    private RankResult(Map<String, Integer> shareRank, Map<String, Long> timeCostRank) {
+        this.shareRank = shareRank;
+        this.timeCostRank = timeCostRank;
+    }
+}
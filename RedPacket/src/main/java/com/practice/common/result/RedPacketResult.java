@@ -4,6 +4,7 @@ import lombok.Getter;
 
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /**
  * 红包业务统一响应结果类
@@ -13,19 +14,22 @@ import java.nio.charset.StandardCharsets;
 public class RedPacketResult<T> {
     /**
      * 响应标识<br/>
-     * 0表示响应错误，1表示发起抢红包成功，2表示参与抢红包成功，3表示未登录
+     * 0表示响应错误，1表示发起抢红包成功，2表示参与抢红包成功，3表示未登录，4表示查询排名成功
      */
     private final int status;
     /**
      * 信息<br/>
      * 如果发起抢红包成功则封装红包key<br/>
+     * 如果批量发起抢红包成功则为空<br/>
      * 如果参与抢红包成功则为空<br/>
+     * 如果查询排名成功则为空<br/>
      * 如果响应错误则封装错误提示信息
      */
     private final String msg;
     /**
      * 结果<br/>
-     * 如果发起抢红包成功或参与抢红包成功则封装具体结果<br/>
+     * 如果发起抢红包成功、参与抢红包成功或查询排名成功则封装具体结果<br/>
+     * 如果批量发起抢红包成功则按请求顺序封装每个红包的发起抢红包结果<br/>
      * 如果响应错误则封装错误标识
      */
     private final T result;
@@ -39,6 +43,13 @@ public class RedPacketResult<T> {
         return new RedPacketResult<>(1, key, result);
     }
 
+    /**
+     * 批量发起抢红包成功，结果按请求顺序返回每个红包的发起抢红包结果
+     */
+    public static RedPacketResult<List<RedPacketResult<PublishResult>>> publishBatchSuccess(List<RedPacketResult<PublishResult>> results) {
+        return new RedPacketResult<>(1, null, results);
+    }
+
     /**
      * 参与抢红包成功，结果返回金额、耗时、红包结果等信息
      */
@@ -46,6 +57,13 @@ public class RedPacketResult<T> {
         return new RedPacketResult<>(2, null, result);
     }
 
+    /**
+     * 查询排名成功，结果返回金额排名和耗时排名
+     */
+    public static RedPacketResult<RankResult> rankSuccess(RankResult result) {
+        return new RedPacketResult<>(4, null, result);
+    }
+
     /**
      * 响应错误
      */
@@ -101,7 +119,15 @@ public class RedPacketResult<T> {
         /**
          * 用户不匹配
          */
-        USER_MISMATCH("发起抢红包或参与抢红包的用户与当前登录用户不匹配", 7);
+        USER_MISMATCH("发起抢红包或参与抢红包的用户与当前登录用户不匹配", 7),
+        /**
+         * 批量发起抢红包数量超出范围
+         */
+        WRONG_BATCH_SIZE("批量发起抢红包数量超出范围，抢红包发起失败", 8),
+        /**
+         * 未开启排名
+         */
+        RANK_DISABLED("未开启在Redis中维护排名，无法查询排名", 9);
 
         private final String message;
         private final Integer code;
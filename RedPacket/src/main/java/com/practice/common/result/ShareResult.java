@@ -1,5 +1,7 @@
 package com.practice.common.result;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.practice.common.pojo.CachedResult;
 import lombok.Getter;
 
 import java.util.Map;
@@ -22,7 +24,12 @@ public class ShareResult {
     /**
      * 红包结果
      */
-    private final Map<String, Object> mapResult;
+    private final CachedResult mapResult;
+    /**
+     * 从Redis获取的红包结果原始信息，只在数据访问层返回，用于写入本地缓存，不进行序列化
+     */
+    @JsonIgnore
+    private final Map<String, Object> rawResult;
     /**
      * 抢到的金额
      */
@@ -35,22 +42,22 @@ public class ShareResult {
     /**
      * 抢到红包，返回提示信息、金额、红包结果、耗时
      */
-    private static ShareResult shareSuccess(String msg, Map<String, Object> result, int share, long timeCost) {
-        return new ShareResult(1, msg, result, share, timeCost);
+    private static ShareResult shareSuccess(String msg, CachedResult result, int share, long timeCost) {
+        return new ShareResult(1, msg, result, null, share, timeCost);
     }
 
     /**
      * 抢不到红包，返回提示信息、红包结果
      */
-    private static ShareResult shareFail(String msg, Map<String, Object> result) {
-        return new ShareResult(0, msg, result, 0, 0L);
+    private static ShareResult shareFail(String msg, CachedResult result) {
+        return new ShareResult(0, msg, result, null, 0, 0L);
     }
 
     /**
      * 已经抢到红包但重复参与，返回提示信息、金额、耗时
      */
     private static ShareResult shareRedo(String msg, int share, long timeCost) {
-        return new ShareResult(2, msg, null, share, timeCost);
+        return new ShareResult(2, msg, null, null, share, timeCost);
     }
 
     public static ShareResult share(ShareType type) {
@@ -61,11 +68,19 @@ public class ShareResult {
         return share(type, null, share, timeCost);
     }
 
-    public static ShareResult share(ShareType type, Map<String, Object> mapResult) {
+    public static ShareResult share(ShareType type, CachedResult mapResult) {
         return share(type, mapResult, 0, 0L);
     }
 
-    public static ShareResult share(ShareType type, Map<String, Object> mapResult, int share, long timeCost) {
+    /**
+     * 数据访问层抢不到红包，返回红包结果原始信息，由业务层解析后写入本地缓存
+     */
+    public static ShareResult share(ShareType type, Map<String, Object> rawResult) {
+        if (type != ShareType.FAIL_END) throw new IllegalArgumentException(type.name());
+        return new ShareResult(0, "抢红包已经结束了，您没抢到红包", null, rawResult, 0, 0L);
+    }
+
+    public static ShareResult share(ShareType type, CachedResult mapResult, int share, long timeCost) {
         return switch (type) {
             case SUCCESS_ONGOING ->
                     shareSuccess(String.format("您成功抢到 %.2f 元红包，耗时 %.3f 秒", share / 100f, timeCost / 1000f), null, share, timeCost);
@@ -80,10 +95,11 @@ public class ShareResult {
         };
     }
 
-    private ShareResult(int status, String msg, Map<String, Object> mapResult, int share, long timeCost) {
+    private ShareResult(int status, String msg, CachedResult mapResult, Map<String, Object> rawResult, int share, long timeCost) {
         this.status = status;
         this.msg = msg;
         this.mapResult = mapResult;
+        this.rawResult = rawResult;
         this.share = share;
         this.timeCost = timeCost;
     }
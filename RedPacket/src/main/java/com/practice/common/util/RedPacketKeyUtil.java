@@ -1,5 +1,8 @@
 package com.practice.common.util;
 
+import com.practice.common.pojo.RedPacketKey;
+import org.springframework.lang.Nullable;
+
 import java.nio.charset.StandardCharsets;
 import java.util.zip.CRC32C;
 
@@ -12,9 +15,9 @@ public class RedPacketKeyUtil {
      */
     private final static int SERVICE_ID_CHARS = 2;
     /**
-     * 线程ID使用两个字节，不重复范围为0到4095
+     * 生成序号使用两个字节，循环范围为0到4095，同一节点同一毫秒内生成超过4096个红包key时才可能重复
      */
-    private final static int THREAD_ID_CHARS = 2;
+    private final static int SEQUENCE_CHARS = 2;
     /**
      * 红包总金额使用5个字节，上限为1073741823，约一千万元
      */
@@ -31,83 +34,85 @@ public class RedPacketKeyUtil {
      * 校验和使用8个字节，即CRC32的输出长度
      */
     private final static int CHECKSUM_CHARS = 8;
+    /**
+     * 紧凑编码模式下小红包金额使用5个字节，按36进制编码，上限为60466175<br/>
+     * 36进制可以在Lua脚本中直接通过tonumber解码，用于维护金额排名
+     */
+    public final static int SHARE_CHARS = 5;
+    /**
+     * 紧凑编码模式下小红包金额的编码进制
+     */
+    private final static int SHARE_RADIX = 36;
+    /**
+     * 紧凑编码模式下小红包金额的上限
+     */
+    public final static int MAX_COMPACT_SHARE = 60466175;
+    /**
+     * 红包总金额、有效期、时间戳和发起用户ID在红包key中的起始下标
+     */
+    private final static int AMOUNT_OFFSET = SERVICE_ID_CHARS + SEQUENCE_CHARS;
+    private final static int EXPIRE_TIME_OFFSET = AMOUNT_OFFSET + AMOUNT_CHARS;
+    private final static int TIMESTAMP_OFFSET = EXPIRE_TIME_OFFSET + EXPIRE_TIME_CHARS;
+    private final static int USER_ID_OFFSET = TIMESTAMP_OFFSET + TIMESTAMP_CHARS;
 
     /**
      * 生成红包key
      * @param serviceId JVM编号
-     * @param threadId  线程ID
+     * @param sequence  本节点生成序号，只取低12位
      * @param amount    红包总金额
      * @param expireTime 红包有效期
      * @param timestamp 发起毫秒时间戳
      * @param userId    发起用户ID
      * @return 红包key
      */
-    public static String generateKey(int serviceId, long threadId, int amount, int expireTime, long timestamp, String userId) {
+    public static String generateKey(int serviceId, long sequence, int amount, int expireTime, long timestamp, String userId) {
         String s1 = i2chars(serviceId, SERVICE_ID_CHARS);
-        String s2 = i2chars(threadId, THREAD_ID_CHARS);
+        String s2 = i2chars(sequence, SEQUENCE_CHARS);
         String s3 = i2chars(amount, AMOUNT_CHARS);
         String s4 = i2chars(expireTime, EXPIRE_TIME_CHARS);
         String s5 = i2chars(timestamp, TIMESTAMP_CHARS);
 
-        // 格式为： JVM编号 + 线程ID + 红包总金额 + 红包有效期 + 红包发起毫秒时间戳 + 发起用户ID + 校验和
+        // 格式为： JVM编号 + 生成序号 + 红包总金额 + 红包有效期 + 红包发起毫秒时间戳 + 发起用户ID + 校验和
         String payload = s1 + s2 + s3 + s4 + s5 + userId;
         String checksum = calculateChecksum(payload);
         return payload + checksum;
     }
 
     /**
-     * 检验红包key合法性
+     * 校验并解析红包key<br/>
+     * 直接在字符序列上计算和比较校验和、解析各字段，除负载数据字符串外不创建中间对象
      * @param key 红包key
-     * @return 红包key负载数据是否正确
-     */
-    public static boolean checkKey(String key) {
-        return key.length() > SERVICE_ID_CHARS + THREAD_ID_CHARS + AMOUNT_CHARS + EXPIRE_TIME_CHARS + TIMESTAMP_CHARS + CHECKSUM_CHARS
-                && calculateChecksum(getPayload(key)).equals(key.substring(key.length() - CHECKSUM_CHARS));
-    }
-
-    /**
-     * 获取红包key负载数据部分
-     * @param key 红包key
-     * @return 红包key负载数据部分字符串
-     */
-    public static String getPayload(String key) {
-        return key.substring(0, key.length() - CHECKSUM_CHARS);
-    }
-
-    /**
-     * 从红包key解析红包总金额
-     * @param payload 红包key负载数据部分
-     * @return 红包总金额
+     * @return 解析后的红包key，如果红包key不合法则返回空
      */
-    public static int parseAmount(String payload) {
-        return (int) chars2i(payload.substring(
-                SERVICE_ID_CHARS + THREAD_ID_CHARS,
-                SERVICE_ID_CHARS + THREAD_ID_CHARS + AMOUNT_CHARS
-        ));
+    @Nullable
+    public static RedPacketKey parseKey(@Nullable CharSequence key) {
+        if (key == null || key.length() <= USER_ID_OFFSET + CHECKSUM_CHARS) return null;
+        int end = key.length() - CHECKSUM_CHARS;
+        if (!matches(calculateChecksum(key, end), key, end, CHECKSUM_CHARS)) return null;
+        return parsePayload(key.subSequence(0, end).toString());
     }
 
     /**
-     * 从红包key解析红包有效期
+     * 解析红包key负载数据部分，不进行校验
      * @param payload 红包key负载数据部分
-     * @return 红包有效期
+     * @return 解析后的红包key
      */
-    public static int parseExpireTime(String payload) {
-        return (int) chars2i(payload.substring(
-                SERVICE_ID_CHARS + THREAD_ID_CHARS + AMOUNT_CHARS,
-                SERVICE_ID_CHARS + THREAD_ID_CHARS + AMOUNT_CHARS + EXPIRE_TIME_CHARS
-        ));
+    public static RedPacketKey parsePayload(String payload) {
+        return new RedPacketKey(
+                payload,
+                (int) chars2i(payload, AMOUNT_OFFSET, EXPIRE_TIME_OFFSET),
+                (int) chars2i(payload, EXPIRE_TIME_OFFSET, TIMESTAMP_OFFSET),
+                chars2i(payload, TIMESTAMP_OFFSET, USER_ID_OFFSET)
+        );
     }
 
     /**
-     * 从红包key解析发起时间
-     * @param payload 红包key负载数据部分
-     * @return 红包发起的毫秒时间戳
+     * 获取红包key负载数据部分
+     * @param key 红包key
+     * @return 红包key负载数据部分字符串
      */
-    public static long parseTimestamp(String payload) {
-        return chars2i(payload.substring(
-                SERVICE_ID_CHARS + THREAD_ID_CHARS + AMOUNT_CHARS + EXPIRE_TIME_CHARS,
-                SERVICE_ID_CHARS + THREAD_ID_CHARS + AMOUNT_CHARS + EXPIRE_TIME_CHARS + TIMESTAMP_CHARS
-        ));
+    public static String getPayload(String key) {
+        return key.substring(0, key.length() - CHECKSUM_CHARS);
     }
 
     /**
@@ -116,7 +121,7 @@ public class RedPacketKeyUtil {
      * @return 发起用户ID
      */
     public static String parseUserId(String payload) {
-        return payload.substring(SERVICE_ID_CHARS + THREAD_ID_CHARS + AMOUNT_CHARS + EXPIRE_TIME_CHARS + TIMESTAMP_CHARS);
+        return payload.substring(USER_ID_OFFSET);
     }
 
     /**
@@ -137,6 +142,52 @@ public class RedPacketKeyUtil {
         return chars2i(encodedTimeCost);
     }
 
+    /**
+     * 紧凑编码模式下对小红包金额进行编码
+     * @param share 小红包金额
+     * @return 固定5个字符的36进制编码结果，不足5个字符时高位补0
+     */
+    public static String encodeShare(int share) {
+        char[] chars = new char[SHARE_CHARS];
+        for (int k = SHARE_CHARS - 1; k >= 0; k--) {
+            chars[k] = Character.forDigit(share % SHARE_RADIX, SHARE_RADIX);
+            share /= SHARE_RADIX;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 紧凑编码模式下对小红包金额进行解码
+     * @param encodedShare 编码后的小红包金额
+     * @return 小红包金额
+     */
+    public static int decodeShare(String encodedShare) {
+        return Integer.parseInt(encodedShare, 0, SHARE_CHARS, SHARE_RADIX);
+    }
+
+    /**
+     * 从红包结果的金额耗时项中解析金额<br/>
+     * 同时支持以"-"分隔的十进制金额和编码耗时，以及紧凑编码模式下固定宽度的编码金额和编码耗时，解析时不创建子字符串
+     * @param shareAndTimeCost 金额耗时项
+     * @return 金额
+     */
+    public static int parseShare(String shareAndTimeCost) {
+        int idx = shareAndTimeCost.indexOf('-');
+        return idx < 0 ?
+                Integer.parseInt(shareAndTimeCost, 0, SHARE_CHARS, SHARE_RADIX) :
+                Integer.parseInt(shareAndTimeCost, 0, idx, 10);
+    }
+
+    /**
+     * 从红包结果的金额耗时项中解析耗时，支持的格式与金额相同
+     * @param shareAndTimeCost 金额耗时项
+     * @return 耗时
+     */
+    public static long parseTimeCost(String shareAndTimeCost) {
+        int idx = shareAndTimeCost.indexOf('-');
+        return chars2i(shareAndTimeCost, idx < 0 ? SHARE_CHARS : idx + 1, shareAndTimeCost.length());
+    }
+
     /**
      * 计算校验和并转换为字符串
      * @param payload 负载数据
@@ -148,6 +199,42 @@ public class RedPacketKeyUtil {
         return i2chars(crc32C.getValue(), CHECKSUM_CHARS);
     }
 
+    /**
+     * 直接在字符序列的指定前缀上计算校验和<br/>
+     * 红包key通常只包含ASCII字符，逐个字符计算即可，不需要先编码为字节数组；含有其他字符时按UTF-8编码后计算
+     * @param key 字符序列
+     * @param end 前缀结束下标（不包含）
+     * @return 校验和
+     */
+    private static long calculateChecksum(CharSequence key, int end) {
+        CRC32C crc32C = new CRC32C();
+        for (int i = 0; i < end; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                crc32C.reset();
+                crc32C.update(key.subSequence(0, end).toString().getBytes(StandardCharsets.UTF_8));
+                break;
+            }
+            crc32C.update(c);
+        }
+        return crc32C.getValue();
+    }
+
+    /**
+     * 判断整型数映射后的字符串是否与字符序列的指定区间相同，不创建字符串
+     * @param i 待映射整型数
+     * @param str 字符序列
+     * @param from 区间起始下标
+     * @param charNums 目标字符数
+     * @return 是否相同
+     */
+    private static boolean matches(long i, CharSequence str, int from, int charNums) {
+        for (int k = 0; k < charNums; k++) {
+            if (str.charAt(from + charNums - k - 1) != i2char(i >>> ((k << 1) + (k << 2)) & 0x3F)) return false;
+        }
+        return true;
+    }
+
     /**
      * 将待映射整型数的低位转换为目标数量的字符串<br/>
      * 每6位（0到63）按顺序映射到 0-9、A-Z、a-z、*、+
@@ -159,25 +246,33 @@ public class RedPacketKeyUtil {
         char[] chars = new char[charNums];
         for (int k = 0; k < charNums; k++) {
             // 截取整型数i二进制表示的第(k + 1)个低6位
-            long j = i >>> ((k << 1) + (k << 2)) & 0x3F;
-            if (j < 10) {
-                // 将0到9映射到 0-9
-                j += 48;
-            } else if (j < 36) {
-                // 将10到35映射到 A-Z
-                j += 55;
-            } else if (j < 62) {
-                // 将36到61映射到 a-z
-                j += 61;
-            } else {
-                // 将62、63映射到 *、+
-                j -= 20;
-            }
-            chars[charNums - k - 1] = (char) j;
+            chars[charNums - k - 1] = i2char(i >>> ((k << 1) + (k << 2)) & 0x3F);
         }
         return new String(chars);
     }
 
+    /**
+     * 将6位整型数（0到63）按顺序映射到 0-9、A-Z、a-z、*、+
+     * @param j 6位整型数
+     * @return 映射后的字符
+     */
+    private static char i2char(long j) {
+        if (j < 10) {
+            // 将0到9映射到 0-9
+            j += 48;
+        } else if (j < 36) {
+            // 将10到35映射到 A-Z
+            j += 55;
+        } else if (j < 62) {
+            // 将36到61映射到 a-z
+            j += 61;
+        } else {
+            // 将62、63映射到 *、+
+            j -= 20;
+        }
+        return (char) j;
+    }
+
     /**
      * 将待解析字符串转换为目标整型数<br/>
      * 0-9、A-Z、a-z、*、+ 按顺序反映射为6位（0到63）
@@ -185,10 +280,21 @@ public class RedPacketKeyUtil {
      * @return 目标整型数
      */
     private static long chars2i(String str) {
-        char[] chars = str.toCharArray();
+        return chars2i(str, 0, str.length());
+    }
+
+    /**
+     * 将待解析字符序列的指定区间转换为目标整型数，不创建子字符串<br/>
+     * 0-9、A-Z、a-z、*、+ 按顺序反映射为6位（0到63）
+     * @param str 待解析字符序列
+     * @param from 区间起始下标（包含）
+     * @param to 区间结束下标（不包含）
+     * @return 目标整型数
+     */
+    private static long chars2i(CharSequence str, int from, int to) {
         long l = 0L;
-        for (int k = 0; k < chars.length; k++) {
-            char c = chars[chars.length - k - 1];
+        for (int k = 0; k < to - from; k++) {
+            char c = str.charAt(to - k - 1);
             if (c < 0x2C) {
                 // 将 *、+ 反映射为62、63
                 c += 20;
@@ -0,0 +1,142 @@
+package com.practice.common.util;
+
+/**
+ * 有限容量的前K名选择器<br/>
+ * 基于四叉堆，标识值和比较值分别存储在两个对齐的基本类型数组中，不为每项创建节点对象，也不对比较值装箱<br/>
+ * 堆顶为已保留项中最差的一项，新加入项只需与堆顶比较，无法进入前K名时不做任何修改，因此单次加入的时间复杂度为O(logK)，与加入顺序无关<br/>
+ * 比较值相等时，标识值较小的一项排名较高，按下标顺序加入时即先加入的一项排名较高<br/>
+ * int类型的比较值可以直接加宽为long类型使用，非线程安全
+ */
+public final class TopKSelector {
+    /**
+     * 堆的分叉数，相比二叉堆高度更低，子节点在数组中连续存储
+     */
+    private static final int ARITY = 4;
+    /**
+     * 容量上限，即保留的名次数量
+     */
+    private final int capacity;
+    /**
+     * 是否保留最大一批的比较值<br/>
+     * 如果为真，按比较值降序排名；如果为假，按比较值升序排名
+     */
+    private final boolean saveLarger;
+    /**
+     * 堆中各项的标识值
+     */
+    private final int[] keys;
+    /**
+     * 与标识值对齐的比较值
+     */
+    private final long[] values;
+    /**
+     * 当前项数
+     */
+    private int size = 0;
+
+    public TopKSelector(int capacity, boolean saveLarger) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity should be greater than 0");
+        this.capacity = capacity;
+        this.saveLarger = saveLarger;
+        this.keys = new int[capacity];
+        this.values = new long[capacity];
+    }
+
+    /**
+     * 尝试加入一项，达到容量上限后，只有排名高于当前最差一项时才会加入，同时淘汰最差一项
+     * @param key 标识值
+     * @param value 比较值
+     */
+    public void put(int key, long value) {
+        if (size < capacity) {
+            siftUp(size++, key, value);
+        } else if (worse(values[0], keys[0], value, key)) {
+            siftDown(0, key, value);
+        }
+    }
+
+    /**
+     * 按排名从高到低取出所有标识值，取出后选择器被清空，可以重新使用
+     * @return 按排名排序的标识值数组
+     */
+    public int[] list() {
+        int[] list = new int[size];
+        // 每次取出堆顶的最差一项，从后向前写入
+        for (int i = list.length - 1; i >= 0; i--) {
+            list[i] = keys[0];
+            if (--size > 0) siftDown(0, keys[size], values[size]);
+        }
+        return list;
+    }
+
+    /**
+     * 清空选择器
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * 当前项数
+     * @return 当前项数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 将一项从指定位置向上调整，直到父节点不优于该项
+     * @param i 起始位置
+     * @param key 标识值
+     * @param value 比较值
+     */
+    private void siftUp(int i, int key, long value) {
+        while (i > 0) {
+            int parent = (i - 1) / ARITY;
+            if (!worse(value, key, values[parent], keys[parent])) break;
+            keys[i] = keys[parent];
+            values[i] = values[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * 将一项从指定位置向下调整，直到所有子节点都不差于该项
+     * @param i 起始位置
+     * @param key 标识值
+     * @param value 比较值
+     */
+    private void siftDown(int i, int key, long value) {
+        while (true) {
+            int first = i * ARITY + 1;
+            if (first >= size) break;
+            // 找到最差的子节点
+            int worst = first;
+            int end = Math.min(first + ARITY, size);
+            for (int c = first + 1; c < end; c++) {
+                if (worse(values[c], keys[c], values[worst], keys[worst])) worst = c;
+            }
+            if (!worse(values[worst], keys[worst], value, key)) break;
+            keys[i] = keys[worst];
+            values[i] = values[worst];
+            i = worst;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * 判断一项的排名是否低于另一项
+     * @param v1 第一项的比较值
+     * @param k1 第一项的标识值
+     * @param v2 第二项的比较值
+     * @param k2 第二项的标识值
+     * @return 第一项的排名是否低于第二项
+     */
+    private boolean worse(long v1, int k1, long v2, int k2) {
+        if (v1 != v2) return saveLarger ? v1 < v2 : v1 > v2;
+        return k1 > k2;
+    }
+}
@@ -0,0 +1,72 @@
+package com.practice.common.util;
+
+import com.practice.common.logging.ExtLogger;
+import com.practice.config.RedPacketProperties;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+/**
+ * 虚拟线程工具类<br/>
+ * 项目以Java 17编译，通过反射调用Java 21的虚拟线程API，运行在Java 21以下版本时退回到平台线程池
+ */
+public class VirtualThreadUtil {
+    private static final ExtLogger log = ExtLogger.create(VirtualThreadUtil.class); // 日志Logger对象
+    /**
+     * 虚拟线程工厂的构建器类，运行在Java 21以下版本时为空
+     */
+    private static final Class<?> OF_VIRTUAL;
+
+    static {
+        Class<?> ofVirtual;
+        try {
+            ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+        } catch (ClassNotFoundException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+    }
+
+    /**
+     * 当前运行环境是否支持虚拟线程
+     * @return 是否支持虚拟线程
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * 根据线程模式创建线程池<br/>
+     * 虚拟线程模式下，为每个任务创建一个虚拟线程，不再受线程池最大线程数限制；否则使用平台线程池
+     * @param mode 线程模式
+     * @param name 线程名称前缀
+     * @param platform 平台线程池的创建方法
+     * @return 线程池
+     */
+    public static ExecutorService newExecutor(RedPacketProperties.ThreadMode mode, String name, Supplier<ExecutorService> platform) {
+        if (mode != RedPacketProperties.ThreadMode.VIRTUAL) return platform.get();
+        if (!isSupported()) {
+            log.warn("当前Java版本不支持虚拟线程，{} 使用平台线程池", name);
+            return platform.get();
+        }
+        return newVirtualThreadPerTaskExecutor(name);
+    }
+
+    /**
+     * 创建为每个任务创建一个虚拟线程的线程池，相当于Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name, 0).factory())
+     * @param name 线程名称前缀
+     * @return 线程池
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = OF_VIRTUAL.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+            ThreadFactory factory = (ThreadFactory) OF_VIRTUAL.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("虚拟线程池创建失败", e);
+        }
+    }
+}
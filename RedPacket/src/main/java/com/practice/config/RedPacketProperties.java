@@ -1,12 +1,15 @@
 package com.practice.config;
 
 import com.practice.common.exception.IllegalPropertyException;
+import com.practice.common.util.RedPacketKeyUtil;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * 配置参数类
@@ -24,6 +27,24 @@ public class RedPacketProperties {
      * 红包结算处理时的SQL批量发送方式
      */
     private SqlBatch settlementSqlBatch = SqlBatch.PREPARED;
+    /**
+     * 多行更新方式下，单条SQL语句更新的账户数量上限，超过时拆分为多条相同形式的SQL语句，通过JDBC批处理发送<br/>
+     * 上限为10000
+     */
+    private int settlementSqlChunkSize = 1000;
+    /**
+     * 单批结算的红包数量上限，为1时逐条消息结算，不进行批量结算<br/>
+     * 上限为1024
+     */
+    private int settlementBatchSize = 1;
+    /**
+     * 红包结算处理的幂等性保证方式
+     */
+    private SettlementMode settlementMode = SettlementMode.LOCK;
+    /**
+     * 请求处理和业务线程池的线程模式，虚拟线程模式需要运行在Java 21及以上版本
+     */
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
     /**
      * 发起抢红包响应中的日期时间格式
      */
@@ -40,6 +61,14 @@ public class RedPacketProperties {
      * 参与抢红包过程相关参数
      */
     private Share share;
+    /**
+     * 抢红包业务扩展相关参数
+     */
+    private Extension extension;
+    /**
+     * 运行指标相关参数
+     */
+    private Metrics metrics;
 
     /**
      * 配置参数合法性校验
@@ -64,6 +93,24 @@ public class RedPacketProperties {
             throw new IllegalPropertyException("红包结果Key占位项设置有误，请设置在64个字符以内，并且只包含ASCII编码可打印字符：red-packet.biz.result-placeholder");
         }
 
+        if (biz.getLeasePrefix() == null
+                || biz.getLeasePrefix().length() > 0x40
+                || !isAllPrintableAscii(biz.getLeasePrefix())) {
+            throw new IllegalPropertyException("红包租约计数Key前缀设置有误，请设置在64个字符以内，并且只包含ASCII编码可打印字符：red-packet.biz.lease-prefix");
+        }
+
+        if (biz.getShareRankPrefix() == null
+                || biz.getShareRankPrefix().length() > 0x40
+                || !isAllPrintableAscii(biz.getShareRankPrefix())) {
+            throw new IllegalPropertyException("红包金额排名Key前缀设置有误，请设置在64个字符以内，并且只包含ASCII编码可打印字符：red-packet.biz.share-rank-prefix");
+        }
+
+        if (biz.getTimeCostRankPrefix() == null
+                || biz.getTimeCostRankPrefix().length() > 0x40
+                || !isAllPrintableAscii(biz.getTimeCostRankPrefix())) {
+            throw new IllegalPropertyException("红包耗时排名Key前缀设置有误，请设置在64个字符以内，并且只包含ASCII编码可打印字符：red-packet.biz.time-cost-rank-prefix");
+        }
+
         if (biz.getMinAmount() > biz.getMaxAmount()
                 || biz.getMinAmount() < 1
                 || biz.getMaxAmount() > 0x3FFFFFFF) {
@@ -87,6 +134,16 @@ public class RedPacketProperties {
             throw new IllegalPropertyException("红包结果保留时长设置有误：red-packet.biz.result-keep-time");
         }
 
+        if (biz.getResultScanCount() < 0
+                || biz.getResultScanCount() > 10000) {
+            throw new IllegalPropertyException("红包结果单次读取数量设置有误：red-packet.biz.result-scan-count");
+        }
+
+        if (biz.getEncoding() != Encoding.TEXT
+                && biz.getEncoding() != Encoding.COMPACT) {
+            throw new IllegalArgumentException("无法识别的Redis编码方式：red-packet.biz.encoding");
+        }
+
         if (biz.getShareRankNum() < 1
                 || biz.getShareRankNum() > 0x3FF) {
             throw new IllegalPropertyException("参与抢红包金额排名数量设置有误：red-packet.biz.share-rank-num");
@@ -99,9 +156,132 @@ public class RedPacketProperties {
 
         if (settlementSqlBatch != SqlBatch.NON_BATCHED
                 && settlementSqlBatch != SqlBatch.NON_PREPARED
-                && settlementSqlBatch != SqlBatch.PREPARED) {
+                && settlementSqlBatch != SqlBatch.PREPARED
+                && settlementSqlBatch != SqlBatch.MULTI_ROW) {
             throw new IllegalArgumentException("无法识别的SQL批量发送方式：red-packet.settlement-sql-batch");
         }
+
+        if (settlementSqlChunkSize < 1
+                || settlementSqlChunkSize > 10000) {
+            throw new IllegalPropertyException("多行更新SQL语句的账户数量上限设置有误：red-packet.settlement-sql-chunk-size");
+        }
+
+        if (settlementBatchSize < 1
+                || settlementBatchSize > 1024) {
+            throw new IllegalPropertyException("单批结算数量上限设置有误：red-packet.settlement-batch-size");
+        }
+
+        if (settlementMode != SettlementMode.LOCK
+                && settlementMode != SettlementMode.LEDGER) {
+            throw new IllegalArgumentException("无法识别的结算幂等性保证方式：red-packet.settlement-mode");
+        }
+
+        if (threadMode != ThreadMode.PLATFORM
+                && threadMode != ThreadMode.VIRTUAL) {
+            throw new IllegalArgumentException("无法识别的线程模式：red-packet.thread-mode");
+        }
+
+        if (extension.getAsyncThreads() < 1
+                || extension.getAsyncThreads() > 64) {
+            throw new IllegalPropertyException("异步扩展线程池线程数设置有误：red-packet.extension.async-threads");
+        }
+
+        if (extension.getAsyncQueueSize() < 1
+                || extension.getAsyncQueueSize() > 0x10000) {
+            throw new IllegalPropertyException("异步扩展线程池队列长度设置有误：red-packet.extension.async-queue-size");
+        }
+
+        if (extension.getAsyncOverflow() != Overflow.DROP
+                && extension.getAsyncOverflow() != Overflow.BLOCK
+                && extension.getAsyncOverflow() != Overflow.CALLER_RUNS) {
+            throw new IllegalArgumentException("无法识别的异步扩展线程池队列已满时的处理方式：red-packet.extension.async-overflow");
+        }
+
+        if (metrics.getLatencyInterval() < 1
+                || metrics.getLatencyInterval() > 3600) {
+            throw new IllegalPropertyException("参与抢红包各阶段延迟区间统计时间间隔设置有误：red-packet.metrics.latency-interval");
+        }
+
+        if (publish.getMaxBatchSize() < 1
+                || publish.getMaxBatchSize() > 10000) {
+            throw new IllegalPropertyException("批量发起抢红包数量上限设置有误：red-packet.publish.max-batch-size");
+        }
+
+        if (publish.getMode() != PublishMode.DIRECT
+                && publish.getMode() != PublishMode.OUTBOX) {
+            throw new IllegalArgumentException("无法识别的结算消息发送方式：red-packet.publish.mode");
+        }
+
+        if (publish.getOutboxBatchSize() < 1
+                || publish.getOutboxBatchSize() > 1024) {
+            throw new IllegalPropertyException("发件箱单批消息数量设置有误：red-packet.publish.outbox-batch-size");
+        }
+
+        if (publish.getOutboxInterval() < 1
+                || publish.getOutboxInterval() > 60000) {
+            throw new IllegalPropertyException("发件箱读取时间间隔设置有误：red-packet.publish.outbox-interval");
+        }
+
+        if (publish.getGroupCommitWindow() < 1
+                || publish.getGroupCommitWindow() > 100000) {
+            throw new IllegalPropertyException("组提交时间窗口设置有误：red-packet.publish.group-commit-window");
+        }
+
+        if (publish.getGroupCommitThreads() < 1
+                || publish.getGroupCommitThreads() > 256) {
+            throw new IllegalPropertyException("组提交线程数设置有误：red-packet.publish.group-commit-threads");
+        }
+
+        if (publish.getHotAccountShards() < 1
+                || publish.getHotAccountShards() > 64) {
+            throw new IllegalPropertyException("热点账户子账户数量设置有误：red-packet.publish.hot-account-shards");
+        }
+
+        if (publish.getRebalanceInterval() < 1
+                || publish.getRebalanceInterval() > 60000) {
+            throw new IllegalPropertyException("热点账户余额平衡时间间隔设置有误：red-packet.publish.rebalance-interval");
+        }
+
+        if (share.getMode() != ShareMode.DIRECT
+                && share.getMode() != ShareMode.LEASE
+                && share.getMode() != ShareMode.COALESCE) {
+            throw new IllegalArgumentException("无法识别的参与抢红包Redis访问方式：red-packet.share.mode");
+        }
+
+        if (biz.getEncoding() == Encoding.COMPACT
+                && share.getMode() == ShareMode.LEASE) {
+            throw new IllegalPropertyException("租约模式不支持紧凑编码：red-packet.biz.encoding");
+        }
+
+        if (biz.getEncoding() == Encoding.COMPACT
+                && biz.getMaxAmount() > RedPacketKeyUtil.MAX_COMPACT_SHARE) {
+            throw new IllegalPropertyException("紧凑编码模式下红包金额上限为" + RedPacketKeyUtil.MAX_COMPACT_SHARE + "：red-packet.biz.max-amount");
+        }
+
+        if (biz.isRedisRank()
+                && share.getMode() == ShareMode.LEASE) {
+            throw new IllegalPropertyException("租约模式不支持在Redis中维护排名：red-packet.biz.redis-rank");
+        }
+
+        if (share.getLeaseBatchSize() < 1
+                || share.getLeaseBatchSize() > 0x3FF) {
+            throw new IllegalPropertyException("租约模式单次领取份数设置有误：red-packet.share.lease-batch-size");
+        }
+
+        if (share.getLeaseTime() < 1
+                || share.getLeaseTime() > 60000) {
+            throw new IllegalPropertyException("租约模式租约时长设置有误：red-packet.share.lease-time");
+        }
+
+        if (share.getCoalesceWindow() < 1
+                || share.getCoalesceWindow() > 100000) {
+            throw new IllegalPropertyException("合并模式时间窗口设置有误：red-packet.share.coalesce-window");
+        }
+
+        if (share.getCoalesceBatchSize() < 1
+                || share.getCoalesceBatchSize() > 0x3FF) {
+            throw new IllegalPropertyException("合并模式单批请求数量设置有误：red-packet.share.coalesce-batch-size");
+        }
     }
 
     /**
@@ -142,6 +322,11 @@ public class RedPacketProperties {
          * 最多64个字符，且只能包含ASCII编码可打印字符（编码范围为32到127）
          */
         private String resultPlaceholder = "%%%%%%%%%%for_refund%%%%%%%%%%";
+        /**
+         * 红包租约计数key前缀，仅在租约模式下使用，租约计数key为哈希表，同时保存各次回写的回执<br/>
+         * 最多64个字符，且只能包含ASCII编码可打印字符（编码范围为32到127）
+         */
+        private String leasePrefix = "Lease:";
         /**
          * 红包最大金额，单位为分<br/>
          * 上限为1073741823，约一千万元
@@ -177,6 +362,15 @@ public class RedPacketProperties {
          * 上限为2592000，即30天
          */
         private int resultKeepTime = 3600;
+        /**
+         * 读取红包结果时单次HSCAN请求的COUNT参数，为0时通过HGETALL一次性读取<br/>
+         * 上限为10000
+         */
+        private int resultScanCount = 0;
+        /**
+         * 红包key和红包结果在Redis中的编码方式
+         */
+        private Encoding encoding = Encoding.TEXT;
         /**
          * 参与抢红包金额排名数量，即显示抢红包金额最大的前若干名<br/>
          * 上限为1023
@@ -187,6 +381,21 @@ public class RedPacketProperties {
          * 上限为1023
          */
         private int timeCostRankNum = 10;
+        /**
+         * 是否在Redis有序集合中维护排名<br/>
+         * 开启后抢红包时增量维护金额排名和耗时排名，红包结束后不需要在本地重新排序，红包进行中也可以查询排名
+         */
+        private boolean redisRank = false;
+        /**
+         * 红包金额排名key前缀，仅在Redis中维护排名时使用<br/>
+         * 最多64个字符，且只能包含ASCII编码可打印字符（编码范围为32到127）
+         */
+        private String shareRankPrefix = "ShareRank:";
+        /**
+         * 红包耗时排名key前缀，仅在Redis中维护排名时使用<br/>
+         * 最多64个字符，且只能包含ASCII编码可打印字符（编码范围为32到127）
+         */
+        private String timeCostRankPrefix = "TimeCostRank:";
     }
 
     /**
@@ -215,6 +424,53 @@ public class RedPacketProperties {
          * 原子整数保留时长，单位为秒
          */
         private int atomicKeepTime = 30;
+        /**
+         * 单次批量发起抢红包的红包数量上限<br/>
+         * 上限为10000
+         */
+        private int maxBatchSize = 1000;
+        /**
+         * 结算消息的发送方式
+         */
+        private PublishMode mode = PublishMode.DIRECT;
+        /**
+         * 发件箱模式下，中继线程单批读取和发送的消息数量上限<br/>
+         * 上限为1024
+         */
+        private int outboxBatchSize = 256;
+        /**
+         * 发件箱模式下，中继线程读取发件箱的时间间隔，单位为毫秒<br/>
+         * 上限为60000，即1分钟
+         */
+        private int outboxInterval = 200;
+        /**
+         * 是否开启扣减账户余额的组提交，开启后同一用户在时间窗口内的并发扣减合并为一条SQL语句执行
+         */
+        private boolean groupCommit = false;
+        /**
+         * 组提交模式下收集同一用户的并发扣减的时间窗口，单位为微秒<br/>
+         * 上限为100000，即100毫秒
+         */
+        private int groupCommitWindow = 200;
+        /**
+         * 组提交模式下执行组提交的线程数，每个线程同一时刻只提交一个组，应当不小于同时发起抢红包的热点用户数量<br/>
+         * 上限为256
+         */
+        private int groupCommitThreads = 8;
+        /**
+         * 热点账户的用户ID，热点账户的余额分散到主账户和若干子账户中，发起抢红包时从随机选择的一个子账户开始尝试扣减
+         */
+        private Set<String> hotAccounts = new HashSet<>();
+        /**
+         * 每个热点账户的子账户数量<br/>
+         * 上限为64
+         */
+        private int hotAccountShards = 8;
+        /**
+         * 平衡热点账户各子账户余额的时间间隔，单位为毫秒<br/>
+         * 上限为60000，即1分钟
+         */
+        private int rebalanceInterval = 1000;
     }
 
     /**
@@ -247,6 +503,92 @@ public class RedPacketProperties {
          * 缓存命中率统计时间间隔，单位为秒
          */
         private int cacheHitRatioCheckInterval = 3600;
+        /**
+         * 参与抢红包的Redis访问方式
+         */
+        private ShareMode mode = ShareMode.DIRECT;
+        /**
+         * 直接访问模式下，红包结束时是否在抢红包脚本的同一次响应中返回红包结果，省去一次查询红包结果的网络通信
+         */
+        private boolean inlineResult = false;
+        /**
+         * 直接访问模式下，是否通过Lettuce异步API访问Redis，由命令超时机制控制响应超时，不再通过线程池等待结果
+         */
+        private boolean async = false;
+        /**
+         * 租约模式下单次从Redis领取的小红包份数上限<br/>
+         * 上限为1023
+         */
+        private int leaseBatchSize = 16;
+        /**
+         * 租约模式下领取的小红包在本地的保留时长，单位为毫秒，超时未派发的小红包将退回Redis<br/>
+         * 上限为60000，即1分钟
+         */
+        private int leaseTime = 1000;
+        /**
+         * 合并模式下收集同一个红包的并发请求的时间窗口，单位为微秒<br/>
+         * 上限为100000，即100毫秒
+         */
+        private int coalesceWindow = 200;
+        /**
+         * 合并模式下单批合并的请求数量上限，达到上限时立即执行，不再等待时间窗口结束<br/>
+         * 上限为1023
+         */
+        private int coalesceBatchSize = 64;
+    }
+
+    /**
+     * 抢红包业务扩展相关参数
+     */
+    @Getter
+    @Setter
+    public static class Extension {
+        /**
+         * 异步扩展线程池线程数，仅在存在标注了@AsyncExtension的扩展类时创建<br/>
+         * 上限为64
+         */
+        private int asyncThreads = 2;
+        /**
+         * 异步扩展线程池队列长度<br/>
+         * 上限为65536
+         */
+        private int asyncQueueSize = 1024;
+        /**
+         * 异步扩展线程池队列已满时的处理方式
+         */
+        private Overflow asyncOverflow = Overflow.CALLER_RUNS;
+    }
+
+    /**
+     * 运行指标相关参数
+     */
+    @Getter
+    @Setter
+    public static class Metrics {
+        /**
+         * 是否统计参与抢红包各阶段的延迟
+         */
+        private boolean latency = false;
+        /**
+         * 参与抢红包各阶段延迟的区间统计时间间隔，单位为秒<br/>
+         * 上限为3600，即1小时
+         */
+        private int latencyInterval = 60;
+    }
+
+    /**
+     * 红包key和红包结果在Redis中的编码方式
+     */
+    public enum Encoding {
+        /**
+         * 红包key为小红包金额的十进制字符串列表，红包结果为以"-"分隔的十进制金额和编码耗时
+         */
+        TEXT,
+        /**
+         * 紧凑编码，红包key为所有小红包金额按固定宽度的36进制编码后拼接的字符串，通过红包结果中的计数读取，
+         * 红包结果为固定宽度的编码金额和编码耗时，红包金额上限为60466175
+         */
+        COMPACT
     }
 
     /**
@@ -264,6 +606,88 @@ public class RedPacketProperties {
         /**
          * 批量发送，且进行服务端预编译
          */
-        PREPARED
+        PREPARED,
+        /**
+         * 多行更新，将所有账户的增加金额作为派生表与账户表关联，通过单条SQL语句完成更新
+         */
+        MULTI_ROW
+    }
+
+    /**
+     * 红包结算处理的幂等性保证方式
+     */
+    public enum SettlementMode {
+        /**
+         * 使用Redisson分布式锁，配合Lua脚本设置红包结果key的过期时间，保证幂等性
+         */
+        LOCK,
+        /**
+         * 台账模式，不使用分布式锁，在账户操作的事务中写入以红包key为主键的结算台账，配合Lua脚本设置红包结果key的过期时间，保证幂等性
+         */
+        LEDGER
+    }
+
+    /**
+     * 参与抢红包的Redis访问方式
+     */
+    public enum ShareMode {
+        /**
+         * 每次参与抢红包都通过Lua脚本直接访问Redis
+         */
+        DIRECT,
+        /**
+         * 租约模式，各节点从Redis批量领取小红包在本地派发，并批量回写红包结果
+         */
+        LEASE,
+        /**
+         * 合并模式，在时间窗口内合并同一个红包的并发请求，通过一次Lua脚本调用批量抢红包
+         */
+        COALESCE
+    }
+
+    /**
+     * 结算消息的发送方式
+     */
+    public enum PublishMode {
+        /**
+         * 在发起抢红包的事务中同步发送延时消息
+         */
+        DIRECT,
+        /**
+         * 发件箱模式，在发起抢红包的事务中写入发件箱，事务提交后由中继线程批量发送
+         */
+        OUTBOX
+    }
+
+    /**
+     * 异步扩展线程池队列已满时的处理方式
+     */
+    public enum Overflow {
+        /**
+         * 丢弃本次扩展方法调用，并计入丢弃次数
+         */
+        DROP,
+        /**
+         * 阻塞调用线程，直到队列有空位
+         */
+        BLOCK,
+        /**
+         * 在调用线程中同步执行
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * 请求处理和业务线程池的线程模式
+     */
+    public enum ThreadMode {
+        /**
+         * 使用固定大小的平台线程池
+         */
+        PLATFORM,
+        /**
+         * 为每个任务创建一个虚拟线程，需要运行在Java 21及以上版本，否则退回到平台线程池
+         */
+        VIRTUAL
     }
 }
@@ -1,32 +1,78 @@
 package com.practice.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.practice.common.util.VirtualThreadUtil;
+import com.practice.converter.RedPacketResultHttpMessageConverter;
 import com.practice.interceptor.LoginInterceptor;
 import com.practice.interceptor.ShareInterceptor;
+import com.practice.metrics.ShareLatencyMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.util.List;
+
 /**
  * Mvc配置类
  */
 @Configuration
 public class WebMvcConfig implements WebMvcConfigurer {
     private ShareInterceptor shareInterceptor;
+    private ObjectMapper objectMapper; // 容器中的ObjectMapper
+    private ShareLatencyMetrics shareLatencyMetrics; // 参与抢红包各阶段的延迟统计
 
     @Autowired
     private void setShareInterceptor(ShareInterceptor shareInterceptor) {
         this.shareInterceptor = shareInterceptor;
     }
 
+    @Autowired
+    private void setObjectMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Autowired
+    private void setShareLatencyMetrics(ShareLatencyMetrics shareLatencyMetrics) {
+        this.shareLatencyMetrics = shareLatencyMetrics;
+    }
+
     /**
      * 注册拦截器
      */
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // 非法红包和超过红包的访问时限的访问请求将被拒绝
-        registry.addInterceptor(shareInterceptor).addPathPatterns("/redpacket/share");
+        registry.addInterceptor(shareInterceptor).addPathPatterns("/redpacket/share", "/redpacket/async/share", "/redpacket/rank");
         // 未登录的访问请求将被拒绝
-        registry.addInterceptor(new LoginInterceptor()).addPathPatterns("/redpacket/publish", "/redpacket/share");
+        registry.addInterceptor(new LoginInterceptor()).addPathPatterns(
+                "/redpacket/publish", "/redpacket/share", "/redpacket/async/publish", "/redpacket/async/share",
+                "/redpacket/publish/batch", "/redpacket/rank");
+    }
+
+    /**
+     * 注册红包业务统一响应结果的消息转换器，优先于默认的Jackson消息转换器
+     */
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(0, new RedPacketResultHttpMessageConverter(objectMapper, shareLatencyMetrics));
+    }
+
+    /**
+     * 虚拟线程模式下，Tomcat为每个请求创建一个虚拟线程进行处理<br/>
+     * 运行在Java 21以下版本时保持Tomcat默认线程池
+     */
+    @Bean
+    @ConditionalOnProperty(value = "red-packet.thread-mode", havingValue = "virtual")
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        return protocolHandler -> {
+            if (VirtualThreadUtil.isSupported()) {
+                protocolHandler.setExecutor(VirtualThreadUtil.newVirtualThreadPerTaskExecutor("TomcatHandler"));
+            }
+        };
     }
 }
@@ -0,0 +1,55 @@
+package com.practice.controller;
+
+import com.practice.metrics.RedPacketMetrics;
+import com.practice.metrics.ShareLatencyMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * 运行指标查询
+ */
+@RestController
+@Profile({"biz-dev", "biz-test" ,"biz-prod"})
+public class MetricsController {
+    private ShareLatencyMetrics shareLatencyMetrics; // 参与抢红包各阶段的延迟统计
+    private RedPacketMetrics redPacketMetrics; // 红包业务运行指标注册表
+
+    @Autowired
+    private void setShareLatencyMetrics(ShareLatencyMetrics shareLatencyMetrics) {
+        this.shareLatencyMetrics = shareLatencyMetrics;
+    }
+
+    @Autowired
+    private void setRedPacketMetrics(RedPacketMetrics redPacketMetrics) {
+        this.redPacketMetrics = redPacketMetrics;
+    }
+
+    /**
+     * 查询红包业务运行指标，包括计数器、计量值和由计数器计算的比率
+     */
+    @GetMapping("/redpacket/metrics")
+    public Map<String, Object> metrics() {
+        return redPacketMetrics.report();
+    }
+
+    /**
+     * 以Prometheus文本格式输出红包业务运行指标，供Prometheus抓取
+     */
+    @GetMapping(value = "/redpacket/metrics/prometheus", produces = MediaType.TEXT_PLAIN_VALUE)
+    public String prometheus() {
+        return redPacketMetrics.prometheus();
+    }
+
+    /**
+     * 查询参与抢红包各阶段的延迟，包括自启动以来的累计统计和最近一个完整区间的统计，单位为微秒
+     */
+    @GetMapping("/redpacket/metrics/latency")
+    public Map<String, Object> latency() {
+        return shareLatencyMetrics.report();
+    }
+}
@@ -5,6 +5,7 @@ import com.practice.common.exception.IllegalAccountException;
 import com.practice.common.logging.ExtLogger;
 import com.practice.common.pojo.BigDataInfo;
 import com.practice.common.pojo.RedPacketInfo;
+import com.practice.common.pojo.RedPacketKey;
 import com.practice.common.result.PublishResult;
 import com.practice.common.result.RedPacketResult;
 import com.practice.common.util.DateTimeUtil;
@@ -13,11 +14,16 @@ import com.practice.config.RedPacketProperties;
 import com.practice.service.RedPacketService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.lang.Nullable;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 @RestController
 @Profile({"biz-dev", "biz-test" ,"biz-prod"})
@@ -26,6 +32,7 @@ public class RedPacketController {
     private RedPacketService redPacketService;
     private RedPacketProperties redPacketProperties; // 配置参数类
     private DateTimeFormatter dateTimeFormatter; // 抢红包发起日期时间的格式化类，线程安全
+    private final AtomicLong keySequence = new AtomicLong(); // 本节点生成红包key的序号，只增不减
 
     @Autowired
     private void setRedPacketService(RedPacketService redPacketService) {
@@ -49,6 +56,111 @@ public class RedPacketController {
     @PostMapping("/redpacket/publish")
     @SuppressWarnings("rawtypes")
     public RedPacketResult publish(@RequestBody RedPacketInfo info, HttpServletRequest request) {
+        RedPacketResult error = checkPublish(info, request);
+        if (error != null) return error;
+
+        long timestamp = System.currentTimeMillis();
+        String key = generateKey(info, timestamp);
+
+        // 获取红包key负载数据部分
+        String payload = RedPacketKeyUtil.getPayload(key);
+
+        redPacketService.publish(payload, info.getUserId(), info.getAmount(), info.getShareNum(), info.getExpireTime(), timestamp);
+
+        return publishSuccess(info, key, timestamp);
+    }
+
+    /**
+     * 异步发起抢红包<br/>
+     * 请求线程在账户操作和消息发送期间被释放，由线程池完成处理后响应
+     * @param info 发起抢红包用户ID、红包总金额（单位为分）、拆分小红包份数、红包过期时长（单位为秒）
+     */
+    @PostMapping("/redpacket/async/publish")
+    @SuppressWarnings("rawtypes")
+    public CompletableFuture<RedPacketResult> publishAsync(@RequestBody RedPacketInfo info, HttpServletRequest request) {
+        RedPacketResult error = checkPublish(info, request);
+        if (error != null) return CompletableFuture.completedFuture(error);
+
+        long timestamp = System.currentTimeMillis();
+        String key = generateKey(info, timestamp);
+
+        // 获取红包key负载数据部分
+        String payload = RedPacketKeyUtil.getPayload(key);
+
+        return redPacketService
+                .publishAsync(payload, info.getUserId(), info.getAmount(), info.getShareNum(), info.getExpireTime(), timestamp)
+                .thenApply(v -> publishSuccess(info, key, timestamp));
+    }
+
+    /**
+     * 批量发起抢红包<br/>
+     * 所有红包必须由当前登录用户发起，在同一个事务中一次性扣减总金额，任意红包发起失败则整批失败
+     * @param infos 每个红包的发起抢红包用户ID、红包总金额（单位为分）、拆分小红包份数、红包过期时长（单位为秒）
+     */
+    @PostMapping("/redpacket/publish/batch")
+    @SuppressWarnings("rawtypes")
+    public RedPacketResult publishBatch(@RequestBody List<RedPacketInfo> infos, HttpServletRequest request) {
+        String uid = (String) request.getAttribute("userId");
+        // 校验红包数量是否超出范围
+        if (infos.isEmpty() || infos.size() > redPacketProperties.getPublish().getMaxBatchSize()) {
+            log.biz("[ ] [用户 {}] 批量发起抢红包，数量 {} 设置不合法", uid, infos.size());
+            // 使用惰性日志
+            log.bigdata("{}", () -> BigDataInfo.of(
+                    BigDataInfo.Status.ERROR, null, uid,
+                    null, null, null, BigDataInfo.ErrorType.WRONG_BATCH_SIZE
+                    ).encode()
+            );
+            return RedPacketResult.error(RedPacketResult.ErrorType.WRONG_BATCH_SIZE);
+        }
+
+        long total = 0L;
+        for (RedPacketInfo info : infos) {
+            RedPacketResult error = checkPublish(info, request);
+            if (error != null) return error;
+            total += info.getAmount();
+        }
+        // 校验总金额之和是否超出范围
+        if (total > Integer.MAX_VALUE) {
+            log.biz("[ ] [用户 {}] 批量发起抢红包，总金额之和 {} 设置不合法", uid, total);
+            // 使用惰性日志
+            log.bigdata("{}", () -> BigDataInfo.of(
+                    BigDataInfo.Status.ERROR, null, uid,
+                    null, null, null, BigDataInfo.ErrorType.WRONG_AMOUNT
+                    ).encode()
+            );
+            return RedPacketResult.error(RedPacketResult.ErrorType.WRONG_AMOUNT);
+        }
+
+        // 同一批次的红包使用相同的发起时间戳，红包key的唯一性由本节点的生成序号保证
+        long timestamp = System.currentTimeMillis();
+        int size = infos.size();
+        String[] keys = new String[size];
+        String[] payloads = new String[size];
+        long[] timestamps = new long[size];
+        for (int i = 0; i < size; i++) {
+            timestamps[i] = timestamp;
+            keys[i] = generateKey(infos.get(i), timestamps[i]);
+            // 获取红包key负载数据部分
+            payloads[i] = RedPacketKeyUtil.getPayload(keys[i]);
+        }
+
+        redPacketService.publishBatch(uid, infos, payloads, timestamps);
+
+        List<RedPacketResult<PublishResult>> results = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            results.add(publishSuccess(infos.get(i), keys[i], timestamps[i]));
+        }
+        return RedPacketResult.publishBatchSuccess(results);
+    }
+
+    /**
+     * 检查发起抢红包的参数
+     * @param info 发起抢红包用户ID、红包总金额（单位为分）、拆分小红包份数、红包过期时长（单位为秒）
+     * @return 检查不通过时返回错误结果，否则返回空
+     */
+    @Nullable
+    @SuppressWarnings("rawtypes")
+    private RedPacketResult checkPublish(RedPacketInfo info, HttpServletRequest request) {
         String userId = info.getUserId();
         // 从请求域获取当前登录的用户ID，检查是否与参与抢红包用户ID一致
         String uid = (String) request.getAttribute("userId");
@@ -103,24 +215,36 @@ public class RedPacketController {
             );
             return RedPacketResult.error(RedPacketResult.ErrorType.WRONG_EXPIRE_TIME);
         }
+        return null;
+    }
 
-        long timestamp = System.currentTimeMillis();
-        // 使用JVM编号、线程ID、用户ID、红包金额、当前时间戳生成红包key
-        String key = RedPacketKeyUtil.generateKey(
-                redPacketProperties.getServiceId(), Thread.currentThread().getId(),
-                amount, expireTime, timestamp, userId
+    /**
+     * 使用JVM编号、本节点生成序号、用户ID、红包金额、当前时间戳生成红包key<br/>
+     * 生成序号在本节点内只增不减，同一毫秒内生成的红包key即使用户ID相同也互不重复，不依赖线程ID，虚拟线程模式下同样适用
+     * @param info 发起抢红包用户ID、红包总金额（单位为分）、拆分小红包份数、红包过期时长（单位为秒）
+     * @param timestamp 红包发起毫秒时间戳
+     * @return 红包key
+     */
+    private String generateKey(RedPacketInfo info, long timestamp) {
+        return RedPacketKeyUtil.generateKey(
+                redPacketProperties.getServiceId(), keySequence.getAndIncrement(),
+                info.getAmount(), info.getExpireTime(), timestamp, info.getUserId()
         );
+    }
 
-        // 获取红包key负载数据部分
-        String payload = RedPacketKeyUtil.getPayload(key);
-
-        redPacketService.publish(payload, userId, amount, shareNum, expireTime, timestamp);
-
+    /**
+     * 生成发起抢红包成功的结果
+     * @param info 发起抢红包用户ID、红包总金额（单位为分）、拆分小红包份数、红包过期时长（单位为秒）
+     * @param key 红包key
+     * @param timestamp 红包发起毫秒时间戳
+     * @return 发起抢红包成功的结果
+     */
+    private RedPacketResult<PublishResult> publishSuccess(RedPacketInfo info, String key, long timestamp) {
         return RedPacketResult.publishSuccess(
                 key,
                 PublishResult.publishSuccess(
                         DateTimeUtil.millis2DateTime(dateTimeFormatter, timestamp),
-                        amount, shareNum, expireTime
+                        info.getAmount(), info.getShareNum(), info.getExpireTime()
                 )
         );
     }
@@ -146,10 +270,52 @@ public class RedPacketController {
             return RedPacketResult.error(RedPacketResult.ErrorType.USER_MISMATCH);
         }
 
-        // 获取红包key负载数据部分
-        String payload = RedPacketKeyUtil.getPayload(key);
+        // 获取参与抢红包拦截器解析后的红包key
+        RedPacketKey redPacketKey = (RedPacketKey) request.getAttribute("redPacketKey");
+
+        return redPacketService.share(redPacketKey, userId);
+    }
+
+    /**
+     * 异步参与抢红包<br/>
+     * 请求线程在访问Redis期间被释放，由Redis响应完成后响应
+     * @param key 红包key
+     * @param userId 抢红包用户ID
+     */
+    @GetMapping("/redpacket/async/share")
+    @SuppressWarnings("rawtypes")
+    public CompletableFuture<RedPacketResult> shareAsync(@RequestParam String key, @RequestParam String userId, HttpServletRequest request) {
+        // 从请求域获取当前登录的用户ID，检查是否与参与抢红包用户ID一致
+        String uid = (String) request.getAttribute("userId");
+        if (!userId.equals(uid)) {
+            log.biz("[{}] [用户 {}] 参与抢红包，与当前登录用户 {} 不匹配", key, userId, uid);
+            // 使用惰性日志
+            log.bigdata("{}", () -> BigDataInfo.of(
+                            BigDataInfo.Status.ERROR, null, userId,
+                            null, null, null, BigDataInfo.ErrorType.USER_MISMATCH
+                    ).encode()
+            );
+            return CompletableFuture.completedFuture(RedPacketResult.error(RedPacketResult.ErrorType.USER_MISMATCH));
+        }
+
+        // 获取参与抢红包拦截器解析后的红包key
+        RedPacketKey redPacketKey = (RedPacketKey) request.getAttribute("redPacketKey");
+
+        return redPacketService.shareAsync(redPacketKey, userId);
+    }
+
+    /**
+     * 查询红包的金额排名和耗时排名<br/>
+     * 排名在抢红包过程中增量维护，红包进行中也可以查询，需要开启在Redis中维护排名
+     * @param key 红包key
+     */
+    @GetMapping("/redpacket/rank")
+    @SuppressWarnings("rawtypes")
+    public RedPacketResult rank(@RequestParam String key, HttpServletRequest request) {
+        // 获取参与抢红包拦截器解析后的红包key
+        RedPacketKey redPacketKey = (RedPacketKey) request.getAttribute("redPacketKey");
 
-        return redPacketService.share(payload, userId);
+        return redPacketService.rank(redPacketKey);
     }
 
     /**
@@ -0,0 +1,80 @@
+package com.practice.converter;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.practice.common.result.RedPacketResult;
+import com.practice.common.result.ShareResult;
+import com.practice.metrics.ShareLatencyMetrics;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+
+/**
+ * 红包业务统一响应结果的消息转换器<br/>
+ * 红包结束后轮询查询的用户得到的红包结果相同，只有外层的提示信息、金额和耗时因人而异<br/>
+ * 参与抢红包结果携带红包结果时，逐字段写出外层信息，红包结果部分直接拼接缓存的预序列化字节，不经过反射序列化<br/>
+ * 其他响应结果交由ObjectMapper序列化，输出格式与默认的Jackson消息转换器相同
+ */
+public class RedPacketResultHttpMessageConverter extends AbstractHttpMessageConverter<RedPacketResult<?>> {
+    private final ObjectMapper objectMapper; // 容器中的ObjectMapper，用于序列化其他响应结果
+    private final ShareLatencyMetrics shareLatencyMetrics; // 参与抢红包各阶段的延迟统计
+
+    public RedPacketResultHttpMessageConverter(ObjectMapper objectMapper, ShareLatencyMetrics shareLatencyMetrics) {
+        super(MediaType.APPLICATION_JSON);
+        this.objectMapper = objectMapper;
+        this.shareLatencyMetrics = shareLatencyMetrics;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return RedPacketResult.class.isAssignableFrom(clazz);
+    }
+
+    /**
+     * 只用于写出响应
+     */
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected RedPacketResult<?> readInternal(Class<? extends RedPacketResult<?>> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("不支持读取红包业务统一响应结果", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(RedPacketResult<?> redPacketResult, HttpOutputMessage outputMessage) throws IOException {
+        long start = shareLatencyMetrics.start();
+        // 不关闭生成器，响应输出流由容器负责关闭
+        JsonGenerator gen = objectMapper.getFactory().createGenerator(outputMessage.getBody(), JsonEncoding.UTF8);
+        if (redPacketResult.getResult() instanceof ShareResult shareResult && shareResult.getMapResult() != null) {
+            // 字段顺序与默认序列化时相同
+            gen.writeStartObject();
+            gen.writeNumberField("status", redPacketResult.getStatus());
+            gen.writeStringField("msg", redPacketResult.getMsg());
+            gen.writeFieldName("result");
+            gen.writeStartObject();
+            gen.writeNumberField("status", shareResult.getStatus());
+            gen.writeStringField("msg", shareResult.getMsg());
+            gen.writeFieldName("mapResult");
+            gen.writeRawValue(shareResult.getMapResult().getJson());
+            gen.writeNumberField("share", shareResult.getShare());
+            gen.writeNumberField("timeCost", shareResult.getTimeCost());
+            gen.writeEndObject();
+            gen.writeEndObject();
+        } else {
+            objectMapper.writeValue(gen, redPacketResult);
+        }
+        gen.flush();
+        // 只统计参与抢红包结果的序列化耗时
+        if (redPacketResult.getResult() instanceof ShareResult) {
+            shareLatencyMetrics.record(ShareLatencyMetrics.Stage.SERIALIZE, start);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.practice.dao;
+
+import com.practice.common.pojo.RedPacketKey;
+import com.practice.common.result.ShareResult;
+import com.practice.common.util.RedPacketKeyUtil;
+import com.practice.config.RedPacketProperties;
+import io.lettuce.core.*;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * 异步抢红包数据访问类<br/>
+ * 基于Lettuce异步API直接访问Redis，由Lettuce的命令超时机制控制响应超时，不需要额外的线程池等待结果<br/>
+ * 所有请求复用同一个线程安全的Lettuce连接，Redis不可用时请求将在超时后失败，不会在队列中无限堆积<br/>
+ * 仅支持单机Redis
+ */
+@Repository
+@Profile({"biz-dev", "biz-test" ,"biz-prod"})
+@ConditionalOnProperty(value = "red-packet.share.async", havingValue = "true")
+public class AsyncRedPacketDao {
+    private RedisProperties redisProperties; // Redis配置参数类
+    private RedPacketProperties redPacketProperties; // 配置参数类
+    private LuaScriptRegistry luaScriptRegistry; // Redis Lua脚本注册类
+    private RedPacketResultDao redPacketResultDao; // 红包结果数据访问类
+    private RedPacketRankDao redPacketRankDao; // 红包排名数据访问类
+    private RedisClient client; // Lettuce客户端
+    private StatefulRedisConnection<String, String> connection; // Lettuce连接
+    private RedisAsyncCommands<String, String> commands; // Lettuce异步命令接口
+
+    @Autowired
+    private void setRedisProperties(RedisProperties redisProperties) {
+        this.redisProperties = redisProperties;
+    }
+
+    @Autowired
+    private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
+        this.redPacketProperties = redPacketProperties;
+    }
+
+    @Autowired
+    private void setLuaScriptRegistry(LuaScriptRegistry luaScriptRegistry) {
+        this.luaScriptRegistry = luaScriptRegistry;
+    }
+
+    @Autowired
+    private void setRedPacketResultDao(RedPacketResultDao redPacketResultDao) {
+        this.redPacketResultDao = redPacketResultDao;
+    }
+
+    @Autowired
+    private void setRedPacketRankDao(RedPacketRankDao redPacketRankDao) {
+        this.redPacketRankDao = redPacketRankDao;
+    }
+
+    @PostConstruct
+    private void init() {
+        RedisURI.Builder builder = RedisURI.builder()
+                .withHost(redisProperties.getHost())
+                .withPort(redisProperties.getPort())
+                .withDatabase(redisProperties.getDatabase());
+        if (redisProperties.getPassword() != null) builder.withPassword(redisProperties.getPassword().toCharArray());
+
+        // 使用抢红包响应超时时长作为命令超时时长，超时的命令以RedisCommandTimeoutException异常结束
+        this.client = RedisClient.create(builder.build());
+        client.setOptions(ClientOptions.builder()
+                .timeoutOptions(TimeoutOptions.enabled(Duration.ofMillis(redPacketProperties.getShare().getTimeout())))
+                .build());
+        this.connection = client.connect();
+        this.commands = connection.async();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        connection.close();
+        client.shutdown();
+    }
+
+    /**
+     * 参与抢红包
+     * @param parsedKey 解析后的红包key
+     * @param userId 用户ID
+     * @return 抢红包结果，如果超时则结果为空
+     */
+    public CompletableFuture<ShareResult> share(RedPacketKey parsedKey, String userId) {
+        // 红包key、红包结果key，开启排名时还包括金额排名key和耗时排名key
+        String[] keys = redPacketRankDao.shareKeys(parsedKey.getPayload()).toArray(new String[0]);
+        String resultKey = keys[1];
+
+        // 从红包key中提取发起时间，计算抢到红包的耗时
+        long timeCost = System.currentTimeMillis() - parsedKey.getTimestamp();
+        // 对进行抢红包耗时进行编码
+        String encodedTimeCost = RedPacketKeyUtil.encodeTimeCost(timeCost);
+        // 十进制的抢红包耗时，开启排名时直接用作耗时排名的分数，脚本中不需要再解码
+        String timeCostScore = String.valueOf(timeCost);
+
+        CompletableFuture<ShareResult> future;
+        if (redPacketProperties.getBiz().getEncoding() == RedPacketProperties.Encoding.COMPACT) {
+            // 紧凑编码模式下，根据配置决定红包结束时是否随响应一并返回红包结果
+            String inline = redPacketProperties.getShare().isInlineResult() ? "1" : "0";
+            future = this.<List<String>>eval(LuaScriptRegistry.Script.SHARE_COMPACT, ScriptOutputType.MULTI,
+                            keys, userId, encodedTimeCost, redPacketProperties.getBiz().getResultPlaceholder(), inline, timeCostScore)
+                    .thenCompose(reply -> {
+                        if (reply == null || reply.isEmpty()) return CompletableFuture.completedFuture(null);
+                        // 红包已经结束且没有随响应返回红包结果，查询红包结果
+                        if (reply.size() == 1) {
+                            return redPacketResultDao.entries(commands, resultKey).thenApply(map ->
+                                    ShareResult.share(ShareResult.ShareType.FAIL_END, map));
+                        }
+                        return CompletableFuture.completedFuture(RedPacketDao.parseCompactReply(reply, timeCost));
+                    });
+        } else if (redPacketProperties.getShare().isInlineResult()) {
+            // 红包结束时，红包结果随抢红包脚本的响应一并返回，省去一次查询红包结果的网络通信
+            future = this.<List<String>>eval(LuaScriptRegistry.Script.SHARE_INLINE, ScriptOutputType.MULTI,
+                            keys, userId, encodedTimeCost, timeCostScore)
+                    .thenApply(reply -> reply == null || reply.isEmpty() ? null : RedPacketDao.parseInlineReply(reply, timeCost));
+        } else {
+            future = this.<String>eval(LuaScriptRegistry.Script.SHARE, ScriptOutputType.VALUE,
+                            keys, userId, encodedTimeCost, timeCostScore)
+                    .thenCompose(result -> {
+                        if (result == null) return CompletableFuture.completedFuture(null);
+                        if (result.contains("-")) {
+                            // 如果结果为金额耗时格式，表示已经参与过抢红包，解析金额和耗时
+                            int idx = result.indexOf('-');
+                            return CompletableFuture.completedFuture(ShareResult.share(
+                                    ShareResult.ShareType.FAIL_REDO,
+                                    Integer.parseInt(result.substring(0, idx)),
+                                    RedPacketKeyUtil.decodeTimeCost(result.substring(idx + 1))
+                            ));
+                        }
+                        int share = Integer.parseInt(result);
+                        return share == 0 ?
+                                // 如果结果为0，表示抢不到红包或红包结束后的结果查询
+                                redPacketResultDao.entries(commands, resultKey).thenApply(map ->
+                                        ShareResult.share(ShareResult.ShareType.FAIL_END, map))
+                                // 如果结果为正整数，表示抢到红包
+                                : CompletableFuture.completedFuture(
+                                        ShareResult.share(ShareResult.ShareType.SUCCESS_ONGOING, share, timeCost));
+                    });
+        }
+
+        return future.exceptionally(e -> {
+            // 如果超时，结果为空
+            if (e instanceof RedisCommandTimeoutException || e.getCause() instanceof RedisCommandTimeoutException) {
+                return null;
+            }
+            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+        });
+    }
+
+    /**
+     * 通过EVALSHA执行预加载的Lua脚本，如果返回NOSCRIPT错误，则改用EVAL执行
+     * @param script Lua脚本
+     * @param type 脚本返回值类型
+     * @param keys 脚本的KEYS参数
+     * @param args 脚本的ARGV参数
+     * @param <T> 脚本返回值类型
+     * @return 脚本返回值
+     */
+    private <T> CompletableFuture<T> eval(LuaScriptRegistry.Script script, ScriptOutputType type, String[] keys, String... args) {
+        return commands.<T>evalsha(luaScriptRegistry.getSha1(script), type, keys, args)
+                .toCompletableFuture()
+                .exceptionallyCompose(e -> luaScriptRegistry.isNoScriptError(e) ?
+                        commands.<T>eval(luaScriptRegistry.getScriptAsString(script), type, keys, args) :
+                        CompletableFuture.failedStage(e))
+                .toCompletableFuture();
+    }
+}
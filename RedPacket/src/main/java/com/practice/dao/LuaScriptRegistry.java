@@ -0,0 +1,221 @@
+package com.practice.dao;
+
+import com.practice.common.logging.ExtLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Redis Lua脚本注册类<br/>
+ * 启动时读取所有Lua脚本并通过SCRIPT LOAD预加载到Redis脚本缓存，之后通过EVALSHA调用，只传输脚本的SHA1摘要<br/>
+ * 如果Redis脚本缓存被清空（如Redis重启或执行SCRIPT FLUSH），调用时返回NOSCRIPT错误后自动重新加载
+ */
+@Component
+@Profile({"redis-dev", "redis-test", "redis-prod"})
+public class LuaScriptRegistry {
+    private static final ExtLogger log = ExtLogger.create(LuaScriptRegistry.class); // 日志Logger对象
+    @SuppressWarnings("rawtypes")
+    private RedisTemplate redisTemplate;
+    private final EnumMap<Script, DefaultRedisScript<?>> scripts = new EnumMap<>(Script.class); // Lua脚本对应的脚本对象
+
+    @Autowired
+    @SuppressWarnings("rawtypes")
+    private void setRedisTemplate(RedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 读取所有Lua脚本，创建脚本对象，并预先计算SHA1摘要，避免每次调用时重复创建和计算
+        for (Script script : Script.values()) {
+            DefaultRedisScript<?> redisScript = new DefaultRedisScript<>(read(script.path), script.resultType);
+            redisScript.getSha1();
+            scripts.put(script, redisScript);
+        }
+
+        // 预加载到Redis脚本缓存，如果失败，将在首次调用时自动加载
+        try {
+            load();
+        } catch (Exception e) {
+            log.warn("预加载Lua脚本失败，将在首次调用时加载：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 通过SCRIPT LOAD将所有Lua脚本加载到Redis脚本缓存
+     */
+    public void load() {
+        redisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (DefaultRedisScript<?> redisScript : scripts.values()) {
+                String sha1 = connection.scriptingCommands().scriptLoad(
+                        redisScript.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                if (!redisScript.getSha1().equals(sha1)) {
+                    throw new IllegalStateException("Lua脚本SHA1摘要不一致：" + redisScript.getSha1() + " " + sha1);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 执行Lua脚本<br/>
+     * 使用EVALSHA执行，如果返回NOSCRIPT错误，则改用EVAL执行，同时将脚本重新加载到Redis脚本缓存
+     * @param script Lua脚本
+     * @param keys 脚本的KEYS参数
+     * @param args 脚本的ARGV参数
+     * @param <T> 脚本返回值类型
+     * @return 脚本返回值
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(Script script, List<String> keys, Object... args) {
+        return (T) redisTemplate.execute(scripts.get(script), keys, args);
+    }
+
+    /**
+     * 在管道或事务中通过EVALSHA执行Lua脚本，返回值在管道结束时获取
+     * @param connection Redis连接
+     * @param script Lua脚本
+     * @param returnType 脚本返回值类型
+     * @param numKeys 脚本的KEYS参数数量
+     * @param keysAndArgs 脚本的KEYS参数和ARGV参数
+     */
+    public void evalSha(RedisConnection connection, Script script, ReturnType returnType, int numKeys, byte[]... keysAndArgs) {
+        connection.scriptingCommands().evalSha(scripts.get(script).getSha1(), returnType, numKeys, keysAndArgs);
+    }
+
+    /**
+     * 执行包含EVALSHA的管道操作<br/>
+     * 如果返回NOSCRIPT错误，则重新加载所有Lua脚本并重试一次<br/>
+     * 返回NOSCRIPT错误的脚本调用没有被执行，因此管道中的脚本调用应当使用同一个Lua脚本，保证重试时不会重复执行
+     * @param callback 管道操作
+     * @return 管道操作结果
+     */
+    @SuppressWarnings("unchecked")
+    public List<Object> executePipelined(RedisCallback<?> callback) {
+        try {
+            return redisTemplate.executePipelined(callback);
+        } catch (RuntimeException e) {
+            if (!isNoScriptError(e)) throw e;
+            log.warn("Redis脚本缓存中找不到Lua脚本，重新加载");
+            load();
+            return redisTemplate.executePipelined(callback);
+        }
+    }
+
+    /**
+     * 获取Lua脚本的SHA1摘要，用于不经过RedisTemplate的EVALSHA调用
+     * @param script Lua脚本
+     * @return SHA1摘要
+     */
+    public String getSha1(Script script) {
+        return scripts.get(script).getSha1();
+    }
+
+    /**
+     * 获取Lua脚本内容，用于不经过RedisTemplate的EVAL调用
+     * @param script Lua脚本
+     * @return 脚本内容
+     */
+    public String getScriptAsString(Script script) {
+        return scripts.get(script).getScriptAsString();
+    }
+
+    /**
+     * 判断异常是否由NOSCRIPT错误引起
+     * @param e 异常
+     * @return 是否由NOSCRIPT错误引起
+     */
+    boolean isNoScriptError(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 读取Lua脚本
+     * @param path 类路径下的脚本路径
+     * @return 脚本内容
+     */
+    private String read(String path) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                Objects.requireNonNull(this.getClass().getClassLoader().getResourceAsStream(path))))) {
+            char[] chars = new char[512];
+            int len;
+            StringBuilder sb = new StringBuilder();
+            while ((len = br.read(chars)) != -1) {
+                sb.append(chars, 0, len);
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Lua脚本
+     */
+    public enum Script {
+        /**
+         * 抢红包
+         */
+        SHARE("lua/share.lua", String.class),
+        /**
+         * 抢红包，红包结束时在同一次响应中返回红包结果
+         */
+        SHARE_INLINE("lua/share_inline.lua", List.class),
+        /**
+         * 合并模式批量抢红包
+         */
+        SHARE_BATCH("lua/share_batch.lua", List.class),
+        /**
+         * 紧凑编码模式抢红包
+         */
+        SHARE_COMPACT("lua/share_compact.lua", List.class),
+        /**
+         * 紧凑编码模式下合并模式批量抢红包
+         */
+        SHARE_BATCH_COMPACT("lua/share_batch_compact.lua", List.class),
+        /**
+         * 红包结果key设置过期时间
+         */
+        SETTLE("lua/settle.lua", Long.class),
+        /**
+         * 批量结算时为所有红包结果key设置过期时间
+         */
+        SETTLE_BATCH("lua/settle_batch.lua", Long.class),
+        /**
+         * 租约模式领取小红包
+         */
+        LEASE("lua/lease.lua", List.class),
+        /**
+         * 租约模式批量回写抢红包结果
+         */
+        LEASE_RECORD("lua/lease_record.lua", List.class),
+        /**
+         * 租约模式退回未派发的小红包
+         */
+        LEASE_RETURN("lua/lease_return.lua", Long.class);
+
+        private final String path;
+        private final Class<?> resultType;
+
+        Script(String path, Class<?> resultType) {
+            this.path = path;
+            this.resultType = resultType;
+        }
+    }
+}
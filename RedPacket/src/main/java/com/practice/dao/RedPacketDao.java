@@ -1,22 +1,24 @@
 package com.practice.dao;
 
+import com.practice.common.pojo.RedPacketKey;
 import com.practice.common.result.ShareResult;
 import com.practice.common.util.RedPacketKeyUtil;
+import com.practice.common.util.VirtualThreadUtil;
 import com.practice.config.RedPacketProperties;
+import com.practice.metrics.ShareLatencyMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.PostConstruct;
-import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.concurrent.*;
 
 @Repository
@@ -25,8 +27,11 @@ public class RedPacketDao {
     @SuppressWarnings("rawtypes")
     private RedisTemplate redisTemplate;
     private RedPacketProperties redPacketProperties; // 配置参数类
-    private String shareScript; // Redis抢红包Lua脚本
-    private ThreadPoolExecutor pool; // 控制Redis抢红包响应超时的线程池
+    private LuaScriptRegistry luaScriptRegistry; // Redis Lua脚本注册类
+    private RedPacketResultDao redPacketResultDao; // 红包结果数据访问类
+    private RedPacketRankDao redPacketRankDao; // 红包排名数据访问类
+    private ShareLatencyMetrics shareLatencyMetrics; // 参与抢红包各阶段的延迟统计
+    private ExecutorService pool; // 控制Redis抢红包响应超时的线程池
 
     @Autowired
     @SuppressWarnings("rawtypes")
@@ -39,30 +44,36 @@ public class RedPacketDao {
         this.redPacketProperties = redPacketProperties;
     }
 
+    @Autowired
+    private void setLuaScriptRegistry(LuaScriptRegistry luaScriptRegistry) {
+        this.luaScriptRegistry = luaScriptRegistry;
+    }
+
+    @Autowired
+    private void setRedPacketResultDao(RedPacketResultDao redPacketResultDao) {
+        this.redPacketResultDao = redPacketResultDao;
+    }
+
+    @Autowired
+    private void setRedPacketRankDao(RedPacketRankDao redPacketRankDao) {
+        this.redPacketRankDao = redPacketRankDao;
+    }
+
+    @Autowired
+    private void setShareLatencyMetrics(ShareLatencyMetrics shareLatencyMetrics) {
+        this.shareLatencyMetrics = shareLatencyMetrics;
+    }
+
     @PostConstruct
     private void init() {
         // 初始化线程池
-        this.pool = new ThreadPoolExecutor(
+        this.pool = VirtualThreadUtil.newExecutor(redPacketProperties.getThreadMode(), "FutureHandler", () -> new ThreadPoolExecutor(
                 redPacketProperties.getPublish().getMinThreads(),
                 redPacketProperties.getPublish().getMaxThreads(),
                 60L, TimeUnit.SECONDS,
                 new LinkedBlockingQueue<>(),
                 r -> new Thread(r, "FutureHandler")
-        );
-
-        // 初始化Redis抢红包Lua脚本
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                Objects.requireNonNull(this.getClass().getClassLoader().getResourceAsStream("lua/share.lua"))))) {
-            char[] chars = new char[512];
-            int len;
-            StringBuilder sb = new StringBuilder();
-            while ((len = br.read(chars)) != -1) {
-                sb.append(chars, 0, len);
-            }
-            shareScript = sb.toString();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        ));
     }
 
     /**
@@ -71,76 +82,234 @@ public class RedPacketDao {
      * @param shares 大红包拆分后的若干小红包金额，单位为分
      * @param expireTime 红包过期时长，单位为秒
      */
-    @SuppressWarnings({"unchecked", "rawtypes"})
     public void publish(String key, String[] shares, int expireTime) {
         String redPacketKey = redPacketProperties.getBiz().getKeyPrefix() + key;
         String resultKey = redPacketProperties.getBiz().getResultPrefix() + key;
         String resultPlaceholder = redPacketProperties.getBiz().getResultPlaceholder();
 
-        byte[][] bss = new byte[shares.length][];
-        for (int i = 0; i < shares.length; i++) {
+        boolean compact = isCompact();
+        byte[][] bss = compact ? new byte[][]{pack(shares)} : new byte[shares.length][];
+        for (int i = 0; !compact && i < shares.length; i++) {
             bss[i] = shares[i].getBytes(StandardCharsets.UTF_8);
         }
         byte[] redPacketKeyBytes = redPacketKey.getBytes(StandardCharsets.UTF_8);
         byte[] resultKeyBytes = resultKey.getBytes(StandardCharsets.UTF_8);
-        byte[] resultPlaceholderBytes = resultPlaceholder.getBytes(StandardCharsets.UTF_8);
 
+        // 使用占位项预生成红包结果key，保证即使没有用户参与抢红包也能结算退款，同时占用红包key
+        claim(new byte[][]{resultKeyBytes}, resultPlaceholder.getBytes(StandardCharsets.UTF_8));
+
+        try {
+            createRedPacketKey(redPacketKeyBytes, bss, shares.length, expireTime, compact);
+        } catch (RuntimeException e) {
+            // 红包结果key已经被本次调用占用，创建红包key失败时一并移除，避免泄漏或被结算
+            removeResult(key);
+            throw e;
+        }
+    }
+
+    /**
+     * 创建单个红包的红包key，并设置过期时间
+     * @param redPacketKeyBytes 红包key
+     * @param bss 小红包金额，紧凑编码模式下为拼接后的单个字符串
+     * @param shareNum 红包份数
+     * @param expireTime 红包过期时长，单位为秒
+     * @param compact 是否为紧凑编码模式
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void createRedPacketKey(byte[] redPacketKeyBytes, byte[][] bss, int shareNum, int expireTime, boolean compact) {
         // 使用管道操作，合并为单次请求
         // 创建红包key，并设置过期时间
-        // 使用占位项预生成红包结果key，保证即使没有用户参与抢红包也能结算退款
         List list = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
-            // 结果为红包份数
-            connection.listCommands().rPush(redPacketKeyBytes, bss);
+            if (compact) {
+                // 紧凑编码模式下，红包key为所有小红包金额拼接的字符串，结果为真
+                connection.stringCommands().set(redPacketKeyBytes, bss[0]);
+            } else {
+                // 结果为红包份数
+                connection.listCommands().rPush(redPacketKeyBytes, bss);
+            }
             // 结果为真
             connection.expire(redPacketKeyBytes, expireTime);
-            // 结果为真
-            connection.hashCommands().hSet(resultKeyBytes, resultPlaceholderBytes, "0".getBytes(StandardCharsets.UTF_8));
             return null;
         });
 
         // 检查管道操作结果，如果结果有误则抛出异常
-        if (list.size() != 3
-                || (Long) list.get(0) != shares.length
-                || !(Boolean) list.get(1)
-                || !(Boolean) list.get(2)) {
+        if (list.size() != 2
+                || (compact ? !(Boolean) list.get(0) : (Long) list.get(0) != shareNum)
+                || !(Boolean) list.get(1)) {
             throw new RuntimeException();
         }
     }
 
+    /**
+     * 批量发起抢红包<br/>
+     * 所有红包key和红包结果key的创建操作合并为单次管道请求
+     * @param keys 红包key数组
+     * @param shares 每个大红包拆分后的若干小红包金额，单位为分
+     * @param expireTimes 每个红包的过期时长，单位为秒
+     */
+    public void publishBatch(String[] keys, String[][] shares, int[] expireTimes) {
+        String keyPrefix = redPacketProperties.getBiz().getKeyPrefix();
+        String resultPrefix = redPacketProperties.getBiz().getResultPrefix();
+        byte[] resultPlaceholderBytes = redPacketProperties.getBiz().getResultPlaceholder().getBytes(StandardCharsets.UTF_8);
+
+        boolean compact = isCompact();
+        byte[][] redPacketKeyBytes = new byte[keys.length][];
+        byte[][] resultKeyBytes = new byte[keys.length][];
+        byte[][][] bsss = new byte[keys.length][][];
+        for (int i = 0; i < keys.length; i++) {
+            redPacketKeyBytes[i] = (keyPrefix + keys[i]).getBytes(StandardCharsets.UTF_8);
+            resultKeyBytes[i] = (resultPrefix + keys[i]).getBytes(StandardCharsets.UTF_8);
+            if (compact) {
+                bsss[i] = new byte[][]{pack(shares[i])};
+                continue;
+            }
+            bsss[i] = new byte[shares[i].length][];
+            for (int j = 0; j < shares[i].length; j++) {
+                bsss[i][j] = shares[i][j].getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        // 先占用所有红包key，任意红包key重复时不创建任何红包key
+        claim(resultKeyBytes, resultPlaceholderBytes);
+
+        try {
+            createRedPacketKeys(redPacketKeyBytes, bsss, shares, expireTimes, compact);
+        } catch (RuntimeException e) {
+            // 所有红包结果key已经被本次调用占用，创建红包key失败时一并移除，避免泄漏或被结算
+            removeResults(keys);
+            throw e;
+        }
+    }
+
+    /**
+     * 批量创建红包key，并设置过期时间，所有操作合并为单次管道请求
+     * @param redPacketKeyBytes 红包key数组
+     * @param bsss 每个红包的小红包金额，紧凑编码模式下为拼接后的单个字符串
+     * @param shares 每个大红包拆分后的若干小红包金额，用于检查红包份数
+     * @param expireTimes 每个红包的过期时长，单位为秒
+     * @param compact 是否为紧凑编码模式
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void createRedPacketKeys(byte[][] redPacketKeyBytes, byte[][][] bsss, String[][] shares, int[] expireTimes, boolean compact) {
+        // 使用管道操作，合并为单次请求，每个红包的操作与单个发起抢红包相同
+        List list = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < redPacketKeyBytes.length; i++) {
+                if (compact) {
+                    connection.stringCommands().set(redPacketKeyBytes[i], bsss[i][0]);
+                } else {
+                    connection.listCommands().rPush(redPacketKeyBytes[i], bsss[i]);
+                }
+                connection.expire(redPacketKeyBytes[i], expireTimes[i]);
+            }
+            return null;
+        });
+
+        // 检查管道操作结果，如果结果有误则抛出异常
+        if (list.size() != redPacketKeyBytes.length * 2) throw new RuntimeException();
+        for (int i = 0; i < redPacketKeyBytes.length; i++) {
+            if ((compact ? !(Boolean) list.get(i * 2) : (Long) list.get(i * 2) != shares[i].length)
+                    || !(Boolean) list.get(i * 2 + 1)) {
+                throw new RuntimeException();
+            }
+        }
+    }
+
+    /**
+     * 通过HSETNX写入红包结果key的占位项，占用红包key<br/>
+     * 红包结果key在红包结算后仍保留一段时间，如果已经存在，表示红包key与尚未过期的红包重复，
+     * 此时移除本次写入的占位项并抛出异常，不会向已经存在的红包追加小红包
+     * @param resultKeyBytes 红包结果key
+     * @param resultPlaceholderBytes 预生成结果占位项
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void claim(byte[][] resultKeyBytes, byte[] resultPlaceholderBytes) {
+        byte[] zeroBytes = "0".getBytes(StandardCharsets.UTF_8);
+        List list = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[] resultKey : resultKeyBytes) {
+                connection.hashCommands().hSetNX(resultKey, resultPlaceholderBytes, zeroBytes);
+            }
+            return null;
+        });
+
+        if (list.size() != resultKeyBytes.length) throw new RuntimeException();
+        List<byte[]> claimed = new ArrayList<>(resultKeyBytes.length);
+        for (int i = 0; i < resultKeyBytes.length; i++) {
+            if (Boolean.TRUE.equals(list.get(i))) claimed.add(resultKeyBytes[i]);
+        }
+        if (claimed.size() == resultKeyBytes.length) return;
+
+        if (!claimed.isEmpty()) {
+            redisTemplate.execute((RedisCallback<Object>) connection ->
+                    connection.keyCommands().del(claimed.toArray(new byte[0][])));
+        }
+        throw new RuntimeException("红包key重复");
+    }
+
+    /**
+     * 批量移除红包结果key<br/>
+     * 此方法在批量发起抢红包失败时被调用，移除没有过期时间的无效红包结果key，开启排名时一并移除排名key，避免泄漏<br/>
+     * 同时移除红包key，避免用户继续抢红包时重新创建红包结果key，使已经发送的结算消息对从未扣减的金额进行结算
+     * @param keys 红包key数组
+     */
+    @SuppressWarnings("unchecked")
+    public void removeResults(String[] keys) {
+        String keyPrefix = redPacketProperties.getBiz().getKeyPrefix();
+        String resultPrefix = redPacketProperties.getBiz().getResultPrefix();
+        List<String> resultKeys = new ArrayList<>(keys.length * 4);
+        for (String key : keys) {
+            resultKeys.add(keyPrefix + key);
+            resultKeys.add(resultPrefix + key);
+            resultKeys.addAll(redPacketRankDao.rankKeys(key));
+        }
+        redisTemplate.delete(resultKeys);
+    }
+
     /**
      * 参与抢红包
-     * @param key 红包key
+     * @param parsedKey 解析后的红包key
      * @param userId 用户ID
      * @return 抢红包结果
      */
     @Nullable
     @SuppressWarnings("unchecked")
-    public ShareResult share(String key, String userId) {
-        String redPacketKey = redPacketProperties.getBiz().getKeyPrefix() + key;
-        String resultKey = redPacketProperties.getBiz().getResultPrefix() + key;
+    public ShareResult share(RedPacketKey parsedKey, String userId) {
+        // 红包key、红包结果key，开启排名时还包括金额排名key和耗时排名key
+        List<String> keys = redPacketRankDao.shareKeys(parsedKey.getPayload());
+        String resultKey = keys.get(1);
 
         // 从红包key中提取发起时间，计算抢到红包的耗时
-        long timeCost = System.currentTimeMillis() - RedPacketKeyUtil.parseTimestamp(key);
+        long timeCost = System.currentTimeMillis() - parsedKey.getTimestamp();
         // 对进行抢红包耗时进行编码
         String encodedTimeCost = RedPacketKeyUtil.encodeTimeCost(timeCost);
+        // 十进制的抢红包耗时，开启排名时直接用作耗时排名的分数，脚本中不需要再解码
+        String timeCostScore = String.valueOf(timeCost);
 
-        // 通过Future进行响应超时控制，防止长时间等待造成锁阻塞
-        FutureTask<String> future = new FutureTask<>(() ->
-                (String) redisTemplate.execute(new DefaultRedisScript<>(shareScript, String.class),
-                        Arrays.asList(redPacketKey, resultKey), userId, encodedTimeCost));
-        pool.submit(future);
+        if (isCompact()) {
+            // 紧凑编码模式下，根据配置决定红包结束时是否随响应一并返回红包结果
+            String inline = redPacketProperties.getShare().isInlineResult() ? "1" : "0";
+            List<String> reply = await(() ->
+                    luaScriptRegistry.execute(LuaScriptRegistry.Script.SHARE_COMPACT,
+                            keys, userId, encodedTimeCost,
+                            redPacketProperties.getBiz().getResultPlaceholder(), inline, timeCostScore));
+            if (reply == null || reply.isEmpty()) return null;
+            // 红包已经结束且没有随响应返回红包结果，查询红包结果
+            if (reply.size() == 1) return ShareResult.share(ShareResult.ShareType.FAIL_END, readResult(resultKey));
+            return parseCompactReply(reply, timeCost);
+        }
 
-        String result;
-        try {
-            result = future.get(redPacketProperties.getShare().getTimeout(), TimeUnit.MILLISECONDS);
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
-        } catch (TimeoutException e) {
-            // 如果超时，直接返回空
-            future.cancel(true);
-            return null;
+        if (redPacketProperties.getShare().isInlineResult()) {
+            // 红包结束时，红包结果随抢红包脚本的响应一并返回，省去一次查询红包结果的网络通信
+            List<String> reply = await(() ->
+                    luaScriptRegistry.execute(LuaScriptRegistry.Script.SHARE_INLINE,
+                            keys, userId, encodedTimeCost, timeCostScore));
+            return reply == null || reply.isEmpty() ? null : parseInlineReply(reply, timeCost);
         }
 
+        // 通过EVALSHA执行预加载的Lua脚本
+        String result = await(() ->
+                luaScriptRegistry.execute(LuaScriptRegistry.Script.SHARE,
+                        keys, userId, encodedTimeCost, timeCostScore));
+
         if (result == null) return null;
         if (result.contains("-")) {
             // 如果结果为金额耗时格式，表示已经参与过抢红包，解析金额和耗时
@@ -157,21 +326,132 @@ public class RedPacketDao {
                     ShareResult.share(
                             ShareResult.ShareType.FAIL_END,
                             // 查询红包结果
-                            redisTemplate.opsForHash().entries(resultKey)
+                            readResult(resultKey)
                     )
                     // 如果结果为正整数，表示抢到红包
                     : ShareResult.share(ShareResult.ShareType.SUCCESS_ONGOING, share, timeCost);
         }
     }
 
+    /**
+     * 通过Future进行响应超时控制，防止长时间等待造成锁阻塞
+     * @param callable Redis操作
+     * @param <T> 操作结果类型
+     * @return 操作结果，如果超时则返回空
+     */
+    @Nullable
+    private <T> T await(Callable<T> callable) {
+        long start = shareLatencyMetrics.start();
+        FutureTask<T> future = new FutureTask<>(callable);
+        pool.submit(future);
+
+        try {
+            return future.get(redPacketProperties.getShare().getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            // 如果超时，直接返回空
+            future.cancel(true);
+            return null;
+        } finally {
+            shareLatencyMetrics.record(ShareLatencyMetrics.Stage.REDIS_EVAL, start);
+        }
+    }
+
+    /**
+     * 红包结束后读取红包结果，并统计读取耗时
+     * @param resultKey 红包结果key
+     * @return 红包结果
+     */
+    private Map<String, Object> readResult(String resultKey) {
+        long start = shareLatencyMetrics.start();
+        try {
+            return redPacketResultDao.entries(resultKey);
+        } finally {
+            shareLatencyMetrics.record(ShareLatencyMetrics.Stage.RESULT_READ, start);
+        }
+    }
+
+    /**
+     * 解析单次通信抢红包脚本的响应<br/>
+     * 响应首项为标识，0表示红包已经结束，后续各项为成对出现的红包结果的用户ID和金额耗时；
+     * 1表示抢到红包，第二项为金额；2表示已经参与过抢红包，第二项为金额耗时
+     * @param reply 脚本响应
+     * @param timeCost 抢红包耗时
+     * @return 抢红包结果
+     */
+    static ShareResult parseInlineReply(List<String> reply, long timeCost) {
+        switch (reply.get(0)) {
+            case "0": {
+                // 红包已经结束，将扁平化的红包结果还原为映射
+                Map<String, Object> map = new HashMap<>((reply.size() >> 1) * 4 / 3 + 1);
+                for (int i = 1; i + 1 < reply.size(); i += 2) {
+                    map.put(reply.get(i), reply.get(i + 1));
+                }
+                return ShareResult.share(ShareResult.ShareType.FAIL_END, map);
+            }
+            case "2": {
+                // 已经参与过抢红包，解析金额和耗时
+                String entry = reply.get(1);
+                return ShareResult.share(
+                        ShareResult.ShareType.FAIL_REDO,
+                        RedPacketKeyUtil.parseShare(entry),
+                        RedPacketKeyUtil.parseTimeCost(entry)
+                );
+            }
+            default:
+                // 抢到红包
+                return ShareResult.share(ShareResult.ShareType.SUCCESS_ONGOING, Integer.parseInt(reply.get(1)), timeCost);
+        }
+    }
+
+    /**
+     * 解析紧凑编码模式抢红包脚本的响应<br/>
+     * 响应格式与单次通信抢红包脚本相同，抢到红包时第二项为编码后的金额
+     * @param reply 脚本响应
+     * @param timeCost 抢红包耗时
+     * @return 抢红包结果
+     */
+    static ShareResult parseCompactReply(List<String> reply, long timeCost) {
+        if ("1".equals(reply.get(0))) {
+            return ShareResult.share(ShareResult.ShareType.SUCCESS_ONGOING, RedPacketKeyUtil.decodeShare(reply.get(1)), timeCost);
+        }
+        return parseInlineReply(reply, timeCost);
+    }
+
+    /**
+     * 是否使用紧凑编码
+     * @return 是否使用紧凑编码
+     */
+    boolean isCompact() {
+        return redPacketProperties.getBiz().getEncoding() == RedPacketProperties.Encoding.COMPACT;
+    }
+
+    /**
+     * 将所有小红包金额按固定宽度编码后拼接
+     * @param shares 小红包金额，十进制字符串
+     * @return 拼接后的字节数组
+     */
+    private static byte[] pack(String[] shares) {
+        StringBuilder sb = new StringBuilder(shares.length * RedPacketKeyUtil.SHARE_CHARS);
+        for (String share : shares) {
+            sb.append(RedPacketKeyUtil.encodeShare(Integer.parseInt(share)));
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
     /**
      * 移除红包结果key<br/>
-     * 此方法在消息发送失败时被调用，移除没有过期时间的无效红包结果key，避免泄漏
+     * 此方法在发起抢红包失败时被调用，移除没有过期时间的无效红包结果key，开启排名时一并移除排名key，避免泄漏<br/>
+     * 同时移除红包key，避免用户继续抢红包时重新创建红包结果key，使已经发送的结算消息对从未扣减的金额进行结算
      * @param key 红包key
      */
     @SuppressWarnings("unchecked")
     public void removeResult(String key) {
-        String resultKey = redPacketProperties.getBiz().getResultPrefix() + key;
-        redisTemplate.delete(resultKey);
+        List<String> keys = new ArrayList<>(4);
+        keys.add(redPacketProperties.getBiz().getKeyPrefix() + key);
+        keys.add(redPacketProperties.getBiz().getResultPrefix() + key);
+        keys.addAll(redPacketRankDao.rankKeys(key));
+        redisTemplate.delete(keys);
     }
 }
@@ -0,0 +1,145 @@
+package com.practice.dao;
+
+import com.practice.common.pojo.CachedResult;
+import com.practice.common.result.RankResult;
+import com.practice.config.RedPacketProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Repository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 红包排名数据访问类<br/>
+ * 开启后，抢红包脚本在用户抢到红包的同时将其加入红包对应的金额和耗时有序集合，排名随抢红包增量维护<br/>
+ * 红包进行中和结束后都可以通过一次ZREVRANGE或ZRANGE获取前若干名，红包结果写入本地缓存时也不需要重新排序<br/>
+ * 有序集合在结算时与红包结果key一起设置过期时间
+ */
+@Repository
+@Profile({"redis-dev", "redis-test", "redis-prod"})
+public class RedPacketRankDao {
+    @SuppressWarnings("rawtypes")
+    private RedisTemplate redisTemplate;
+    private RedPacketProperties redPacketProperties; // 配置参数类
+
+    @Autowired
+    @SuppressWarnings("rawtypes")
+    private void setRedisTemplate(RedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @Autowired
+    private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
+        this.redPacketProperties = redPacketProperties;
+    }
+
+    /**
+     * 是否在Redis中维护排名
+     * @return 是否在Redis中维护排名
+     */
+    public boolean isEnabled() {
+        return redPacketProperties.getBiz().isRedisRank();
+    }
+
+    /**
+     * 获取抢红包脚本的KEYS参数<br/>
+     * 依次为红包key、红包结果key，开启排名时追加金额排名key和耗时排名key，抢红包脚本根据KEYS数量决定是否维护排名
+     * @param key 红包key
+     * @return 抢红包脚本的KEYS参数
+     */
+    public List<String> shareKeys(String key) {
+        RedPacketProperties.Biz biz = redPacketProperties.getBiz();
+        List<String> keys = new ArrayList<>(4);
+        keys.add(biz.getKeyPrefix() + key);
+        keys.add(biz.getResultPrefix() + key);
+        keys.addAll(rankKeys(key));
+        return keys;
+    }
+
+    /**
+     * 获取排名key，结算时与红包结果key一起设置过期时间
+     * @param key 红包key
+     * @return 金额排名key和耗时排名key，未开启排名时为空列表
+     */
+    public List<String> rankKeys(String key) {
+        if (!isEnabled()) return Collections.emptyList();
+        RedPacketProperties.Biz biz = redPacketProperties.getBiz();
+        return List.of(biz.getShareRankPrefix() + key, biz.getTimeCostRankPrefix() + key);
+    }
+
+    /**
+     * 为写入本地缓存的红包结果附加排名，通过单次管道请求读取两个排名的前若干名
+     * @param key 红包key
+     * @param mapResult 红包结果
+     * @return 带有排名的红包结果
+     */
+    @SuppressWarnings("unchecked")
+    public CachedResult rank(String key, CachedResult mapResult) {
+        List<String> rankKeys = rankKeys(key);
+        byte[] shareRankKeyBytes = rankKeys.get(0).getBytes(StandardCharsets.UTF_8);
+        byte[] timeCostRankKeyBytes = rankKeys.get(1).getBytes(StandardCharsets.UTF_8);
+        RedPacketProperties.Biz biz = redPacketProperties.getBiz();
+        List<Object> list = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            // 金额越大排名越高，耗时越短排名越高
+            connection.zSetCommands().zRevRange(shareRankKeyBytes, 0, biz.getShareRankNum() - 1);
+            connection.zSetCommands().zRange(timeCostRankKeyBytes, 0, biz.getTimeCostRankNum() - 1);
+            return null;
+        });
+
+        // 生成与红包结果对齐的排名数组，未进入排名的用户项为-1
+        return mapResult.withRanks(
+                ranks(mapResult, (Collection<String>) list.get(0)),
+                ranks(mapResult, (Collection<String>) list.get(1))
+        );
+    }
+
+    /**
+     * 查询红包当前的金额排名和耗时排名，红包进行中也可以查询
+     * @param key 红包key
+     * @return 排名结果
+     */
+    @SuppressWarnings("unchecked")
+    public RankResult top(String key) {
+        List<String> rankKeys = rankKeys(key);
+        byte[] shareRankKeyBytes = rankKeys.get(0).getBytes(StandardCharsets.UTF_8);
+        byte[] timeCostRankKeyBytes = rankKeys.get(1).getBytes(StandardCharsets.UTF_8);
+        RedPacketProperties.Biz biz = redPacketProperties.getBiz();
+        List<Object> list = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zRevRangeWithScores(shareRankKeyBytes, 0, biz.getShareRankNum() - 1);
+            connection.zSetCommands().zRangeWithScores(timeCostRankKeyBytes, 0, biz.getTimeCostRankNum() - 1);
+            return null;
+        });
+
+        Map<String, Integer> shareRank = new LinkedHashMap<>();
+        for (ZSetOperations.TypedTuple<String> tuple : (Collection<ZSetOperations.TypedTuple<String>>) list.get(0)) {
+            shareRank.put(tuple.getValue(), Objects.requireNonNull(tuple.getScore()).intValue());
+        }
+        Map<String, Long> timeCostRank = new LinkedHashMap<>();
+        for (ZSetOperations.TypedTuple<String> tuple : (Collection<ZSetOperations.TypedTuple<String>>) list.get(1)) {
+            timeCostRank.put(tuple.getValue(), Objects.requireNonNull(tuple.getScore()).longValue());
+        }
+        return RankResult.of(shareRank, timeCostRank);
+    }
+
+    /**
+     * 将按排名排序的用户ID转换为与红包结果对齐的排名数组
+     * @param mapResult 红包结果
+     * @param userIds 按排名排序的用户ID
+     * @return 排名数组，未进入排名的用户项为-1
+     */
+    private static int[] ranks(CachedResult mapResult, Collection<String> userIds) {
+        int[] ranks = new int[mapResult.size()];
+        Arrays.fill(ranks, -1);
+        int rank = 0;
+        for (String userId : userIds) {
+            int i = mapResult.indexOf(userId);
+            if (i >= 0) ranks[i] = rank;
+            rank++;
+        }
+        return ranks;
+    }
+}
@@ -0,0 +1,103 @@
+package com.practice.dao;
+
+import com.practice.config.RedPacketProperties;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.api.async.RedisHashAsyncCommands;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.stereotype.Repository;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 红包结果数据访问类<br/>
+ * 红包份数较多时，HGETALL需要在一次响应中返回整个红包结果，期间阻塞Redis的事件循环，影响共用Redis的其他请求<br/>
+ * 设置单次读取数量后，改为通过多次HSCAN增量读取，每次只返回一部分红包结果，并逐批写入结果映射
+ */
+@Repository
+@Profile({"redis-dev", "redis-test", "redis-prod"})
+public class RedPacketResultDao {
+    @SuppressWarnings("rawtypes")
+    private RedisTemplate redisTemplate;
+    private RedPacketProperties redPacketProperties; // 配置参数类
+
+    @Autowired
+    @SuppressWarnings("rawtypes")
+    private void setRedisTemplate(RedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @Autowired
+    private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
+        this.redPacketProperties = redPacketProperties;
+    }
+
+    /**
+     * 是否通过HSCAN增量读取红包结果
+     * @return 是否增量读取
+     */
+    public boolean isScan() {
+        return redPacketProperties.getBiz().getResultScanCount() > 0;
+    }
+
+    /**
+     * 读取红包结果
+     * @param resultKey 红包结果key
+     * @param <V> 结果映射的值类型，实际为字符串
+     * @return 红包结果，红包结果key不存在时为空映射
+     */
+    @SuppressWarnings("unchecked")
+    public <V> Map<String, V> entries(String resultKey) {
+        if (!isScan()) return redisTemplate.opsForHash().entries(resultKey);
+
+        Map<String, V> map = new HashMap<>();
+        ScanOptions options = ScanOptions.scanOptions().count(redPacketProperties.getBiz().getResultScanCount()).build();
+        // 游标每次耗尽当前批次后才发送下一次HSCAN请求，HSCAN可能返回重复的项，写入映射时自然去重
+        try (Cursor<Map.Entry<String, V>> cursor = redisTemplate.opsForHash().scan(resultKey, options)) {
+            while (cursor.hasNext()) {
+                Map.Entry<String, V> entry = cursor.next();
+                map.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return map;
+    }
+
+    /**
+     * 通过Lettuce异步API读取红包结果
+     * @param commands Lettuce异步命令接口
+     * @param resultKey 红包结果key
+     * @return 红包结果，红包结果key不存在时为空映射
+     */
+    public CompletableFuture<Map<String, Object>> entries(RedisHashAsyncCommands<String, String> commands, String resultKey) {
+        if (!isScan()) {
+            return commands.hgetall(resultKey).toCompletableFuture().<Map<String, Object>>thenApply(HashMap::new);
+        }
+        ScanArgs args = ScanArgs.Builder.limit(redPacketProperties.getBiz().getResultScanCount());
+        return scan(commands, resultKey, ScanCursor.INITIAL, args, new HashMap<>());
+    }
+
+    /**
+     * 从指定游标开始异步执行HSCAN，直到游标结束
+     * @param commands Lettuce异步命令接口
+     * @param resultKey 红包结果key
+     * @param cursor 游标
+     * @param args HSCAN参数
+     * @param map 已经读取的红包结果
+     * @return 红包结果
+     */
+    private CompletableFuture<Map<String, Object>> scan(RedisHashAsyncCommands<String, String> commands, String resultKey,
+                                                       ScanCursor cursor, ScanArgs args, Map<String, Object> map) {
+        return commands.hscan(resultKey, cursor, args).toCompletableFuture().thenCompose(next -> {
+            map.putAll(next.getMap());
+            return next.isFinished() ?
+                    CompletableFuture.completedFuture(map) :
+                    scan(commands, resultKey, next, args, map);
+        });
+    }
+}
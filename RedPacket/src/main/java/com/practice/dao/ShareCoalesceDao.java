@@ -0,0 +1,225 @@
+package com.practice.dao;
+
+import com.practice.common.pojo.RedPacketKey;
+import com.practice.common.result.ShareResult;
+import com.practice.common.util.RedPacketKeyUtil;
+import com.practice.config.RedPacketProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 合并模式抢红包数据访问类<br/>
+ * 在短暂的时间窗口内收集同一个红包的并发抢红包请求，合并为一次Lua脚本调用，批量派发小红包，再将各用户的结果分别返回<br/>
+ * 红包被集中抢夺时，可以将多次Redis网络通信合并为一次，且不改变抢红包的语义
+ */
+@Repository
+@Profile({"biz-dev", "biz-test" ,"biz-prod"})
+@ConditionalOnProperty(value = "red-packet.share.mode", havingValue = "coalesce")
+public class ShareCoalesceDao {
+    private RedPacketProperties redPacketProperties; // 配置参数类
+    private LuaScriptRegistry luaScriptRegistry; // Redis Lua脚本注册类
+    private RedPacketResultDao redPacketResultDao; // 红包结果数据访问类
+    private RedPacketRankDao redPacketRankDao; // 红包排名数据访问类
+    private ScheduledExecutorService scheduler; // 在时间窗口结束或批次已满时执行批量抢红包的线程池
+    private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<>(); // 红包key对应的正在收集请求的批次
+
+    @Autowired
+    private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
+        this.redPacketProperties = redPacketProperties;
+    }
+
+    @Autowired
+    private void setLuaScriptRegistry(LuaScriptRegistry luaScriptRegistry) {
+        this.luaScriptRegistry = luaScriptRegistry;
+    }
+
+    @Autowired
+    private void setRedPacketResultDao(RedPacketResultDao redPacketResultDao) {
+        this.redPacketResultDao = redPacketResultDao;
+    }
+
+    @Autowired
+    private void setRedPacketRankDao(RedPacketRankDao redPacketRankDao) {
+        this.redPacketRankDao = redPacketRankDao;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 初始化线程池
+        this.scheduler = Executors.newScheduledThreadPool(
+                redPacketProperties.getShare().getMinThreads(),
+                r -> new Thread(r, "CoalesceHandler")
+        );
+    }
+
+    /**
+     * 参与抢红包<br/>
+     * 将请求加入红包key对应的批次，等待批量抢红包的结果
+     * @param parsedKey 解析后的红包key
+     * @param userId 用户ID
+     * @return 抢红包结果
+     */
+    @Nullable
+    public ShareResult share(RedPacketKey parsedKey, String userId) {
+        String key = parsedKey.getPayload();
+        // 从红包key中提取发起时间，计算抢到红包的耗时
+        long timeCost = System.currentTimeMillis() - parsedKey.getTimestamp();
+        Request request = new Request(userId, timeCost);
+
+        // 加入批次，如果批次已经关闭，则创建新的批次
+        // 批次的创建者负责在时间窗口结束时执行批量抢红包，使批次满员的请求负责立即执行批量抢红包
+        int batchSize = redPacketProperties.getShare().getCoalesceBatchSize();
+        while (true) {
+            Batch created = new Batch(key);
+            Batch batch = batches.putIfAbsent(key, created);
+            if (batch == null) batch = created;
+            int size = batch.add(request, batchSize);
+            if (size < 0) {
+                // 批次已经关闭，移除后重试
+                batches.remove(key, batch);
+                continue;
+            }
+            if (size == batchSize) {
+                Batch full = batch;
+                scheduler.execute(() -> flush(full));
+            } else if (batch == created) {
+                Batch timed = batch;
+                scheduler.schedule(() -> flush(timed),
+                        redPacketProperties.getShare().getCoalesceWindow(), TimeUnit.MICROSECONDS);
+            }
+            break;
+        }
+
+        // 通过Future进行响应超时控制，防止长时间等待造成锁阻塞
+        try {
+            return request.future.get(redPacketProperties.getShare().getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            // 如果超时，直接返回空
+            return null;
+        }
+    }
+
+    /**
+     * 执行批量抢红包，并将各用户的结果分别返回<br/>
+     * 同一批次可能同时由时间窗口和批次满员触发，只有首次关闭批次的调用会执行
+     * @param batch 批次
+     */
+    @SuppressWarnings("unchecked")
+    private void flush(Batch batch) {
+        List<Request> requests = batch.close();
+        if (requests == null) return;
+        batches.remove(batch.key, batch);
+
+        // 红包key、红包结果key，开启排名时还包括金额排名key和耗时排名key
+        List<String> keys = redPacketRankDao.shareKeys(batch.key);
+        String resultKey = keys.get(1);
+        // 紧凑编码模式下，脚本参数首项为红包结果key占位项，之后每个用户依次为用户ID、编码后的耗时和十进制的耗时
+        boolean compact = redPacketProperties.getBiz().getEncoding() == RedPacketProperties.Encoding.COMPACT;
+        int offset = compact ? 1 : 0;
+        Object[] args = new Object[requests.size() * 3 + offset];
+        if (compact) args[0] = redPacketProperties.getBiz().getResultPlaceholder();
+        for (int i = 0; i < requests.size(); i++) {
+            Request request = requests.get(i);
+            int j = i * 3 + offset;
+            args[j] = request.userId;
+            // 对进行抢红包耗时进行编码
+            args[j + 1] = RedPacketKeyUtil.encodeTimeCost(request.timeCost);
+            // 十进制的耗时，开启排名时直接用作耗时排名的分数
+            args[j + 2] = String.valueOf(request.timeCost);
+        }
+
+        try {
+            List<String> results = luaScriptRegistry.execute(compact ?
+                            LuaScriptRegistry.Script.SHARE_BATCH_COMPACT : LuaScriptRegistry.Script.SHARE_BATCH,
+                    keys, args);
+            // 红包结果只在批次中有用户抢不到红包时查询一次，由各用户共享
+            Map<String, Object> mapResult = null;
+            for (int i = 0; i < requests.size(); i++) {
+                Request request = requests.get(i);
+                String result = results.get(i);
+                if (compact ? result.length() > RedPacketKeyUtil.SHARE_CHARS : result.contains("-")) {
+                    // 如果结果为金额耗时格式，表示已经参与过抢红包，解析金额和耗时
+                    request.future.complete(ShareResult.share(
+                            ShareResult.ShareType.FAIL_REDO,
+                            RedPacketKeyUtil.parseShare(result),
+                            RedPacketKeyUtil.parseTimeCost(result)
+                    ));
+                } else {
+                    int share = compact && result.length() == RedPacketKeyUtil.SHARE_CHARS ?
+                            RedPacketKeyUtil.decodeShare(result) : Integer.parseInt(result);
+                    if (share == 0) {
+                        // 如果结果为0，表示抢不到红包或红包结束后的结果查询
+                        if (mapResult == null) mapResult = redPacketResultDao.entries(resultKey);
+                        // 红包结果原始信息在写入本地缓存时只被读取，因此各用户共享同一份
+                        request.future.complete(ShareResult.share(ShareResult.ShareType.FAIL_END, mapResult));
+                    } else {
+                        // 如果结果为正整数，表示抢到红包
+                        request.future.complete(ShareResult.share(ShareResult.ShareType.SUCCESS_ONGOING, share, request.timeCost));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            for (Request request : requests) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 红包key对应的一批抢红包请求
+     */
+    private static class Batch {
+        private final String key; // 红包key
+        private List<Request> requests = new ArrayList<>(); // 收集的请求，为空表示批次已经关闭
+
+        private Batch(String key) {
+            this.key = key;
+        }
+
+        /**
+         * 加入请求
+         * @param request 请求
+         * @param batchSize 批次容量
+         * @return 加入后的请求数量，如果批次已经关闭或已满，则返回-1
+         */
+        private synchronized int add(Request request, int batchSize) {
+            if (requests == null || requests.size() >= batchSize) return -1;
+            requests.add(request);
+            return requests.size();
+        }
+
+        /**
+         * 关闭批次，之后不能再加入请求
+         * @return 收集的请求，如果批次已经关闭，则返回空
+         */
+        @Nullable
+        private synchronized List<Request> close() {
+            List<Request> list = requests;
+            requests = null;
+            return list;
+        }
+    }
+
+    /**
+     * 单个用户的抢红包请求
+     */
+    private static class Request {
+        private final String userId; // 用户ID
+        private final long timeCost; // 抢红包耗时
+        private final CompletableFuture<ShareResult> future = new CompletableFuture<>(); // 抢红包结果
+
+        private Request(String userId, long timeCost) {
+            this.userId = userId;
+            this.timeCost = timeCost;
+        }
+    }
+}
@@ -0,0 +1,581 @@
+package com.practice.dao;
+
+import com.practice.common.logging.ExtLogger;
+import com.practice.common.pojo.RedPacketKey;
+import com.practice.common.result.ShareResult;
+import com.practice.common.util.RedPacketKeyUtil;
+import com.practice.config.RedPacketProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 租约模式抢红包数据访问类<br/>
+ * 各节点从Redis批量领取预先拆分的小红包，在本地派发给用户，并将抢红包结果批量回写Redis<br/>
+ * 超过租约时长未派发的小红包将退回Redis，供其他节点领取
+ */
+@Repository
+@Profile({"biz-dev", "biz-test" ,"biz-prod"})
+@ConditionalOnProperty(value = "red-packet.share.mode", havingValue = "lease")
+public class ShareLeaseDao {
+    private static final ExtLogger log = ExtLogger.create(ShareLeaseDao.class); // 日志Logger对象
+    /**
+     * 单次回写的抢红包结果数量上限
+     */
+    private static final int MAX_RECORDS_PER_FLUSH = 1024;
+    private RedPacketProperties redPacketProperties; // 配置参数类
+    private LuaScriptRegistry luaScriptRegistry; // Redis Lua脚本注册类
+    private RedPacketResultDao redPacketResultDao; // 红包结果数据访问类
+    private ThreadPoolExecutor pool; // 控制Redis领取小红包响应超时的线程池
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>(); // 红包key对应的本地租约
+    private final LinkedBlockingQueue<Record> records = new LinkedBlockingQueue<>(); // 等待回写的抢红包结果
+    private final String ackToken = UUID.randomUUID().toString(); // 本节点的回执标识，区分不同节点的回执项
+    private long ackSequence = 0; // 回执序号，只在回写线程中访问
+
+    @Autowired
+    private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
+        this.redPacketProperties = redPacketProperties;
+    }
+
+    @Autowired
+    private void setLuaScriptRegistry(LuaScriptRegistry luaScriptRegistry) {
+        this.luaScriptRegistry = luaScriptRegistry;
+    }
+
+    @Autowired
+    private void setRedPacketResultDao(RedPacketResultDao redPacketResultDao) {
+        this.redPacketResultDao = redPacketResultDao;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 初始化线程池
+        this.pool = new ThreadPoolExecutor(
+                redPacketProperties.getShare().getMinThreads(),
+                redPacketProperties.getShare().getMaxThreads(),
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "LeaseHandler")
+        );
+
+        // 回写线程，在上一批结果回写期间到达的结果将合并为下一批，不引入额外的等待时间
+        Thread flusher = new Thread(this::flush, "LeaseFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        // 清理线程，定期退回过期租约中未派发的小红包，并清理已经过期的红包的租约
+        int leaseTime = redPacketProperties.getShare().getLeaseTime();
+        Executors.newScheduledThreadPool(1, r -> new Thread(r, "LeaseCleaner"))
+                .scheduleWithFixedDelay(this::clean, leaseTime, leaseTime, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 红包是否已经确认结束<br/>
+     * 用于判断是否需要竞争锁访问Redis回写本地缓存
+     * @param key 红包key
+     * @return 红包是否已经确认结束
+     */
+    public boolean isFinished(String key) {
+        Lease lease = leases.get(key);
+        return lease != null && lease.finished;
+    }
+
+    /**
+     * 参与抢红包
+     * @param parsedKey 解析后的红包key
+     * @param userId 用户ID
+     * @return 抢红包结果
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public ShareResult share(RedPacketKey parsedKey, String userId) {
+        String key = parsedKey.getPayload();
+        String resultKey = redPacketProperties.getBiz().getResultPrefix() + key;
+
+        // 从红包key中提取发起时间，计算抢到红包的耗时
+        long timestamp = parsedKey.getTimestamp();
+        long timeCost = System.currentTimeMillis() - timestamp;
+        // 对进行抢红包耗时进行编码
+        String encodedTimeCost = RedPacketKeyUtil.encodeTimeCost(timeCost);
+
+        Lease lease;
+        String share;
+        while (true) {
+            lease = leases.computeIfAbsent(key, k -> new Lease(timestamp + parsedKey.getExpireTime() * 1000L));
+            // 优先从本地租约中无锁获取小红包
+            if ((share = lease.poll()) != null) break;
+            // 使用可重入锁而不是对象监视器，避免虚拟线程在访问Redis期间被固定在载体线程上
+            lease.lock.lock();
+            try {
+                // 如果租约已经被清理，则重新获取租约
+                if (lease.removed) continue;
+                if ((share = lease.poll()) == null) {
+                    // 先退回过期租约中未派发的小红包，再重新领取
+                    returnShares(key, lease.drain());
+                    List<String> reply = acquire(key, userId);
+                    // 如果返回结果为空，表明请求超时，直接返回空
+                    if (reply == null || reply.isEmpty()) return null;
+                    switch (reply.get(0)) {
+                        case "0" -> {
+                            // 红包已经结束，查询红包结果
+                            lease.finished = true;
+                            return ShareResult.share(ShareResult.ShareType.FAIL_END, redPacketResultDao.entries(resultKey));
+                        }
+                        // 其他节点仍持有未派发的小红包，返回空，进入下一轮循环重试
+                        case "1" -> {
+                            return null;
+                        }
+                        // 已经参与过抢红包，解析金额和耗时
+                        case "2" -> {
+                            return redo(reply.get(1));
+                        }
+                        default -> {
+                            lease.renew(reply.subList(1, reply.size()), redPacketProperties.getShare().getLeaseTime());
+                            if ((share = lease.poll()) == null) return null;
+                        }
+                    }
+                }
+            } finally {
+                lease.lock.unlock();
+            }
+            break;
+        }
+
+        // 提交回写，等待本批次回写完成
+        Record record = new Record(key, userId, share, share + "-" + encodedTimeCost, lease);
+        records.offer(record);
+        String result;
+        try {
+            result = record.future.get(redPacketProperties.getShare().getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            // 如果超时，直接返回空，回写结果由回写线程处理
+            return null;
+        }
+
+        // 如果回写失败，直接返回空
+        if (result == null) return null;
+        return switch (result) {
+            // 回写成功，表示抢到红包
+            case "1" -> ShareResult.share(ShareResult.ShareType.SUCCESS_ONGOING, Integer.parseInt(share), timeCost);
+            // 红包已经结束，查询红包结果
+            case "0" -> {
+                lease.finished = true;
+                yield ShareResult.share(ShareResult.ShareType.FAIL_END, redPacketResultDao.entries(resultKey));
+            }
+            // 已经在其他节点参与过抢红包，解析金额和耗时
+            default -> redo(result);
+        };
+    }
+
+    /**
+     * 从Redis领取小红包
+     * @param key 红包key
+     * @param userId 用户ID
+     * @return 领取结果，首项为标识，0表示红包已经结束，1表示其他节点仍持有未派发的小红包，2表示已经参与过抢红包，3表示领取成功
+     */
+    @Nullable
+    private List<String> acquire(String key, String userId) {
+        String redPacketKey = redPacketProperties.getBiz().getKeyPrefix() + key;
+        String resultKey = redPacketProperties.getBiz().getResultPrefix() + key;
+        String leaseKey = redPacketProperties.getBiz().getLeasePrefix() + key;
+
+        // 通过Future进行响应超时控制，防止长时间等待造成锁阻塞
+        FutureTask<List<String>> future = new FutureTask<>(() ->
+                luaScriptRegistry.execute(LuaScriptRegistry.Script.LEASE,
+                        Arrays.asList(redPacketKey, resultKey, leaseKey),
+                        userId, String.valueOf(redPacketProperties.getShare().getLeaseBatchSize())));
+        pool.submit(future);
+
+        try {
+            return future.get(redPacketProperties.getShare().getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            // 如果超时，直接返回空
+            future.cancel(true);
+            return null;
+        }
+    }
+
+    /**
+     * 将未派发的小红包退回Redis
+     * @param key 红包key
+     * @param shares 小红包金额
+     * @return 是否退回成功
+     */
+    private boolean returnShares(String key, List<String> shares) {
+        if (shares.isEmpty()) return true;
+        String redPacketKey = redPacketProperties.getBiz().getKeyPrefix() + key;
+        String leaseKey = redPacketProperties.getBiz().getLeasePrefix() + key;
+        try {
+            luaScriptRegistry.execute(LuaScriptRegistry.Script.LEASE_RETURN,
+                    Arrays.asList(redPacketKey, leaseKey), shares.toArray());
+            return true;
+        } catch (Exception e) {
+            // 退回失败的小红包金额，在结算时退回到发起者的账户
+            log.error("[{}] 退回未派发的小红包失败，份数 {}", key, shares.size());
+            return false;
+        }
+    }
+
+    /**
+     * 批量回写抢红包结果<br/>
+     * 同一红包的结果合并为一次Lua脚本调用，不同红包的调用合并为一次管道操作<br/>
+     * 回写失败时结果未知，通过租约计数key中的回执项确认各次调用是否已经执行，未执行的小红包退回Redis，无法确认的在之后的批次中继续确认
+     */
+    private void flush() {
+        List<Record> batch = new ArrayList<>();
+        List<Write> unresolved = new ArrayList<>(); // 回写结果尚未确认的回写
+        while (true) {
+            try {
+                // 存在尚未确认的回写时，最多等待一个租约时长，之后重新确认
+                Record record = unresolved.isEmpty() ? records.take()
+                        : records.poll(redPacketProperties.getShare().getLeaseTime(), TimeUnit.MILLISECONDS);
+                if (record != null) batch.add(record);
+            } catch (InterruptedException e) {
+                return;
+            }
+            records.drainTo(batch, MAX_RECORDS_PER_FLUSH - 1);
+
+            if (!unresolved.isEmpty()) unresolved = resolve(unresolved);
+            if (!batch.isEmpty()) unresolved.addAll(write(batch));
+            batch.clear();
+        }
+    }
+
+    /**
+     * 回写一批抢红包结果
+     * @param batch 一批抢红包结果
+     * @return 回写结果尚未确认的回写
+     */
+    @SuppressWarnings("unchecked")
+    private List<Write> write(List<Record> batch) {
+        // 按照红包key分组，同一用户的多个请求只回写第一个，其余请求跟随第一个请求的回写结果
+        Map<String, Write> writes = new LinkedHashMap<>();
+        for (Record record : batch) {
+            writes.computeIfAbsent(record.key, k -> new Write(k, ackToken + ":" + ackSequence++, record.lease.deadline)).add(record);
+        }
+
+        try {
+            // 管道中只包含同一个Lua脚本的调用，如果Redis脚本缓存被清空，可以安全地重新加载并重试
+            List<Object> list = luaScriptRegistry.executePipelined((RedisCallback<Object>) connection -> {
+                for (Write write : writes.values()) {
+                    byte[][] keysAndArgs = new byte[3 + (write.records.size() << 1)][];
+                    keysAndArgs[0] = (redPacketProperties.getBiz().getResultPrefix() + write.key).getBytes(StandardCharsets.UTF_8);
+                    keysAndArgs[1] = leaseKey(write.key);
+                    keysAndArgs[2] = write.ackField.getBytes(StandardCharsets.UTF_8);
+                    for (int i = 0; i < write.records.size(); i++) {
+                        keysAndArgs[3 + (i << 1)] = write.records.get(i).userId.getBytes(StandardCharsets.UTF_8);
+                        keysAndArgs[4 + (i << 1)] = write.records.get(i).value.getBytes(StandardCharsets.UTF_8);
+                    }
+                    luaScriptRegistry.evalSha(connection, LuaScriptRegistry.Script.LEASE_RECORD, ReturnType.MULTI, 2, keysAndArgs);
+                }
+                return null;
+            });
+
+            int idx = 0;
+            for (Write write : writes.values()) {
+                complete(write, (List<String>) list.get(idx++));
+            }
+            return Collections.emptyList();
+        } catch (Exception e) {
+            log.error("批量回写抢红包结果失败，数量 {}，通过回执确认回写结果", batch.size());
+            List<Write> unresolved = resolve(new ArrayList<>(writes.values()));
+            // 无法立即确认的请求直接返回空，由请求方重试，小红包在确认后再处理
+            for (Write write : unresolved) {
+                write.records.forEach(record -> record.future.complete(null));
+                write.followers.forEach(record -> record.future.complete(null));
+            }
+            return unresolved;
+        }
+    }
+
+    /**
+     * 通过租约计数key中的回执项确认回写结果<br/>
+     * Lua脚本原子地执行，回执项存在表示脚本已经执行，按回执中的结果处理；回执项不存在表示脚本没有执行或红包已经结束，退回小红包
+     * @param writes 回写结果未知的回写
+     * @return 仍无法确认的回写
+     */
+    @SuppressWarnings("unchecked")
+    private List<Write> resolve(List<Write> writes) {
+        List<Object> list;
+        try {
+            list = luaScriptRegistry.executePipelined((RedisCallback<Object>) connection -> {
+                for (Write write : writes) {
+                    connection.hashCommands().hGet(leaseKey(write.key), write.ackField.getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("确认回写结果失败，数量 {}", writes.size());
+            return expire(writes);
+        }
+
+        List<Write> unresolved = new ArrayList<>();
+        for (int i = 0; i < writes.size(); i++) {
+            Write write = writes.get(i);
+            String ack = (String) list.get(i);
+            if (ack != null) {
+                complete(write, Arrays.asList(ack.split(",")));
+                continue;
+            }
+            // 脚本没有执行，小红包未被使用，退回Redis，退回时同时扣减租约计数
+            List<String> shares = new ArrayList<>();
+            write.records.forEach(record -> shares.add(record.share));
+            write.followers.forEach(record -> shares.add(record.share));
+            if (returnShares(write.key, shares)) {
+                write.records.forEach(record -> record.future.complete(null));
+                write.followers.forEach(record -> record.future.complete(null));
+            } else {
+                unresolved.add(write);
+            }
+        }
+        return expire(unresolved);
+    }
+
+    /**
+     * 放弃红包已经过期仍无法确认的回写，回执项随租约计数key在红包过期时一同过期
+     * @param writes 无法确认的回写
+     * @return 红包尚未过期的回写
+     */
+    private List<Write> expire(List<Write> writes) {
+        long now = System.currentTimeMillis();
+        List<Write> remaining = new ArrayList<>(writes.size());
+        for (Write write : writes) {
+            if (now < write.deadline) {
+                remaining.add(write);
+            } else {
+                // 小红包金额在结算时退回到发起者的账户，租约计数key在红包过期时一同过期
+                log.error("[{}] 无法确认抢红包结果回写结果，放弃确认，数量 {}", write.key, write.records.size() + write.followers.size());
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * 获取红包租约计数key
+     * @param key 红包key
+     * @return 租约计数key
+     */
+    private byte[] leaseKey(String key) {
+        return (redPacketProperties.getBiz().getLeasePrefix() + key).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 按回写结果完成各请求<br/>
+     * 回写结果按请求逐个对应，跟随请求的结果由其跟随的请求决定，不通过金额耗时是否相同判断
+     * @param write 回写
+     * @param reply 与回写的抢红包结果一一对应的回写结果，1表示回写成功，0表示红包已经结束，其他为用户已有的金额耗时
+     */
+    private void complete(Write write, List<String> reply) {
+        for (int i = 0; i < write.records.size(); i++) {
+            Record record = write.records.get(i);
+            String result = reply.get(i);
+            // 用户已经在其他节点抢到过红包，小红包未被使用，放回本地租约
+            if (!"1".equals(result) && !"0".equals(result)) release(record);
+            record.future.complete(result);
+        }
+        for (Record follower : write.followers) {
+            String result = reply.get(write.records.indexOf(follower.leader));
+            // 跟随请求的小红包始终未被使用，回写成功时以其跟随的请求回写的金额耗时作为已经参与过抢红包的结果
+            if ("1".equals(result)) result = follower.leader.value;
+            if (!"0".equals(result)) release(follower);
+            follower.future.complete(result);
+        }
+    }
+
+    /**
+     * 放回未被使用的小红包，租约已经被清理时退回Redis
+     * @param record 抢红包结果
+     */
+    private void release(Record record) {
+        if (!record.lease.offer(record.share)) returnShares(record.key, List.of(record.share));
+    }
+
+    /**
+     * 退回过期租约中未派发的小红包，并清理已经过期的红包的租约
+     */
+    private void clean() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+            String key = entry.getKey();
+            Lease lease = entry.getValue();
+            try {
+                lease.lock.lock();
+                try {
+                    if (now >= lease.deadline) {
+                        // 红包已经过期，直接丢弃未派发的小红包，剩余金额在结算时退回到发起者的账户
+                        lease.drain();
+                        lease.removed = true;
+                        leases.remove(key, lease);
+                    } else if (now >= lease.leaseDeadline) {
+                        returnShares(key, lease.drain());
+                    }
+                } finally {
+                    lease.lock.unlock();
+                }
+            } catch (Exception e) {
+                log.error("[{}] 清理租约异常", key);
+            }
+        }
+    }
+
+    /**
+     * 对已经参与过抢红包的金额耗时进行解析
+     * @param shareAndTimeCost 金额耗时
+     * @return 抢红包结果
+     */
+    private ShareResult redo(String shareAndTimeCost) {
+        int idx = shareAndTimeCost.indexOf('-');
+        return ShareResult.share(
+                ShareResult.ShareType.FAIL_REDO,
+                Integer.parseInt(shareAndTimeCost.substring(0, idx)),
+                RedPacketKeyUtil.decodeTimeCost(shareAndTimeCost.substring(idx + 1))
+        );
+    }
+
+    /**
+     * 红包的本地租约，持有从Redis领取但尚未派发的小红包
+     */
+    private static class Lease {
+        /**
+         * 未派发的小红包金额，无锁队列
+         */
+        private final ConcurrentLinkedQueue<String> shares = new ConcurrentLinkedQueue<>();
+        /**
+         * 红包过期毫秒时间戳
+         */
+        private final long deadline;
+        /**
+         * 租约到期毫秒时间戳，不晚于红包过期时间
+         */
+        private volatile long leaseDeadline;
+        /**
+         * 红包是否已经确认结束
+         */
+        private volatile boolean finished;
+        /**
+         * 租约是否已经被清理，需要持有租约锁访问
+         */
+        private boolean removed;
+        /**
+         * 租约锁，保护领取、退回和清理操作
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private Lease(long deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * 从租约中获取一个小红包，租约到期后不再派发
+         * @return 小红包金额，如果没有可派发的小红包则返回空
+         */
+        @Nullable
+        private String poll() {
+            return System.currentTimeMillis() < leaseDeadline ? shares.poll() : null;
+        }
+
+        /**
+         * 放回一个未被使用的小红包
+         * @param share 小红包金额
+         * @return 是否放回成功，如果租约已经被清理则失败
+         */
+        private boolean offer(String share) {
+            lock.lock();
+            try {
+                if (removed) return false;
+                shares.offer(share);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 取出租约中所有未派发的小红包
+         * @return 小红包金额列表
+         */
+        private List<String> drain() {
+            List<String> list = new ArrayList<>();
+            String share;
+            while ((share = shares.poll()) != null) list.add(share);
+            return list;
+        }
+
+        /**
+         * 续租，加入新领取的小红包并重置租约到期时间
+         * @param newShares 新领取的小红包金额
+         * @param leaseTime 租约时长，单位为毫秒
+         */
+        private void renew(List<String> newShares, int leaseTime) {
+            shares.addAll(newShares);
+            leaseDeadline = Math.min(System.currentTimeMillis() + leaseTime, deadline);
+        }
+    }
+
+    /**
+     * 等待回写的抢红包结果
+     */
+    private static class Record {
+        private final String key; // 红包key
+        private final String userId; // 用户ID
+        private final String share; // 小红包金额
+        private final String value; // 金额耗时
+        private final Lease lease; // 小红包所属租约
+        private final CompletableFuture<String> future = new CompletableFuture<>(); // 回写结果
+        private Record leader; // 同一批次中同一用户的第一个请求，为空表示自身即第一个请求
+
+        private Record(String key, String userId, String share, String value, Lease lease) {
+            this.key = key;
+            this.userId = userId;
+            this.share = share;
+            this.value = value;
+            this.lease = lease;
+        }
+    }
+
+    /**
+     * 同一红包的一次回写，对应一次Lua脚本调用
+     */
+    private static class Write {
+        private final String key; // 红包key
+        private final String ackField; // 回执项，写入租约计数key
+        private final long deadline; // 红包过期毫秒时间戳，之后回执项随租约计数key一同过期
+        private final List<Record> records = new ArrayList<>(); // 回写的抢红包结果，每个用户一项
+        private final List<Record> followers = new ArrayList<>(); // 同一用户的其他请求，不回写
+        private final Map<String, Record> leaders = new HashMap<>(); // 用户ID对应的回写的抢红包结果
+
+        private Write(String key, String ackField, long deadline) {
+            this.key = key;
+            this.ackField = ackField;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 加入抢红包结果，同一用户已经存在回写的抢红包结果时作为跟随请求
+         * @param record 抢红包结果
+         */
+        private void add(Record record) {
+            Record leader = leaders.putIfAbsent(record.userId, record);
+            if (leader == null) {
+                records.add(record);
+            } else {
+                record.leader = leader;
+                followers.add(record);
+            }
+        }
+    }
+}
@@ -1,9 +1,8 @@
 package com.practice.extension;
 
+import com.practice.common.pojo.CachedResult;
 import com.practice.common.result.RedPacketResult;
 
-import java.util.Map;
-
 /**
  * 抢红包业务扩展接口，将此接口的实现类注册到容器后，将在指定阶段执行指定方法
  */
@@ -39,11 +38,12 @@ public interface RedPacketExtension {
 
     /**
      * 抢红包结果写入缓存前<br/>
-     * 在组合类中进行了异常捕获
+     * 在组合类中进行了异常捕获<br/>
+     * 红包结果不可变，如果需要附加信息，返回新的红包结果
      * @param mapResult 抢红包结果
      * @return 处理后的抢红包结果
      */
-    default Map<String, Object> onCache(Map<String, Object> mapResult) {
+    default CachedResult onCache(CachedResult mapResult) {
         return mapResult;
     }
 
@@ -1,45 +1,196 @@
 package com.practice.extension;
 
+import com.practice.common.annotation.AsyncExtension;
 import com.practice.common.annotation.ExtensionPriority;
+import com.practice.common.pojo.CachedResult;
 import com.practice.common.result.RedPacketResult;
+import com.practice.config.RedPacketProperties;
+import com.practice.metrics.RedPacketMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.aop.support.AopUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map;
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * 抢红包业务扩展组合类
+ * 抢红包业务扩展组合类<br/>
+ * 启动时通过反射检查每个扩展实现类重写了哪些扩展方法，为每个扩展方法生成只包含重写了该方法的扩展实现类的数组，调用时只遍历对应数组<br/>
+ * 没有任何扩展实现类重写的扩展方法，调用时只检查一次空数组，不产生任何虚方法调用<br/>
+ * 每个扩展方法的调用点只会遇到重写了该方法的扩展实现类，只有一个实现类时调用点是单态的，可以被JIT内联<br/>
+ * 标注了@AsyncExtension的扩展实现类，其发起抢红包后、红包结算后、红包结束且未抢完时、红包结果移除时的扩展方法提交到有界队列的专用线程池异步执行，
+ * 并按扩展实现类统计执行次数、耗时、异常次数和队列已满时的丢弃次数
  */
 @Slf4j
 @Component
 @Profile({"biz-dev", "biz-test" ,"biz-prod"})
 public class RedPacketExtensionComposite implements RedPacketExtension {
+    private static final RedPacketExtension[] EMPTY = new RedPacketExtension[0];
     private List<RedPacketExtension> extensions; // 依赖注入所有抢红包业务扩展接口实现类组件
+    private RedPacketExtension[] beforePublish = EMPTY; // 重写了 beforePublish 方法的扩展实现类，按优先级排序，下同
+    private RedPacketExtension[] afterPublish = EMPTY;
+    private RedPacketExtension[] beforeShare = EMPTY;
+    private RedPacketExtension[] onCache = EMPTY;
+    private RedPacketExtension[] afterShare = EMPTY;
+    private RedPacketExtension[] afterSettlementIdempotent = EMPTY;
+    private RedPacketExtension[] afterSettlement = EMPTY;
+    private RedPacketExtension[] onExpire = EMPTY;
+    private RedPacketExtension[] onRemove = EMPTY;
+    private final Map<RedPacketExtension, AsyncStats> asyncStats = new IdentityHashMap<>(); // 标注了@AsyncExtension的扩展实现类对应的执行统计，启动后只读
+    private ThreadPoolExecutor asyncPool; // 异步执行扩展方法的线程池，仅在存在异步扩展实现类时创建
+    private RedPacketProperties redPacketProperties; // 配置参数类
+    private RedPacketMetrics redPacketMetrics; // 红包业务运行指标注册表
 
     @Autowired(required = false)
     private void setExtensions(List<RedPacketExtension> extensions) {
         this.extensions = extensions;
     }
 
+    @Autowired
+    private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
+        this.redPacketProperties = redPacketProperties;
+    }
+
+    @Autowired
+    private void setRedPacketMetrics(RedPacketMetrics redPacketMetrics) {
+        this.redPacketMetrics = redPacketMetrics;
+    }
+
     @PostConstruct
     private void init() {
-        if (extensions != null) {
-            // 将业务扩展接口实现类按照优先级进行排序，优先级越高，执行时机越早
-            this.extensions.sort(Comparator.comparingInt(
-                    extension -> {
-                        ExtensionPriority priority = extension.getClass().getAnnotation(ExtensionPriority.class);
-                        return priority == null ? 0 : - priority.value();
-                    }
-            ));
+        if (extensions == null) return;
+
+        // 将业务扩展接口实现类按照优先级进行排序，优先级越高，执行时机越早
+        this.extensions.sort(Comparator.comparingInt(
+                extension -> {
+                    ExtensionPriority priority = extension.getClass().getAnnotation(ExtensionPriority.class);
+                    return priority == null ? 0 : - priority.value();
+                }
+        ));
+
+        // 为每个扩展方法筛选重写了该方法的扩展实现类，保持优先级顺序
+        beforePublish = implementors("beforePublish", String.class, int.class, int.class, int.class);
+        afterPublish = implementors("afterPublish", String.class, String.class, int.class, int.class, int.class);
+        beforeShare = implementors("beforeShare", String.class, String.class);
+        onCache = implementors("onCache", CachedResult.class);
+        afterShare = implementors("afterShare", String.class, String.class, RedPacketResult.class);
+        afterSettlementIdempotent = implementors("afterSettlementIdempotent", String.class);
+        afterSettlement = implementors("afterSettlement", String.class);
+        onExpire = implementors("onExpire", String.class);
+        onRemove = implementors("onRemove", String.class);
+
+        // 为异步扩展实现类创建执行统计，并创建异步执行扩展方法的线程池
+        for (RedPacketExtension extension : extensions) {
+            Class<?> clazz = AopUtils.getTargetClass(extension);
+            if (clazz.isAnnotationPresent(AsyncExtension.class)) asyncStats.put(extension, new AsyncStats(clazz.getSimpleName()));
+        }
+        if (!asyncStats.isEmpty()) {
+            RedPacketProperties.Extension properties = redPacketProperties.getExtension();
+            asyncPool = new ThreadPoolExecutor(
+                    properties.getAsyncThreads(),
+                    properties.getAsyncThreads(),
+                    60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(properties.getAsyncQueueSize()),
+                    r -> new Thread(r, "AsyncExtension"),
+                    overflowHandler(properties.getAsyncOverflow())
+            );
+            // 注册异步扩展方法的队列长度和丢弃总次数
+            redPacketMetrics.gauge("extension_async_queue_size", () -> asyncPool.getQueue().size());
+            redPacketMetrics.gauge("extension_async_dropped", () ->
+                    asyncStats.values().stream().mapToLong(AsyncStats::getDropped).sum());
         }
     }
 
+    @PreDestroy
+    private void destroy() {
+        if (asyncPool == null) return;
+        // 执行完队列中剩余的扩展方法后关闭线程池，并输出各异步扩展实现类的执行统计
+        asyncPool.shutdown();
+        try {
+            if (!asyncPool.awaitTermination(10, TimeUnit.SECONDS)) asyncPool.shutdownNow();
+        } catch (InterruptedException e) {
+            asyncPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        asyncStats.values().forEach(stats -> log.info("异步扩展执行统计：{}", stats));
+    }
+
+    /**
+     * 获取各异步扩展实现类的执行统计
+     * @return 执行统计
+     */
+    public Collection<AsyncStats> getAsyncStats() {
+        return Collections.unmodifiableCollection(asyncStats.values());
+    }
+
+    /**
+     * 创建异步扩展线程池队列已满时的处理方式
+     * @param overflow 队列已满时的处理方式
+     * @return 拒绝策略
+     */
+    private static RejectedExecutionHandler overflowHandler(RedPacketProperties.Overflow overflow) {
+        return switch (overflow) {
+            case DROP -> (r, executor) -> ((AsyncTask) r).stats.dropped.increment();
+            case BLOCK -> (r, executor) -> {
+                if (executor.isShutdown()) return;
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    ((AsyncTask) r).stats.dropped.increment();
+                    Thread.currentThread().interrupt();
+                }
+            };
+            case CALLER_RUNS -> (r, executor) -> {
+                if (!executor.isShutdown()) r.run();
+            };
+        };
+    }
+
+    /**
+     * 执行可以异步执行的扩展方法，异步扩展实现类提交到线程池执行，其他扩展实现类同步执行
+     * @param extension 扩展实现类
+     * @param hook 扩展方法名，用于异常日志
+     * @param key 红包key
+     * @param action 扩展方法调用
+     */
+    private void dispatch(RedPacketExtension extension, String hook, String key, Runnable action) {
+        AsyncStats stats = asyncStats.get(extension);
+        if (stats == null) {
+            action.run();
+        } else {
+            asyncPool.execute(new AsyncTask(stats, hook, key, action));
+        }
+    }
+
+    /**
+     * 筛选重写了指定扩展方法的扩展实现类<br/>
+     * 如果扩展实现类被代理，则检查被代理的目标类；如果实现类中找到的方法仍然是扩展接口中的默认方法，表示没有重写
+     * @param name 扩展方法名
+     * @param parameterTypes 扩展方法参数类型
+     * @return 重写了该方法的扩展实现类数组
+     */
+    private RedPacketExtension[] implementors(String name, Class<?>... parameterTypes) {
+        List<RedPacketExtension> implementors = new ArrayList<>(extensions.size());
+        for (RedPacketExtension extension : extensions) {
+            try {
+                Method method = AopUtils.getTargetClass(extension).getMethod(name, parameterTypes);
+                if (method.getDeclaringClass() != RedPacketExtension.class) implementors.add(extension);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException("抢红包业务扩展接口中不存在扩展方法 " + name, e);
+            }
+        }
+        log.info("扩展方法 {} 的扩展实现类：{}", name,
+                implementors.stream().map(extension -> AopUtils.getTargetClass(extension).getSimpleName()).toList());
+        return implementors.toArray(EMPTY);
+    }
+
     /**
      * 发起抢红包前
      * @param userId 发起抢红包用户ID
@@ -49,10 +200,8 @@ public class RedPacketExtensionComposite implements RedPacketExtension {
      */
     @Override
     public void beforePublish(String userId, int amount, int shareNum, int expireTime) {
-        if (extensions != null) {
-            for (RedPacketExtension extension : extensions) {
-                extension.beforePublish(userId, amount, shareNum, expireTime);
-            }
+        for (RedPacketExtension extension : beforePublish) {
+            extension.beforePublish(userId, amount, shareNum, expireTime);
         }
     }
 
@@ -65,13 +214,11 @@ public class RedPacketExtensionComposite implements RedPacketExtension {
      */
     @Override
     public void afterPublish(String key, String userId, int amount, int shareNum, int expireTime) {
-        if (extensions != null) {
-            for (RedPacketExtension extension : extensions) {
-                try {
-                    extension.afterPublish(key, userId, amount, shareNum, expireTime);
-                } catch (Exception e) {
-                    log.error("{} 的 afterPublish 方法执行异常，key = {}，userId = {}", extension.getClass().getName(), key, userId);
-                }
+        for (RedPacketExtension extension : afterPublish) {
+            try {
+                dispatch(extension, "afterPublish", key, () -> extension.afterPublish(key, userId, amount, shareNum, expireTime));
+            } catch (Exception e) {
+                log.error("{} 的 afterPublish 方法执行异常，key = {}，userId = {}", extension.getClass().getName(), key, userId);
             }
         }
     }
@@ -83,10 +230,8 @@ public class RedPacketExtensionComposite implements RedPacketExtension {
      */
     @Override
     public void beforeShare(String key, String userId) {
-        if (extensions != null) {
-            for (RedPacketExtension extension : extensions) {
-                extension.beforeShare(key, userId);
-            }
+        for (RedPacketExtension extension : beforeShare) {
+            extension.beforeShare(key, userId);
         }
     }
 
@@ -96,14 +241,12 @@ public class RedPacketExtensionComposite implements RedPacketExtension {
      * @return 处理后的抢红包结果
      */
     @Override
-    public Map<String, Object> onCache(Map<String, Object> mapResult) {
-        if (extensions != null) {
-            for (RedPacketExtension extension : extensions) {
-                try {
-                    mapResult = extension.onCache(mapResult);
-                } catch (Exception e) {
-                    log.error("{} 的 onCache 方法执行异常", extension.getClass().getName());
-                }
+    public CachedResult onCache(CachedResult mapResult) {
+        for (RedPacketExtension extension : onCache) {
+            try {
+                mapResult = extension.onCache(mapResult);
+            } catch (Exception e) {
+                log.error("{} 的 onCache 方法执行异常", extension.getClass().getName());
             }
         }
         return mapResult;
@@ -118,13 +261,11 @@ public class RedPacketExtensionComposite implements RedPacketExtension {
     @Override
     @SuppressWarnings("rawtypes")
     public RedPacketResult afterShare(String key, String userId, RedPacketResult redPacketResult) {
-        if (extensions != null) {
-            for (RedPacketExtension extension : extensions) {
-                try {
-                    redPacketResult = extension.afterShare(key, userId, redPacketResult);
-                } catch (Exception e) {
-                    log.error("{} 的 afterShare 方法执行异常，key = {}，userId = {}", extension.getClass().getName(), key, userId);
-                }
+        for (RedPacketExtension extension : afterShare) {
+            try {
+                redPacketResult = extension.afterShare(key, userId, redPacketResult);
+            } catch (Exception e) {
+                log.error("{} 的 afterShare 方法执行异常，key = {}，userId = {}", extension.getClass().getName(), key, userId);
             }
         }
         return redPacketResult;
@@ -137,10 +278,8 @@ public class RedPacketExtensionComposite implements RedPacketExtension {
      */
     @Override
     public void afterSettlementIdempotent(String key) {
-        if (extensions != null) {
-            for (RedPacketExtension extension : extensions) {
-                extension.afterSettlementIdempotent(key);
-            }
+        for (RedPacketExtension extension : afterSettlementIdempotent) {
+            dispatch(extension, "afterSettlementIdempotent", key, () -> extension.afterSettlementIdempotent(key));
         }
     }
 
@@ -150,10 +289,8 @@ public class RedPacketExtensionComposite implements RedPacketExtension {
      */
     @Override
     public void afterSettlement(String key) {
-        if (extensions != null) {
-            for (RedPacketExtension extension : extensions) {
-                extension.afterSettlement(key);
-            }
+        for (RedPacketExtension extension : afterSettlement) {
+            dispatch(extension, "afterSettlement", key, () -> extension.afterSettlement(key));
         }
     }
 
@@ -164,10 +301,8 @@ public class RedPacketExtensionComposite implements RedPacketExtension {
      */
     @Override
     public void onExpire(String key) {
-        if (extensions != null) {
-            for (RedPacketExtension extension : extensions) {
-                extension.onExpire(key);
-            }
+        for (RedPacketExtension extension : onExpire) {
+            dispatch(extension, "onExpire", key, () -> extension.onExpire(key));
         }
     }
 
@@ -178,10 +313,89 @@ public class RedPacketExtensionComposite implements RedPacketExtension {
      */
     @Override
     public void onRemove(String key) {
-        if (extensions != null) {
-            for (RedPacketExtension extension : extensions) {
-                extension.onRemove(key);
+        for (RedPacketExtension extension : onRemove) {
+            dispatch(extension, "onRemove", key, () -> extension.onRemove(key));
+        }
+    }
+
+    /**
+     * 异步执行的扩展方法调用
+     */
+    private static class AsyncTask implements Runnable {
+        private final AsyncStats stats; // 所属扩展实现类的执行统计
+        private final String hook; // 扩展方法名
+        private final String key; // 红包key
+        private final Runnable action; // 扩展方法调用
+
+        private AsyncTask(AsyncStats stats, String hook, String key, Runnable action) {
+            this.stats = stats;
+            this.hook = hook;
+            this.key = key;
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                action.run();
+            } catch (Exception e) {
+                stats.failures.increment();
+                log.error("{} 的 {} 方法异步执行异常，key = {}", stats.name, hook, key, e);
+            } finally {
+                long cost = System.nanoTime() - start;
+                stats.count.increment();
+                stats.totalNanos.add(cost);
+                stats.maxNanos.accumulate(cost);
             }
         }
     }
+
+    /**
+     * 异步扩展实现类的执行统计
+     */
+    public static class AsyncStats {
+        private final String name; // 扩展实现类名
+        private final LongAdder count = new LongAdder(); // 执行次数
+        private final LongAdder totalNanos = new LongAdder(); // 总耗时，单位为纳秒
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L); // 最大耗时，单位为纳秒
+        private final LongAdder failures = new LongAdder(); // 异常次数
+        private final LongAdder dropped = new LongAdder(); // 队列已满时的丢弃次数
+
+        private AsyncStats(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getDropped() {
+            return dropped.sum();
+        }
+
+        @Override
+        public String toString() {
+            long count = getCount();
+            return String.format("%s: {count: %d, avg(us): %.1f, max(us): %.1f, failures: %d, dropped: %d}",
+                    name, count, count == 0 ? 0 : getTotalNanos() / 1000.0 / count, getMaxNanos() / 1000.0,
+                    getFailures(), getDropped());
+        }
+    }
 }
@@ -2,26 +2,26 @@ package com.practice.extension.impl;
 
 import com.practice.common.annotation.ExtensionPriority;
 import com.practice.common.logging.ExtLogger;
-import com.practice.common.result.RedPacketResult;
-import com.practice.common.result.ShareResult;
 import com.practice.common.util.DateTimeUtil;
 import com.practice.config.RedPacketProperties;
 import com.practice.extension.RedPacketExtension;
+import com.practice.metrics.RedPacketMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.format.DateTimeFormatter;
-import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * 缓存命中率统计和定时计算扩展类
+ * 缓存命中率定时计算扩展类<br/>
+ * 有效红包访问次数、获取结果次数和缓存未命中次数由运行指标注册表统计，本扩展类只定时读取并输出缓存命中率，
+ * 不重写任何扩展方法，因此不参与参与抢红包的扩展方法调用
  */
 @Component
 @Profile({"biz-dev", "biz-test" ,"biz-prod"})
@@ -30,46 +30,40 @@ import java.util.concurrent.atomic.AtomicLong;
 public class CacheHitRatioExtension implements RedPacketExtension {
     private final ExtLogger log = ExtLogger.create(CacheHitRatioExtension.class); // 日志Logger对象
     private RedPacketProperties redPacketProperties; // 属性配置类
+    private RedPacketMetrics redPacketMetrics; // 红包业务运行指标注册表
+    private ScheduledExecutorService scheduledPool; // 定时计算缓存命中率的线程池
     private final DateTimeFormatter dateTimeFormatter = // 日期时间的格式化类，线程安全
             DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-    /**
-     * 有效红包访问总次数
-     */
-    private final AtomicLong totalCount = new AtomicLong(0);
-    /**
-     * 获取结果总次数
-     */
-    private final AtomicLong resultCount = new AtomicLong(0);
-    /**
-     * 缓存未命中次数
-     */
-    private final AtomicLong missCount = new AtomicLong(0);
 
     @Autowired
     private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
         this.redPacketProperties = redPacketProperties;
     }
 
+    @Autowired
+    private void setRedPacketMetrics(RedPacketMetrics redPacketMetrics) {
+        this.redPacketMetrics = redPacketMetrics;
+    }
+
     @PostConstruct
     private void init() {
         // 统计线程，定期计算并输出缓存命中率
-        ScheduledExecutorService scheduledPool =
-                Executors.newScheduledThreadPool(1, r -> new Thread(r, "CacheHitRatioTeller"));
+        scheduledPool = Executors.newScheduledThreadPool(1, r -> new Thread(r, "CacheHitRatioTeller"));
         int interval = redPacketProperties.getShare().getCacheHitRatioCheckInterval();
         scheduledPool.scheduleAtFixedRate(new Runnable() {
             private long lastTimestamp = System.currentTimeMillis();
-            private long lastTotals = totalCount.get();
-            private long lastResults = resultCount.get();
-            private long lastMisses = missCount.get();
+            private long lastTotals = redPacketMetrics.get(RedPacketMetrics.Counter.SHARE);
+            private long lastResults = redPacketMetrics.get(RedPacketMetrics.Counter.SHARE_RESULT);
+            private long lastMisses = redPacketMetrics.get(RedPacketMetrics.Counter.CACHE_MISS);
 
             @Override
             public void run() {
                 long timestamp = System.currentTimeMillis();
 
                 // 获取有效红包访问总次数、获取结果次数、缓存未命中次数
-                long totals = totalCount.get();
-                long results = resultCount.get();
-                long misses = missCount.get();
+                long totals = redPacketMetrics.get(RedPacketMetrics.Counter.SHARE);
+                long results = redPacketMetrics.get(RedPacketMetrics.Counter.SHARE_RESULT);
+                long misses = redPacketMetrics.get(RedPacketMetrics.Counter.CACHE_MISS);
 
                 // 获取时间段内变化值
                 long totalsDelta = totals - lastTotals;
@@ -87,24 +81,9 @@ public class CacheHitRatioExtension implements RedPacketExtension {
         }, interval, interval, TimeUnit.SECONDS);
     }
 
-    @Override
-    public Map<String, Object> onCache(Map<String, Object> mapResult) {
-        // 红包结果写入缓存时，表示缓存未命中，缓存未命中次数增加
-        missCount.getAndIncrement();
-        return mapResult;
-    }
-
-    @Override
-    @SuppressWarnings("rawtypes")
-    public RedPacketResult afterShare(String key, String userId, RedPacketResult redPacketResult) {
-        ShareResult shareResult = (ShareResult) redPacketResult.getResult();
-        if (shareResult.getStatus() != 0 || shareResult.getMapResult() != null) {
-            // 排除无效红包访问，有效红包访问次数增加
-            totalCount.getAndIncrement();
-            // 如果有效红包访问中携带红包结果，获取结果次数增加
-            if (shareResult.getMapResult() != null) resultCount.getAndIncrement();
-        }
-        return redPacketResult;
+    @PreDestroy
+    private void destroy() {
+        if (scheduledPool != null) scheduledPool.shutdownNow();
     }
 
     /**
@@ -1,6 +1,7 @@
 package com.practice.extension.impl;
 
 import com.practice.common.annotation.ExtensionPriority;
+import com.practice.common.pojo.CachedResult;
 import com.practice.common.result.RedPacketResult;
 import com.practice.extension.RedPacketExtension;
 import lombok.extern.slf4j.Slf4j;
@@ -8,8 +9,6 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
-
 /**
  * 抢红包业务扩展测试类
  */
@@ -35,7 +34,7 @@ public class RedPacketExtensionTest implements RedPacketExtension {
     }
 
     @Override
-    public Map<String, Object> onCache(Map<String, Object> mapResult) {
+    public CachedResult onCache(CachedResult mapResult) {
         log.debug("抢红包结果写入缓存前的扩展方法");
         return mapResult;
     }
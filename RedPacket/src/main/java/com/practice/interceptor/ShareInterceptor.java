@@ -3,14 +3,17 @@ package com.practice.interceptor;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.practice.common.logging.ExtLogger;
 import com.practice.common.pojo.BigDataInfo;
+import com.practice.common.pojo.RedPacketKey;
 import com.practice.common.result.RedPacketResult;
 import com.practice.common.result.ShareResult;
 import com.practice.common.util.RedPacketKeyUtil;
 import com.practice.config.RedPacketProperties;
+import com.practice.metrics.ShareLatencyMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.HandlerInterceptor;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -21,30 +24,44 @@ import javax.servlet.http.HttpServletResponse;
 public class ShareInterceptor implements HandlerInterceptor {
     private final static ExtLogger log = ExtLogger.create(ShareInterceptor.class); // 日志Logger对象
     private RedPacketProperties redPacketProperties; // 配置参数类
+    private ShareLatencyMetrics shareLatencyMetrics; // 参与抢红包各阶段的延迟统计
 
     @Autowired
     private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
         this.redPacketProperties = redPacketProperties;
     }
 
+    @Autowired
+    private void setShareLatencyMetrics(ShareLatencyMetrics shareLatencyMetrics) {
+        this.shareLatencyMetrics = shareLatencyMetrics;
+    }
+
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 异步请求完成后的再次分派，首次分派已经完成校验并写入请求属性，不再重复校验和统计耗时
+        if (request.getDispatcherType() == DispatcherType.ASYNC) return true;
+
         // 拦截参与抢红包请求，获取红包key
         String key = request.getParameter("key");
         long timestamp = System.currentTimeMillis();
+        long start = shareLatencyMetrics.start();
 
-        // 通过校验和检查红包key合法性
-        boolean proceed = RedPacketKeyUtil.checkKey(key);
+        // 通过校验和检查红包key合法性，同时解析红包key
+        RedPacketKey redPacketKey = RedPacketKeyUtil.parseKey(key);
+        boolean proceed = redPacketKey != null;
 
         // 如果红包key合法性校验通过，进一步检查访问时限
         if (proceed) {
             // 计算红包的访问时限
-            long limit = RedPacketKeyUtil.parseTimestamp(key)
-                    + RedPacketKeyUtil.parseExpireTime(key) * 1000L
+            long limit = redPacketKey.getTimestamp()
+                    + redPacketKey.getExpireTime() * 1000L
                     + redPacketProperties.getBiz().getResultKeepTime() * 1000L;
             // 对访问时限以内的红包的查询可以放行，否则拒绝
             proceed = timestamp <= limit;
+            // 将解析后的红包key放入请求域，后续处理不再重复解析
+            if (proceed) request.setAttribute("redPacketKey", redPacketKey);
         }
+        shareLatencyMetrics.record(ShareLatencyMetrics.Stage.KEY_CHECK, start);
         // 如果拒绝访问，则直接进行响应
         if (!proceed) {
             // 设置响应头信息的内容类型和字符集
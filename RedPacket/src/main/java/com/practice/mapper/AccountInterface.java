@@ -1,14 +1,24 @@
 package com.practice.mapper;
 
+import com.practice.common.logging.ExtLogger;
+import com.practice.common.pojo.AccountShard;
+import com.practice.common.pojo.PublishDebit;
 import com.practice.config.RedPacketProperties;
 import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.util.Map;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * 模拟账户业务接口类
@@ -16,40 +26,312 @@ import java.util.Map;
 @Component
 @Profile({"mysql-dev", "mysql-test", "mysql-prod"})
 public class AccountInterface {
+    private static final ExtLogger log = ExtLogger.create(AccountInterface.class); // 日志Logger对象
+    /**
+     * 组提交模式下等待扣减结果的最长时间，单位为毫秒
+     */
+    private static final long DEBIT_WAIT_TIME = 10000L;
+    /**
+     * 扣减记录写入后超过此时长仍未被删除，视为发起抢红包已经失败，退回扣减金额，单位为毫秒<br/>
+     * 应当长于发起抢红包的最长耗时，退回与发起抢红包的事务通过删除扣减记录互斥，即使过早退回也不会重复退回
+     */
+    private static final long DEBIT_RECOVERY_DELAY = 60000L;
+    /**
+     * 单次退回的扣减记录数量上限
+     */
+    private static final int DEBIT_RECOVERY_BATCH_SIZE = 256;
     private AccountMapper accountMapper;
+    private PublishDebitMapper publishDebitMapper; // 组提交模式下的扣减记录数据库访问
     private SqlSessionFactory sqlSessionFactory;
+    private TransactionTemplate transactionTemplate;
     private RedPacketProperties redPacketProperties; // 配置参数类
+    private ScheduledExecutorService scheduler; // 在时间窗口结束时提交组提交任务，并定时退回扣减金额的线程池，仅在组提交模式下创建
+    private ExecutorService committer; // 执行组提交的线程池，仅在组提交模式下创建
+    private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<>(); // 用户ID对应的正在收集扣减的组
 
     @Autowired
     private void setAccountMapper(AccountMapper accountMapper) {
         this.accountMapper = accountMapper;
     }
 
+    @Autowired
+    private void setPublishDebitMapper(PublishDebitMapper publishDebitMapper) {
+        this.publishDebitMapper = publishDebitMapper;
+    }
+
     @Autowired
     private void setSqlSessionFactory(SqlSessionFactory sqlSessionFactory) {
         this.sqlSessionFactory = sqlSessionFactory;
     }
 
+    @Autowired
+    private void setTransactionTemplate(TransactionTemplate transactionTemplate) {
+        this.transactionTemplate = transactionTemplate;
+    }
+
     @Autowired
     private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
         this.redPacketProperties = redPacketProperties;
     }
 
+    @PostConstruct
+    private void init() {
+        if (redPacketProperties.getPublish().isGroupCommit()) {
+            // 初始化线程池，计时线程只负责提交任务，阻塞的数据库操作由独立的组提交线程池执行
+            int threads = redPacketProperties.getPublish().getGroupCommitThreads();
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "GroupCommitTimer"));
+            this.committer = new ThreadPoolExecutor(
+                    threads, threads,
+                    60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, "GroupCommitHandler")
+            );
+            // 定时退回发起抢红包失败或节点宕机后遗留的扣减金额，启动时先处理一次
+            scheduler.scheduleWithFixedDelay(() -> committer.execute(this::recover),
+                    0L, DEBIT_RECOVERY_DELAY / 4, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (scheduler != null) scheduler.shutdownNow();
+        if (committer != null) committer.shutdown();
+    }
+
     /**
-     * 扣减账户余额
+     * 扣减账户余额<br/>
+     * 热点账户从余额充足且未被锁定的一个子账户扣减，没有这样的子账户时尝试主账户，都不足时从主账户和多个子账户合并扣减
      * @param userId 用户ID
      * @param amount 扣减金额
      * @return 受影响的数据库表记录数，正常情况下应当为1
      */
     public int decreaseBalance(String userId, int amount) {
+        if (decreaseHotBalance(userId, amount)) return 1;
         return accountMapper.decreaseBalance(userId, amount);
     }
 
+    /**
+     * 在余额充足时扣减账户余额，热点账户优先从子账户扣减
+     * @param userId 用户ID
+     * @param amount 扣减金额
+     * @return 是否扣减成功
+     */
+    private boolean decreaseBalanceIfEnough(String userId, long amount) {
+        return decreaseHotBalance(userId, amount) || accountMapper.decreaseBalanceIfEnough(userId, amount) == 1;
+    }
+
+    /**
+     * 扣减热点账户余额<br/>
+     * 从随机选择的子账户编号开始循环查找余额充足的子账户，跳过已经被其他事务锁定的子账户，只锁定选中的一个子账户后扣减<br/>
+     * 在可重复读隔离级别下，条件不满足的UPDATE语句同样会持有行锁直到事务提交，逐个尝试子账户会使并发的扣减锁住大部分子账户而重新串行化，
+     * 跳过已锁定的子账户则不会等待其他扣减，查找子账户时也不会形成死锁<br/>
+     * 没有可用的子账户时尝试主账户，先锁定子账户再锁定主账户，与余额平衡的加锁顺序一致；单个账户余额都不足时，从主账户和多个子账户合并扣减
+     * @param userId 用户ID
+     * @param amount 扣减金额
+     * @return 是否扣减成功，非热点账户始终返回假
+     */
+    private boolean decreaseHotBalance(String userId, long amount) {
+        if (!redPacketProperties.getPublish().getHotAccounts().contains(userId)) return false;
+        int shards = redPacketProperties.getPublish().getHotAccountShards();
+        int start = ThreadLocalRandom.current().nextInt(shards);
+        Integer shard = accountMapper.selectShardForUpdateSkipLocked(userId, start, shards, amount);
+        if (shard == null && start > 0) shard = accountMapper.selectShardForUpdateSkipLocked(userId, 0, start, amount);
+        if (shard != null && accountMapper.decreaseShardBalance(userId, shard, amount) == 1) return true;
+        if (accountMapper.decreaseBalanceIfEnough(userId, amount) == 1) return true;
+        return decreaseMultiRowBalance(userId, amount);
+    }
+
+    /**
+     * 从热点账户的主账户和多个子账户合并扣减余额，先扣减主账户，不足部分依次从各子账户扣减<br/>
+     * 调用前已经锁定主账户，子账户在锁定主账户之后才锁定，与加锁顺序不一致，
+     * 因此跳过已经被其他事务锁定的子账户，不等待行锁，不会与余额平衡或其他扣减形成死锁
+     * @param userId 用户ID
+     * @param amount 扣减金额
+     * @return 是否扣减成功，账户不存在或可用余额之和不足时返回假
+     */
+    private boolean decreaseMultiRowBalance(String userId, long amount) {
+        Long balance = accountMapper.selectBalanceForUpdate(userId);
+        if (balance == null) return false;
+        List<AccountShard> shards = accountMapper.selectShardsForUpdateSkipLocked(userId);
+        long total = balance;
+        for (AccountShard shard : shards) {
+            total += shard.getBalance();
+        }
+        if (total < amount) return false;
+
+        long fromMain = Math.min(balance, amount);
+        if (fromMain > 0) accountMapper.decreaseBalanceIfEnough(userId, fromMain);
+        long remaining = amount - fromMain;
+        for (AccountShard shard : shards) {
+            if (remaining == 0) break;
+            long part = Math.min(shard.getBalance(), remaining);
+            if (part == 0) continue;
+            accountMapper.decreaseShardBalance(userId, shard.getShard(), part);
+            remaining -= part;
+        }
+        return true;
+    }
+
+    /**
+     * 以组提交的方式扣减账户余额<br/>
+     * 同一用户在时间窗口内的并发扣减合并为一条SQL语句执行并立即提交，热点账户的行锁只需获取一次<br/>
+     * 扣减不参与调用方的事务，但每次扣减都在同一个事务中写入扣减记录，调用方成功后须在自身事务中通过 confirmDebit 方法删除扣减记录，
+     * 失败后通过 refundDebit 方法退回扣减金额，遗留的扣减记录由定时任务退回，扣减金额不会因调用方失败或宕机而丢失
+     * @param userId 用户ID
+     * @param amount 扣减金额
+     * @return 扣减记录ID，账户不存在时返回空
+     */
+    @Nullable
+    public String groupDecreaseBalance(String userId, int amount) {
+        Debit debit = new Debit(userId, amount);
+
+        // 加入组，如果组已经关闭，则创建新的组，组的创建者负责在时间窗口结束时提交组提交任务
+        while (true) {
+            Group created = new Group(userId);
+            Group group = groups.putIfAbsent(userId, created);
+            if (group == null) group = created;
+            if (!group.add(debit)) {
+                // 组已经关闭，移除后重试
+                groups.remove(userId, group);
+                continue;
+            }
+            if (group == created) {
+                scheduler.schedule(() -> committer.execute(() -> commit(created)),
+                        redPacketProperties.getPublish().getGroupCommitWindow(), TimeUnit.MICROSECONDS);
+            }
+            break;
+        }
+
+        try {
+            return debit.future.get(DEBIT_WAIT_TIME, TimeUnit.MILLISECONDS) == 1 ? debit.record.getDebitId() : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // 将扣减时的异常原样抛出，由调用方区分余额不足等情况
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (TimeoutException e) {
+            // 扣减可能在超时后提交，此时扣减记录由定时任务退回
+            throw new RuntimeException("[" + userId + "] 等待组提交扣减超时", e);
+        }
+    }
+
+    /**
+     * 确认组提交的扣减，删除扣减记录，应当在调用方的事务中执行，与调用方的操作一起提交
+     * @param debitId 扣减记录ID
+     */
+    public void confirmDebit(String debitId) {
+        // 扣减记录已经被删除，表示扣减金额已经被定时任务退回，调用方的事务必须回滚
+        if (publishDebitMapper.delete(debitId) != 1) {
+            throw new RuntimeException("扣减记录 " + debitId + " 不存在，扣减金额已经退回");
+        }
+    }
+
+    /**
+     * 退回组提交的扣减金额，在同一个事务中删除扣减记录并增加账户余额，扣减记录已经被删除时不做任何操作
+     * @param debitId 扣减记录ID
+     * @param userId 用户ID
+     * @param amount 退回金额
+     */
+    public void refundDebit(String debitId, String userId, int amount) {
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                if (publishDebitMapper.delete(debitId) == 1) accountMapper.increaseBalance(userId, amount);
+            }
+        });
+    }
+
+    /**
+     * 退回本JVM写入的超时未被删除的扣减记录对应的扣减金额
+     */
+    private void recover() {
+        int serviceId = redPacketProperties.getServiceId();
+        try {
+            List<PublishDebit> debits;
+            do {
+                debits = publishDebitMapper.selectBefore(serviceId,
+                        System.currentTimeMillis() - DEBIT_RECOVERY_DELAY, DEBIT_RECOVERY_BATCH_SIZE);
+                for (PublishDebit debit : debits) {
+                    refundDebit(debit.getDebitId(), debit.getUserId(), debit.getAmount());
+                    log.warn("[{}] 退回发起抢红包未完成的扣减金额，金额 {}", debit.getUserId(), debit.getAmount());
+                }
+            } while (debits.size() == DEBIT_RECOVERY_BATCH_SIZE);
+        } catch (Exception e) {
+            log.error("退回扣减金额失败，等待下次重试：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 执行组提交，并将结果分别返回给各请求<br/>
+     * 先通过一条SQL语句扣减组内的总金额，并在同一个事务中写入所有扣减记录，如果账户不存在或余额不足，则改为逐个扣减，区分各请求的结果
+     * @param group 组
+     */
+    private void commit(Group group) {
+        List<Debit> debits = group.close();
+        groups.remove(group.userId, group);
+
+        if (debits.size() > 1) {
+            long total = 0;
+            List<PublishDebit> records = new ArrayList<>(debits.size());
+            for (Debit debit : debits) {
+                total += debit.amount;
+                records.add(debit.record);
+            }
+            long amount = total;
+            try {
+                Boolean committed = transactionTemplate.execute(status -> {
+                    if (!decreaseBalanceIfEnough(group.userId, amount)) return false;
+                    insertDebits(records);
+                    return true;
+                });
+                if (Boolean.TRUE.equals(committed)) {
+                    debits.forEach(debit -> debit.future.complete(1));
+                    return;
+                }
+            } catch (Exception e) {
+                // 合并扣减异常时，同样改为逐个扣减
+            }
+        }
+
+        for (Debit debit : debits) {
+            try {
+                debit.future.complete(transactionTemplate.execute(status -> {
+                    int rows = decreaseBalance(group.userId, debit.amount);
+                    if (rows == 1) insertDebits(List.of(debit.record));
+                    return rows;
+                }));
+            } catch (Exception e) {
+                debit.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 写入扣减记录
+     * @param records 扣减记录列表
+     */
+    private void insertDebits(List<PublishDebit> records) {
+        if (publishDebitMapper.insertBatch(redPacketProperties.getServiceId(), records) != records.size()) {
+            throw new RuntimeException("扣减记录写入失败");
+        }
+    }
+
+    /**
+     * 增加账户余额
+     * @param userId 用户ID
+     * @param amount 增加金额
+     */
+    public void increaseBalance(String userId, int amount) {
+        accountMapper.increaseBalance(userId, amount);
+    }
+
     /**
      * 批量增加账户余额
      * @param resultMap 整理后的红包结果
      */
-    public void batchIncreaseBalance(Map<String, Integer> resultMap) {
+    public void batchIncreaseBalance(Map<String, Long> resultMap) {
         switch (redPacketProperties.getSettlementSqlBatch()) {
             // 直接遍历结果Map的每个Key-Value，重复执行单个更新的SQL语句
             case NON_BATCHED -> resultMap.forEach(accountMapper::increaseBalance);
@@ -57,6 +339,8 @@ public class AccountInterface {
             case NON_PREPARED -> accountMapper.batchIncreaseBalance(resultMap);
             // 使用MyBatis封装的JDBC批处理方式，批量发送SQL语句，会进行预编译
             case PREPARED -> preparedBatchIncreaseBalance(resultMap);
+            // 使用单条多行更新的SQL语句，账户数量超过上限时拆分后批量发送
+            case MULTI_ROW -> multiRowIncreaseBalance(resultMap);
         }
     }
 
@@ -64,7 +348,7 @@ public class AccountInterface {
      * 使用MyBatis封装的JDBC批处理方式，批量增加账户余额
      * @param resultMap 整理后的红包结果
      */
-    private void preparedBatchIncreaseBalance(Map<String, Integer> resultMap) {
+    private void preparedBatchIncreaseBalance(Map<String, Long> resultMap) {
         try (SqlSession sqlSession =
                     // 获取SqlSession类对象，指定Executor为批量执行类型，并取消自动提交
                      sqlSessionFactory.openSession(ExecutorType.BATCH, false)) {
@@ -73,4 +357,84 @@ public class AccountInterface {
             sqlSession.commit();
         }
     }
+
+    /**
+     * 使用多行更新的SQL语句，批量增加账户余额<br/>
+     * 账户数量超过上限时，按上限拆分为若干份，除最后一份外其余各份的SQL语句形式相同，
+     * 通过MyBatis封装的JDBC批处理方式发送，开启rewriteBatchedStatements时由驱动合并为单次请求
+     * @param resultMap 整理后的红包结果
+     */
+    private void multiRowIncreaseBalance(Map<String, Long> resultMap) {
+        int chunkSize = redPacketProperties.getSettlementSqlChunkSize();
+        if (resultMap.size() <= chunkSize) {
+            accountMapper.multiRowIncreaseBalance(resultMap);
+            return;
+        }
+
+        try (SqlSession sqlSession =
+                    // 获取SqlSession类对象，指定Executor为批量执行类型，并取消自动提交
+                     sqlSessionFactory.openSession(ExecutorType.BATCH, false)) {
+            AccountMapper mapper = sqlSession.getMapper(AccountMapper.class);
+            Map<String, Long> chunk = new HashMap<>(chunkSize * 4 / 3 + 1);
+            for (Map.Entry<String, Long> entry : resultMap.entrySet()) {
+                chunk.put(entry.getKey(), entry.getValue());
+                if (chunk.size() == chunkSize) {
+                    mapper.multiRowIncreaseBalance(chunk);
+                    chunk = new HashMap<>(chunkSize * 4 / 3 + 1);
+                }
+            }
+            if (!chunk.isEmpty()) mapper.multiRowIncreaseBalance(chunk);
+            sqlSession.commit();
+        }
+    }
+
+    /**
+     * 用户ID对应的一组扣减
+     */
+    private static class Group {
+        private final String userId; // 用户ID
+        private List<Debit> debits = new ArrayList<>(); // 收集的扣减，为空表示组已经关闭
+
+        private Group(String userId) {
+            this.userId = userId;
+        }
+
+        /**
+         * 加入扣减
+         * @param debit 扣减
+         * @return 是否加入成功，如果组已经关闭，则返回假
+         */
+        private synchronized boolean add(Debit debit) {
+            if (debits == null) return false;
+            debits.add(debit);
+            return true;
+        }
+
+        /**
+         * 关闭组，之后不能再加入扣减
+         * @return 收集的扣减
+         */
+        private synchronized List<Debit> close() {
+            List<Debit> list = debits;
+            debits = null;
+            return list;
+        }
+    }
+
+    /**
+     * 单次扣减请求
+     */
+    private static class Debit {
+        private final int amount; // 扣减金额
+        private final PublishDebit record = new PublishDebit(); // 扣减成功时写入的扣减记录
+        private final CompletableFuture<Integer> future = new CompletableFuture<>(); // 受影响的数据库表记录数
+
+        private Debit(String userId, int amount) {
+            this.amount = amount;
+            record.setDebitId(UUID.randomUUID().toString().replace("-", ""));
+            record.setUserId(userId);
+            record.setAmount(amount);
+            record.setDebitTime(System.currentTimeMillis());
+        }
+    }
 }
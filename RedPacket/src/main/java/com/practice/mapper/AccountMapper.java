@@ -1,10 +1,12 @@
 package com.practice.mapper;
 
+import com.practice.common.pojo.AccountShard;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -21,19 +23,94 @@ public interface AccountMapper {
     @Update("update account set balance = balance - #{amount} where user_id = #{userId}")
     int decreaseBalance(String userId, int amount);
 
+    /**
+     * 在余额充足时扣减账户余额
+     * @param userId 用户ID
+     * @param amount 扣减金额
+     * @return 受影响的数据库表记录数，为0表示账户不存在或余额不足
+     */
+    @Update("update account set balance = balance - #{amount} where user_id = #{userId} and balance >= #{amount}")
+    int decreaseBalanceIfEnough(String userId, long amount);
+
+    /**
+     * 在子账户余额充足时扣减热点账户的子账户余额
+     * @param userId 用户ID
+     * @param shard 子账户编号
+     * @param amount 扣减金额
+     * @return 受影响的数据库表记录数，为0表示子账户不存在或余额不足
+     */
+    @Update("update account_shard set balance = balance - #{amount} where user_id = #{userId} and shard = #{shard} and balance >= #{amount}")
+    int decreaseShardBalance(String userId, int shard, long amount);
+
+    /**
+     * 在编号范围内按编号顺序查找并锁定余额充足的一个子账户，跳过已经被其他事务锁定的子账户，不等待行锁
+     * @param userId 用户ID
+     * @param from 起始子账户编号（包含）
+     * @param to 结束子账户编号（不包含）
+     * @param amount 扣减金额
+     * @return 子账户编号，没有余额充足且未被锁定的子账户时为空
+     */
+    @Select("select shard from account_shard where user_id = #{userId} and shard >= #{from} and shard < #{to} and balance >= #{amount} order by shard limit 1 for update skip locked")
+    Integer selectShardForUpdateSkipLocked(String userId, int from, int to, long amount);
+
+    /**
+     * 查询并锁定主账户余额
+     * @param userId 用户ID
+     * @return 主账户余额，账户不存在时为空
+     */
+    @Select("select balance from account where user_id = #{userId} for update")
+    Long selectBalanceForUpdate(String userId);
+
+    /**
+     * 按子账户编号顺序查询并锁定热点账户的所有子账户余额
+     * @param userId 用户ID
+     * @return 子账户余额列表，下标为子账户编号
+     */
+    @Select("select balance from account_shard where user_id = #{userId} order by shard for update")
+    List<Long> selectShardBalancesForUpdate(String userId);
+
+    /**
+     * 按子账户编号顺序查询并锁定热点账户的子账户，跳过已经被其他事务锁定的子账户，不等待行锁
+     * @param userId 用户ID
+     * @return 本事务已经锁定或新锁定的子账户列表
+     */
+    @Select("select shard, balance from account_shard where user_id = #{userId} order by shard for update skip locked")
+    List<AccountShard> selectShardsForUpdateSkipLocked(String userId);
+
+    /**
+     * 设置主账户余额
+     * @param userId 用户ID
+     * @param balance 账户余额
+     */
+    @Update("update account set balance = #{balance} where user_id = #{userId}")
+    void updateBalance(String userId, long balance);
+
+    /**
+     * 使用MyBatis映射xml文件的foreach动态SQL，批量设置热点账户的子账户余额，子账户不存在时创建
+     * @param userId 用户ID
+     * @param balances 子账户余额列表，下标为子账户编号
+     */
+    void upsertShardBalances(@Param("userId") String userId, @Param("balances") List<Long> balances);
+
     /**
      * 增加账户余额
      * @param userId 用户ID
      * @param amount 增加金额
      */
     @Update("update account set balance = balance + #{amount} where user_id = #{userId}")
-    void increaseBalance(String userId, int amount);
+    void increaseBalance(String userId, long amount);
 
     /**
      * 使用MyBatis映射xml文件的foreach动态SQL，批量增加账户余额
      * @param resultMap 整理后的红包结果
      */
-    void batchIncreaseBalance(@Param("resultMap") Map<String, Integer> resultMap);
+    void batchIncreaseBalance(@Param("resultMap") Map<String, Long> resultMap);
+
+    /**
+     * 使用MyBatis映射xml文件的foreach动态SQL，通过单条多行更新的SQL语句批量增加账户余额
+     * @param resultMap 整理后的红包结果
+     */
+    void multiRowIncreaseBalance(@Param("resultMap") Map<String, Long> resultMap);
 
     /**
      * 检查用户名和密码是否正确，如果是则返回用户ID
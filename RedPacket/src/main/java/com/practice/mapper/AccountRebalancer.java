@@ -0,0 +1,101 @@
+package com.practice.mapper;
+
+import com.practice.common.logging.ExtLogger;
+import com.practice.config.RedPacketProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 热点账户余额平衡类<br/>
+ * 定时将热点账户的主账户余额和所有子账户余额之和平均分配到主账户和各子账户，不能整除的部分保留在主账户<br/>
+ * 结算增加的金额进入主账户，发起抢红包的扣减分散在各子账户，通过定时平衡使各子账户都有足够的余额，
+ * 主账户保留与子账户相同的余额，供子账户余额不足时扣减或合并扣减
+ */
+@Component
+@Profile({"mysql-dev", "mysql-test", "mysql-prod"})
+public class AccountRebalancer {
+    private static final ExtLogger log = ExtLogger.create(AccountRebalancer.class); // 日志Logger对象
+    private AccountMapper accountMapper;
+    private TransactionTemplate transactionTemplate;
+    private RedPacketProperties redPacketProperties; // 配置参数类
+
+    @Autowired
+    private void setAccountMapper(AccountMapper accountMapper) {
+        this.accountMapper = accountMapper;
+    }
+
+    @Autowired
+    private void setTransactionTemplate(TransactionTemplate transactionTemplate) {
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    @Autowired
+    private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
+        this.redPacketProperties = redPacketProperties;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (redPacketProperties.getPublish().getHotAccounts().isEmpty()) return;
+        int interval = redPacketProperties.getPublish().getRebalanceInterval();
+        Executors.newScheduledThreadPool(1, r -> new Thread(r, "AccountRebalancer"))
+                .scheduleWithFixedDelay(this::rebalanceAll, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 逐个平衡所有热点账户
+     */
+    private void rebalanceAll() {
+        for (String userId : redPacketProperties.getPublish().getHotAccounts()) {
+            try {
+                rebalance(userId);
+            } catch (Exception e) {
+                // 与扣减操作发生死锁等异常时，等待下次平衡
+                log.warn("[ ] [{}] 热点账户余额平衡失败：{}", userId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 在同一个事务中平衡热点账户的子账户余额<br/>
+     * 先按编号顺序锁定所有子账户，再锁定主账户，与扣减时的加锁顺序一致
+     * @param userId 用户ID
+     */
+    private void rebalance(String userId) {
+        int shards = redPacketProperties.getPublish().getHotAccountShards();
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                List<Long> current = accountMapper.selectShardBalancesForUpdate(userId);
+                Long balance = accountMapper.selectBalanceForUpdate(userId);
+                if (balance == null) return;
+
+                long total = balance;
+                for (long shardBalance : current) {
+                    total += shardBalance;
+                }
+                // 主账户与各子账户平均分配，子账户数量调小时，多出的子账户余额清零
+                int size = Math.max(shards, current.size());
+                long each = total / (shards + 1);
+                List<Long> balances = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    balances.add(i < shards ? each : 0L);
+                }
+                if (balances.equals(current)) return;
+
+                accountMapper.upsertShardBalances(userId, balances);
+                accountMapper.updateBalance(userId, total - each * shards);
+            }
+        });
+    }
+}
@@ -0,0 +1,48 @@
+package com.practice.mapper;
+
+import com.practice.common.pojo.OutboxMessage;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+
+import java.util.List;
+
+/**
+ * 发起抢红包结算消息发件箱数据库访问
+ */
+@Mapper
+public interface OutboxMapper {
+    /**
+     * 写入一条结算消息
+     * @param serviceId 写入消息的JVM编号
+     * @param redPacketKey 红包key
+     * @param deliverTime 消息投递毫秒时间戳
+     * @return 受影响的数据库表记录数，正常情况下应当为1
+     */
+    @Insert("insert into publish_outbox (service_id, red_packet_key, deliver_time) values (#{serviceId}, #{redPacketKey}, #{deliverTime})")
+    int insert(int serviceId, String redPacketKey, long deliverTime);
+
+    /**
+     * 使用MyBatis映射xml文件的foreach动态SQL，批量写入结算消息
+     * @param serviceId 写入消息的JVM编号
+     * @param messages 结算消息列表，只使用红包key和消息投递毫秒时间戳
+     * @return 受影响的数据库表记录数，正常情况下应当为消息数量
+     */
+    int insertBatch(@Param("serviceId") int serviceId, @Param("messages") List<OutboxMessage> messages);
+
+    /**
+     * 按写入顺序查询一批等待发送的结算消息
+     * @param serviceId 写入消息的JVM编号
+     * @param limit 查询数量上限
+     * @return 结算消息列表
+     */
+    @Select("select id, red_packet_key, deliver_time from publish_outbox where service_id = #{serviceId} order by id limit #{limit}")
+    List<OutboxMessage> selectBatch(int serviceId, int limit);
+
+    /**
+     * 使用MyBatis映射xml文件的foreach动态SQL，批量删除已经发送的结算消息
+     * @param ids 消息ID列表
+     */
+    void deleteBatch(@Param("ids") List<Long> ids);
+}
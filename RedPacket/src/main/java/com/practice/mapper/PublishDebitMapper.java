@@ -0,0 +1,43 @@
+package com.practice.mapper;
+
+import com.practice.common.pojo.PublishDebit;
+import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+
+import java.util.List;
+
+/**
+ * 组提交模式下的扣减记录数据库访问<br/>
+ * 扣减记录与扣减在同一个事务中写入，发起抢红包成功时在发起抢红包的事务中删除，
+ * 发起抢红包失败或节点宕机后，仍然存在的扣减记录表示需要退回的扣减金额
+ */
+@Mapper
+public interface PublishDebitMapper {
+    /**
+     * 使用MyBatis映射xml文件的foreach动态SQL，批量写入扣减记录
+     * @param serviceId 写入记录的JVM编号
+     * @param debits 扣减记录列表
+     * @return 受影响的数据库表记录数，正常情况下应当为记录数量
+     */
+    int insertBatch(@Param("serviceId") int serviceId, @Param("debits") List<PublishDebit> debits);
+
+    /**
+     * 删除一条扣减记录
+     * @param debitId 扣减记录ID
+     * @return 受影响的数据库表记录数，为0表示扣减记录已经被删除，即扣减金额已经被退回或已经确认
+     */
+    @Delete("delete from publish_debit where debit_id = #{debitId}")
+    int delete(String debitId);
+
+    /**
+     * 按扣减时间顺序查询一批早于指定时间的扣减记录
+     * @param serviceId 写入记录的JVM编号
+     * @param before 毫秒时间戳，只查询在此之前写入的记录
+     * @param limit 查询数量上限
+     * @return 扣减记录列表
+     */
+    @Select("select debit_id, user_id, amount, debit_time from publish_debit where service_id = #{serviceId} and debit_time < #{before} order by debit_time limit #{limit}")
+    List<PublishDebit> selectBefore(int serviceId, long before, int limit);
+}
@@ -0,0 +1,31 @@
+package com.practice.mapper;
+
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+/**
+ * 红包结算台账数据库访问<br/>
+ * 台账以红包key为主键，与账户操作在同一个事务中写入，用于保证结算处理的幂等性
+ */
+@Mapper
+public interface SettlementLedgerMapper {
+    /**
+     * 写入一条结算台账，如果红包已经结算过则忽略
+     * @param redPacketKey 红包key
+     * @param settleTime 结算毫秒时间戳
+     * @return 受影响的数据库表记录数，为0表示红包已经结算过
+     */
+    @Insert("insert ignore into settlement_ledger (red_packet_key, settle_time) values (#{redPacketKey}, #{settleTime})")
+    int insertIgnore(String redPacketKey, long settleTime);
+
+    /**
+     * 使用MyBatis映射xml文件的foreach动态SQL，批量写入结算台账，已经结算过的红包将被忽略
+     * @param redPacketKeys 红包key列表
+     * @param settleTime 结算毫秒时间戳
+     * @return 受影响的数据库表记录数，小于红包key数量表示其中存在已经结算过的红包
+     */
+    int insertIgnoreBatch(@Param("redPacketKeys") List<String> redPacketKeys, @Param("settleTime") long settleTime);
+}
@@ -0,0 +1,167 @@
+package com.practice.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 并发延迟直方图，与HdrHistogram相同采用对数线性分桶<br/>
+ * 每个2的幂次区间均分为32个桶，相对误差不超过约3%，覆盖long类型的全部正数范围，只占用固定大小的计数数组<br/>
+ * 记录时只对一个桶计数和总和进行原子累加，不加锁，不分配对象<br/>
+ * 计数只增不减，通过相邻两次快照相减得到区间统计，因此多个读取方之间互不影响，也不会丢失并发记录的值
+ */
+public final class LatencyHistogram {
+    /**
+     * 桶下标中尾数的位数，小于64的值各占一个桶
+     */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    /**
+     * 桶数量，最高位为第62位的值位于最后一个区间
+     */
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT); // 各桶的累计计数
+    private final LongAdder sum = new LongAdder(); // 所有记录值的总和，用于计算平均值
+
+    /**
+     * 记录一个值，负数按0记录
+     * @param value 记录值，单位为纳秒
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+    }
+
+    /**
+     * 获取累计快照
+     * @return 累计快照
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, sum.sum());
+    }
+
+    /**
+     * 计算值所在的桶下标
+     * @param value 非负值
+     * @return 桶下标
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+        // 保留最高的6位，最高位决定区间，其余5位决定区间内的桶
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int mantissa = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (mantissa - SUB_BUCKET_HALF);
+    }
+
+    /**
+     * 计算桶内的最大值
+     * @param index 桶下标
+     * @return 桶内的最大值
+     */
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int k = index - SUB_BUCKET_COUNT;
+        int shift = k / SUB_BUCKET_HALF + 1;
+        long mantissa = SUB_BUCKET_HALF + k % SUB_BUCKET_HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * 直方图快照，不可变
+     */
+    public static final class Snapshot {
+        private final long[] counts; // 各桶的计数
+        private final long sum; // 所有记录值的总和
+        private final long count; // 记录值的数量
+
+        private Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            this.sum = sum;
+            long count = 0;
+            for (long c : counts) count += c;
+            this.count = count;
+        }
+
+        /**
+         * 计算与更早的快照之间的区间快照
+         * @param earlier 更早的快照
+         * @return 区间快照
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] diff = new long[counts.length];
+            for (int i = 0; i < diff.length; i++) {
+                diff[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(diff, sum - earlier.sum);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * 获取百分位数，结果为所在桶内的最大值
+         * @param percentile 百分位，0到100
+         * @return 百分位数，没有记录值时为0
+         */
+        public long percentile(double percentile) {
+            if (count == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long accumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                accumulated += counts[i];
+                if (accumulated >= target) return highestEquivalentValue(i);
+            }
+            return max();
+        }
+
+        /**
+         * 获取最大值，结果为所在桶内的最大值
+         * @return 最大值，没有记录值时为0
+         */
+        public long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) return highestEquivalentValue(i);
+            }
+            return 0;
+        }
+
+        /**
+         * 获取平均值
+         * @return 平均值，没有记录值时为0
+         */
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * 生成以微秒为单位的统计摘要
+         * @return 记录数量、平均值、各百分位数和最大值
+         */
+        public Map<String, Object> summary() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("count", count);
+            summary.put("mean(us)", micros(mean()));
+            summary.put("p50(us)", micros(percentile(50)));
+            summary.put("p90(us)", micros(percentile(90)));
+            summary.put("p99(us)", micros(percentile(99)));
+            summary.put("p999(us)", micros(percentile(99.9)));
+            summary.put("max(us)", micros(max()));
+            return summary;
+        }
+
+        /**
+         * 将纳秒转换为保留一位小数的微秒
+         */
+        private static double micros(double nanos) {
+            return Math.round(nanos / 100) / 10.0;
+        }
+    }
+}
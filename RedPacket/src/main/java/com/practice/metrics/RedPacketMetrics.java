@@ -0,0 +1,168 @@
+package com.practice.metrics;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 红包业务运行指标注册表<br/>
+ * 计数器基于分段累加的LongAdder，每次请求都会递增的计数器在高并发下不会集中竞争同一个缓存行，读取时才对各分段求和<br/>
+ * 计量值在注册时提供取值函数，只在读取指标时调用，不在业务路径上维护<br/>
+ * 指标可以按JSON格式查询，也可以按Prometheus文本格式抓取，用于监控面板展示
+ */
+@Component
+public class RedPacketMetrics {
+    private static final String PREFIX = "redpacket_"; // Prometheus格式的指标名前缀
+    private final LongAdder[] counters = new LongAdder[Counter.values().length]; // 各计数器
+    private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentSkipListMap<>(); // 计量值名称及其取值函数，按名称排序
+
+    public RedPacketMetrics() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 计数器加一
+     * @param counter 计数器
+     */
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    /**
+     * 获取计数器当前值
+     * @param counter 计数器
+     * @return 自启动以来的累计值
+     */
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * 注册计量值，同名计量值后注册的覆盖先注册的
+     * @param name 计量值名称，小写字母和下划线组成
+     * @param supplier 取值函数，读取指标时调用，应当线程安全且开销较小
+     */
+    public void gauge(String name, Supplier<? extends Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * 生成JSON格式的指标报告，包括计数器、计量值和由计数器计算的比率
+     * @return 指标报告
+     */
+    public Map<String, Object> report() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        Map<String, Object> counterMap = new LinkedHashMap<>();
+        for (Counter counter : Counter.values()) {
+            counterMap.put(counter.metricName(), get(counter));
+        }
+        report.put("counters", counterMap);
+
+        Map<String, Object> gaugeMap = new LinkedHashMap<>();
+        gauges.forEach((name, supplier) -> gaugeMap.put(name, supplier.get()));
+        report.put("gauges", gaugeMap);
+
+        // 缓存命中率 = 1 - 缓存未命中次数 / 获取结果次数，与缓存命中率统计扩展的输出一致
+        long results = get(Counter.SHARE_RESULT);
+        long fastPath = get(Counter.FAST_PATH);
+        long slowPath = get(Counter.SLOW_PATH);
+        Map<String, Object> ratios = new LinkedHashMap<>();
+        ratios.put("result_ratio", ratio(results, get(Counter.SHARE)));
+        ratios.put("cache_hit_ratio", results == 0 ? 0d : 1 - ratio(get(Counter.CACHE_MISS), results));
+        ratios.put("fast_path_ratio", ratio(fastPath, fastPath + slowPath));
+        report.put("ratios", ratios);
+        return report;
+    }
+
+    /**
+     * 生成Prometheus文本格式的指标，计数器以_total结尾
+     * @return Prometheus文本格式的指标
+     */
+    public String prometheus() {
+        StringBuilder sb = new StringBuilder(2048);
+        for (Counter counter : Counter.values()) {
+            String name = PREFIX + counter.metricName() + "_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(get(counter)).append('\n');
+        }
+        gauges.forEach((name, supplier) -> {
+            String metricName = PREFIX + name;
+            sb.append("# TYPE ").append(metricName).append(" gauge\n");
+            sb.append(metricName).append(' ').append(supplier.get()).append('\n');
+        });
+        return sb.toString();
+    }
+
+    private static double ratio(long numerator, long denominator) {
+        return denominator == 0 ? 0d : numerator * 1d / denominator;
+    }
+
+    /**
+     * 计数器
+     */
+    public enum Counter {
+        /**
+         * 有效红包访问次数，即抢到红包、重复参与或携带红包结果的参与抢红包请求
+         */
+        SHARE,
+        /**
+         * 携带红包结果的有效红包访问次数
+         */
+        SHARE_RESULT,
+        /**
+         * 在本地缓存中找到红包结果的次数
+         */
+        CACHE_HIT,
+        /**
+         * 从Redis读取红包结果并写入本地缓存的次数
+         */
+        CACHE_MISS,
+        /**
+         * 访问Redis参与抢红包超时的次数
+         */
+        REDIS_TIMEOUT,
+        /**
+         * 参与抢红包请求超时后重试的次数
+         */
+        SHARE_RETRY,
+        /**
+         * 原子整数或本地租约判断红包未结束，不竞争锁直接访问Redis的次数
+         */
+        FAST_PATH,
+        /**
+         * 原子整数或本地租约判断红包已经结束，竞争锁后访问Redis的次数
+         */
+        SLOW_PATH,
+        /**
+         * 结算成功的红包数量
+         */
+        SETTLE_SUCCESS,
+        /**
+         * 因红包已经被结算而忽略的结算消息数量
+         */
+        SETTLE_DUPLICATE,
+        /**
+         * 结算失败的次数，失败的结算消息由RocketMQ重新投递
+         */
+        SETTLE_FAILURE,
+        /**
+         * 批量结算失败后改为逐个结算的批次数量
+         */
+        SETTLE_BATCH_FALLBACK;
+
+        /**
+         * 获取指标名
+         * @return 小写的指标名
+         */
+        public String metricName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+}
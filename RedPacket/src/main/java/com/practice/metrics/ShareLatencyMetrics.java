@@ -0,0 +1,187 @@
+package com.practice.metrics;
+
+import com.practice.config.RedPacketProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 参与抢红包各阶段的延迟统计<br/>
+ * 为每个阶段维护一个延迟直方图，累计统计自启动以来的延迟分布，并按配置的时间间隔生成最近一个完整区间的延迟分布<br/>
+ * 参与抢红包延迟升高时，可以区分是Redis访问、锁竞争、扩展方法还是响应序列化导致<br/>
+ * 未开启时不读取时钟，也不记录任何值
+ */
+@Component
+public class ShareLatencyMetrics {
+    private RedPacketProperties redPacketProperties; // 配置参数类
+    private boolean enabled; // 是否统计延迟
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length]; // 各阶段的延迟直方图
+    private LatencyHistogram.Snapshot[] lastSnapshots; // 上一个区间结束时各阶段的累计快照
+    private volatile LatencyHistogram.Snapshot[] intervalSnapshots; // 最近一个完整区间内各阶段的区间快照
+    private volatile long intervalStart; // 最近一个完整区间的起始毫秒时间戳
+    private volatile long intervalEnd; // 最近一个完整区间的结束毫秒时间戳
+    private ScheduledExecutorService scheduler; // 定时生成区间快照的线程池
+
+    @Autowired
+    private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
+        this.redPacketProperties = redPacketProperties;
+    }
+
+    @PostConstruct
+    private void init() {
+        enabled = redPacketProperties.getMetrics().isLatency();
+        if (!enabled) return;
+
+        lastSnapshots = new LatencyHistogram.Snapshot[histograms.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            lastSnapshots[i] = histograms[i].snapshot();
+        }
+        intervalSnapshots = lastSnapshots;
+        intervalStart = intervalEnd = System.currentTimeMillis();
+
+        // 定时将当前累计快照与上一个区间结束时的累计快照相减，得到区间快照
+        int interval = redPacketProperties.getMetrics().getLatencyInterval();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "LatencyRoller"));
+        scheduler.scheduleAtFixedRate(() -> {
+            LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[histograms.length];
+            LatencyHistogram.Snapshot[] current = new LatencyHistogram.Snapshot[histograms.length];
+            for (int i = 0; i < histograms.length; i++) {
+                current[i] = histograms[i].snapshot();
+                snapshots[i] = current[i].minus(lastSnapshots[i]);
+            }
+            long timestamp = System.currentTimeMillis();
+            lastSnapshots = current;
+            intervalStart = intervalEnd;
+            intervalEnd = timestamp;
+            intervalSnapshots = snapshots;
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    /**
+     * 是否统计延迟
+     * @return 是否统计延迟
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 获取阶段开始时间
+     * @return 纳秒时间戳，未开启时为0
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * 记录阶段耗时
+     * @param stage 阶段
+     * @param start 通过 start() 获取的阶段开始时间
+     */
+    public void record(Stage stage, long start) {
+        if (enabled) histograms[stage.ordinal()].record(System.nanoTime() - start);
+    }
+
+    /**
+     * 记录已经计算好的阶段耗时，用于一次请求中多段累加的阶段
+     * @param stage 阶段
+     * @param nanos 耗时，单位为纳秒
+     */
+    public void recordNanos(Stage stage, long nanos) {
+        if (enabled) histograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * 生成各阶段的延迟报告，包括自启动以来的累计统计和最近一个完整区间的统计
+     * @return 延迟报告
+     */
+    public Map<String, Object> report() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("enabled", enabled);
+        if (!enabled) return report;
+
+        LatencyHistogram.Snapshot[] snapshots = intervalSnapshots;
+        report.put("intervalStart", intervalStart);
+        report.put("intervalEnd", intervalEnd);
+        Map<String, Object> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("total", histograms[stage.ordinal()].snapshot().summary());
+            summary.put("interval", snapshots[stage.ordinal()].summary());
+            stages.put(stage.name(), summary);
+        }
+        report.put("stages", stages);
+        return report;
+    }
+
+    /**
+     * 参与抢红包的阶段
+     */
+    public enum Stage {
+        /**
+         * 参与抢红包拦截器校验并解析红包key
+         */
+        KEY_CHECK,
+        /**
+         * 查询本地缓存
+         */
+        CACHE_LOOKUP,
+        /**
+         * 扣减原子整数，租约模式下为判断本地租约是否已经确认结束
+         */
+        ATOMIC_DECREMENT,
+        /**
+         * 等待红包key对应的分段锁
+         */
+        LOCK_WAIT,
+        /**
+         * 执行抢红包Lua脚本，包括等待Redis访问线程池
+         */
+        REDIS_EVAL,
+        /**
+         * 红包结束后读取红包结果
+         */
+        RESULT_READ,
+        /**
+         * 解析红包结果并写入本地缓存
+         */
+        RESULT_PARSE,
+        /**
+         * 开启排名时，从Redis读取抢红包过程中维护的排名
+         */
+        RANK_READ,
+        /**
+         * 红包结果写入缓存前的扩展方法
+         */
+        CACHE_EXTENSION,
+        /**
+         * 参与抢红包前和参与抢红包后的扩展方法
+         */
+        EXTENSION,
+        /**
+         * 生成参与抢红包结果
+         */
+        RESPONSE_BUILD,
+        /**
+         * 将参与抢红包结果序列化写出
+         */
+        SERIALIZE,
+        /**
+         * 业务处理的总耗时，不包括拦截器和序列化
+         */
+        TOTAL
+    }
+}
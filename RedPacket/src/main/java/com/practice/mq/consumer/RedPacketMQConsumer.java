@@ -2,11 +2,17 @@ package com.practice.mq.consumer;
 
 import com.practice.common.logging.ExtLogger;
 import com.practice.common.pojo.BigDataInfo;
+import com.practice.common.pojo.RedPacketKey;
 import com.practice.common.pojo.ShareInfo;
 import com.practice.common.util.RedPacketKeyUtil;
 import com.practice.config.RedPacketProperties;
+import com.practice.dao.LuaScriptRegistry;
+import com.practice.dao.RedPacketRankDao;
+import com.practice.dao.RedPacketResultDao;
 import com.practice.extension.RedPacketExtensionComposite;
 import com.practice.mapper.AccountInterface;
+import com.practice.mapper.SettlementLedgerMapper;
+import com.practice.metrics.RedPacketMetrics;
 import org.apache.logging.log4j.Level;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
@@ -14,22 +20,22 @@ import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * 结算消息消费者
@@ -44,6 +50,10 @@ import java.util.concurrent.TimeUnit;
 )
 public class RedPacketMQConsumer implements RocketMQListener<String> {
     private static final ExtLogger log = ExtLogger.create(RedPacketMQConsumer.class); // 日志Logger对象
+    /**
+     * 批量结算模式下消费线程等待批次结算完成的最长时间，单位为秒，短于5分钟的消费超时时间
+     */
+    private static final long SETTLEMENT_WAIT_TIME = 240L;
     @SuppressWarnings("rawtypes")
     private RedisTemplate redisTemplate;
     private TransactionTemplate transactionTemplate;
@@ -51,7 +61,12 @@ public class RedPacketMQConsumer implements RocketMQListener<String> {
     private RedPacketExtensionComposite extensionComposite; // 抢红包业务扩展组合类
     private AccountInterface accountInterface; // 模拟账户业务接口类
     private RedPacketProperties redPacketProperties; // 配置参数类
-    private String settleScript; // Redis红包结果key设置过期时间Lua脚本
+    private LuaScriptRegistry luaScriptRegistry; // Redis Lua脚本注册类
+    private RedPacketResultDao redPacketResultDao; // 红包结果数据访问类
+    private RedPacketRankDao redPacketRankDao; // 红包排名数据访问类
+    private SettlementLedgerMapper settlementLedgerMapper; // 红包结算台账数据库访问
+    private RedPacketMetrics redPacketMetrics; // 红包业务运行指标注册表
+    private LinkedBlockingQueue<Settlement> settlements; // 等待批量结算的结算消息，仅在批量结算模式下创建
 
     @Autowired
     @SuppressWarnings("rawtypes")
@@ -84,82 +99,317 @@ public class RedPacketMQConsumer implements RocketMQListener<String> {
         this.redPacketProperties = redPacketProperties;
     }
 
+    @Autowired
+    private void setLuaScriptRegistry(LuaScriptRegistry luaScriptRegistry) {
+        this.luaScriptRegistry = luaScriptRegistry;
+    }
+
+    @Autowired
+    private void setRedPacketResultDao(RedPacketResultDao redPacketResultDao) {
+        this.redPacketResultDao = redPacketResultDao;
+    }
+
+    @Autowired
+    private void setRedPacketRankDao(RedPacketRankDao redPacketRankDao) {
+        this.redPacketRankDao = redPacketRankDao;
+    }
+
+    @Autowired
+    private void setSettlementLedgerMapper(SettlementLedgerMapper settlementLedgerMapper) {
+        this.settlementLedgerMapper = settlementLedgerMapper;
+    }
+
+    @Autowired
+    private void setRedPacketMetrics(RedPacketMetrics redPacketMetrics) {
+        this.redPacketMetrics = redPacketMetrics;
+    }
+
     @PostConstruct
     private void init() {
-        // 初始化Redis红包结果key过期时间设置Lua脚本
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                Objects.requireNonNull(this.getClass().getClassLoader().getResourceAsStream("lua/settle.lua"))))) {
-            char[] chars = new char[512];
-            int len;
-            StringBuilder sb = new StringBuilder();
-            while ((len = br.read(chars)) != -1) {
-                sb.append(chars, 0, len);
-            }
-            settleScript = sb.toString();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        if (redPacketProperties.getSettlementBatchSize() > 1) {
+            this.settlements = new LinkedBlockingQueue<>();
+            // 批量结算线程，在上一批结算期间到达的消息将合并为下一批，不引入额外的等待时间
+            Thread batcher = new Thread(this::batch, "SettlementBatcher");
+            batcher.setDaemon(true);
+            batcher.start();
         }
     }
 
     /**
      * 抢红包结算<br/>
-     * RocketMQ底层默认实现了多线程消费，默认线程数为20
+     * RocketMQ底层默认实现了多线程消费，默认线程数为20<br/>
+     * 批量结算模式下，消费线程将消息提交到结算队列，等待所在批次结算完成，结算失败时抛出异常，由RocketMQ重新投递
      * @param key 红包key
      */
     @Override
-    @SuppressWarnings("unchecked")
     public void onMessage(String key) {
-        String publisherId = RedPacketKeyUtil.parseUserId(key);
+        if (settlements == null) {
+            try {
+                settle(key);
+            } catch (RuntimeException e) {
+                redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_FAILURE);
+                throw e;
+            }
+            return;
+        }
+
+        Settlement settlement = new Settlement(key);
+        settlements.offer(settlement);
+        try {
+            settlement.future.get(SETTLEMENT_WAIT_TIME, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (TimeoutException e) {
+            // 等待超时视为消费失败，由RocketMQ重新投递，之后完成的结算会使重新投递的消息被识别为重复消息
+            redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_FAILURE);
+            throw new RuntimeException("[" + key + "] 等待批量结算超时", e);
+        }
+    }
+
+    /**
+     * 对单个红包进行结算
+     * @param key 红包key
+     */
+    @SuppressWarnings("unchecked")
+    private void settle(String key) {
+        RedPacketKey parsedKey = RedPacketKeyUtil.parsePayload(key);
+        String publisherId = parsedKey.getUserId();
         String resultKey = redPacketProperties.getBiz().getResultPrefix() + key;
         Map<String, String> mapResult = null;
-        int amount = RedPacketKeyUtil.parseAmount(key);
+        int amount = parsedKey.getAmount();
         long timestamp = System.currentTimeMillis();
 
         // 使用分布式锁Redisson，保证幂等性处理的并发安全
         /*
             由于幂等性通过红包结果key的过期时间来保证，但获取和设置过期时间的两步操作本身不具有原子性，因此需要通过分布式锁实现原子性
             此外，在最后设置红包结果key的过期时间时，再次检查过期时间，并使用Lua脚本实现了这两步操作的原子性，使结算过程实现了类似CAS的操作，保证幂等性
-            如果不使用分布式锁，也能保证幂等性，但是由于设置红包结果key在数据库访问之后执行，不使用分布式锁会导致重复消息增加数据库的访问压力，因此还是使用分布式锁
+            如果不使用分布式锁，也能保证幂等性，但是由于设置红包结果key在数据库访问之后执行，不使用分布式锁会导致重复消息增加数据库的访问压力，因此默认还是使用分布式锁
         */
-        RLock lock = redisson.getLock(key);
+        // 台账模式下不使用分布式锁，并发的重复消息由结算台账的主键约束排队，只有一条能够提交账户操作
+        boolean ledger = redPacketProperties.getSettlementMode() == RedPacketProperties.SettlementMode.LEDGER;
+        RLock lock = ledger ? null : redisson.getLock(key);
         // 由于设置了消费超时时间为5分钟，超过5分钟则认为消费失败且事务不会被提交，因此锁的持有时间设置为5分钟
-        lock.lock(300, TimeUnit.SECONDS);
+        if (lock != null) lock.lock(300, TimeUnit.SECONDS);
         try {
             // 获取红包结果key的过期时间
             Long expire = redisTemplate.getExpire(resultKey);
             // 如果红包结果key的过期时间不是-1，表示已经被设置过期时间或已经过期，即结算处理已经完成，当前消息是重复消息，应当忽略
             if (expire != null && expire == -1) {
-                mapResult = redisTemplate.opsForHash().entries(resultKey);
+                Map<String, String> entries = redPacketResultDao.entries(resultKey);
                 // 整理红包结果
-                Map<String, Integer> result = settle(mapResult, amount, publisherId);
+                Map<String, Long> result = settle(entries, amount, publisherId);
                 log.biz("[{}] [ ] 红包结算结果 {} ", key, result);
                 // 开启事务，当Redis中的key成功设置过期时间后，提交账户操作
+                Boolean settled = transactionTemplate.execute(status -> {
+                    // 台账模式下先写入结算台账，如果红包已经被其他消费者结算，则当前消息是重复消息，不做任何操作
+                    if (ledger && settlementLedgerMapper.insertIgnore(key, timestamp) == 0) return false;
+                    // 调用金融账户模块API进行结算
+                    accountInterface.batchIncreaseBalance(result);
+                    // 通过为红包结果key设置过期时间，保证结算处理的幂等性
+                    // 再次检查红包结果key的过期时间是否为-1，如果是则设置过期时间，通过Lua脚本实现两步操作的原子性
+                    // 开启排名时，排名key与红包结果key一起设置过期时间
+                    List<String> settleKeys = new ArrayList<>(3);
+                    settleKeys.add(resultKey);
+                    settleKeys.addAll(redPacketRankDao.rankKeys(key));
+                    Long success = luaScriptRegistry.execute(LuaScriptRegistry.Script.SETTLE,
+                            settleKeys, String.valueOf(redPacketProperties.getBiz().getResultKeepTime()));
+                    if (success == null) {
+                        throw new RuntimeException("[" + key + "] 访问Redis异常，结算失败");
+                    }
+                    if (success != 1) {
+                        throw new RuntimeException("[" + key + "] 重复结算，结算失败");
+                    }
+                    return true;
+                });
+                if (Boolean.TRUE.equals(settled)) {
+                    mapResult = entries;
+                    redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_SUCCESS);
+                    log.biz("[{}] [ ] 红包结算完成", key);
+
+                    // 执行红包结算后具有幂等性的扩展方法
+                    extensionComposite.afterSettlementIdempotent(key);
+                } else {
+                    redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_DUPLICATE);
+                }
+            } else {
+                redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_DUPLICATE);
+            }
+        } finally {
+            if (lock != null) lock.unlock();
+        }
+
+        afterSettle(key, mapResult, amount, timestamp);
+    }
+
+    /**
+     * 批量结算线程的执行方法，每次从结算队列取出一批消息进行结算<br/>
+     * 任何异常都只使当前批次中尚未完成的结算消息失败，不会终止批量结算线程
+     */
+    private void batch() {
+        int batchSize = redPacketProperties.getSettlementBatchSize();
+        List<Settlement> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                batch.add(settlements.take());
+                settlements.drainTo(batch, batchSize - 1);
+                settleBatch(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                log.error("批量结算异常：{}", e.getMessage());
+                batch.forEach(settlement -> settlement.future.completeExceptionally(e));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 对一批红包进行结算<br/>
+     * 通过单次管道请求查询所有红包结果key的过期时间和红包结果，合并所有账户的增加金额后在同一个事务中批量增加账户余额，
+     * 再通过Lua脚本原子地为所有红包结果key设置过期时间<br/>
+     * 批量结算不使用分布式锁，如果批次中存在已经被其他消费者结算的红包，则事务回滚，改为逐个结算
+     * @param batch 一批结算消息
+     */
+    @SuppressWarnings("unchecked")
+    private void settleBatch(List<Settlement> batch) {
+        // 合并同一批次中的重复消息
+        Map<String, List<Settlement>> settlementMap = new LinkedHashMap<>();
+        for (Settlement settlement : batch) {
+            settlementMap.computeIfAbsent(settlement.key, k -> new ArrayList<>()).add(settlement);
+        }
+        List<String> keys = new ArrayList<>(settlementMap.size());
+        // 每个红包key只解析一次，结算和结算后处理共用，无法解析的红包key只使对应的结算消息失败
+        Map<String, RedPacketKey> parsedKeys = new HashMap<>();
+        for (Map.Entry<String, List<Settlement>> entry : settlementMap.entrySet()) {
+            String key = entry.getKey();
+            try {
+                parsedKeys.put(key, RedPacketKeyUtil.parsePayload(key));
+                keys.add(key);
+            } catch (Exception e) {
+                log.error("[{}] 红包key解析失败：{}", key, e.getMessage());
+                redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_FAILURE);
+                entry.getValue().forEach(settlement -> settlement.future.completeExceptionally(e));
+            }
+        }
+        if (keys.isEmpty()) return;
+        String resultPrefix = redPacketProperties.getBiz().getResultPrefix();
+        long timestamp = System.currentTimeMillis();
+        Map<String, Map<String, String>> mapResults = new HashMap<>();
+
+        try {
+            // 使用管道操作，查询所有红包结果key的过期时间和红包结果
+            // 增量读取红包结果时，管道中只查询过期时间，红包结果在之后逐个通过HSCAN读取
+            boolean scan = redPacketResultDao.isScan();
+            int step = scan ? 1 : 2;
+            List<Object> list = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String key : keys) {
+                    byte[] resultKeyBytes = (resultPrefix + key).getBytes(StandardCharsets.UTF_8);
+                    connection.keyCommands().ttl(resultKeyBytes);
+                    if (!scan) connection.hashCommands().hGetAll(resultKeyBytes);
+                }
+                return null;
+            });
+
+            List<String> settledKeys = new ArrayList<>(keys.size());
+            List<String> resultKeys = new ArrayList<>(keys.size());
+            // 同一账户在一批红包中的增加金额之和可能超过int范围，按long合并
+            Map<String, Long> merged = new HashMap<>();
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                Long expire = (Long) list.get(i * step);
+                // 如果红包结果key的过期时间不是-1，表示已经被设置过期时间或已经过期，即结算处理已经完成，当前消息是重复消息，应当忽略
+                if (expire == null || expire != -1) continue;
+                Map<String, String> mapResult = scan ?
+                        redPacketResultDao.<String>entries(resultPrefix + key) :
+                        (Map<String, String>) list.get(i * step + 1);
+                // 整理红包结果，合并同一账户的增加金额
+                Map<String, Long> result = settle(mapResult, parsedKeys.get(key).getAmount(), parsedKeys.get(key).getUserId());
+                log.biz("[{}] [ ] 红包结算结果 {} ", key, result);
+                result.forEach((userId, share) -> merged.merge(userId, share, Long::sum));
+                settledKeys.add(key);
+                resultKeys.add(resultPrefix + key);
+                mapResults.put(key, mapResult);
+            }
+
+            if (!resultKeys.isEmpty()) {
+                // 开启事务，当Redis中的所有key成功设置过期时间后，提交账户操作
                 transactionTemplate.execute(new TransactionCallbackWithoutResult() {
                     @Override
                     protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        // 台账模式下批量写入结算台账，如果批次中存在已经结算过的红包，则批量结算失败
+                        if (redPacketProperties.getSettlementMode() == RedPacketProperties.SettlementMode.LEDGER
+                                && settlementLedgerMapper.insertIgnoreBatch(settledKeys, timestamp) != settledKeys.size()) {
+                            throw new RuntimeException("批次中存在重复结算，批量结算失败");
+                        }
                         // 调用金融账户模块API进行结算
-                        accountInterface.batchIncreaseBalance(result);
-                        // 通过为红包结果key设置过期时间，保证结算处理的幂等性
-                        // 再次检查红包结果key的过期时间是否为-1，如果是则设置过期时间，通过Lua脚本实现两步操作的原子性
-                        Long success = (Long) redisTemplate.execute(new DefaultRedisScript<>(settleScript, Long.class),
-                                List.of(resultKey), String.valueOf(redPacketProperties.getBiz().getResultKeepTime()));
+                        accountInterface.batchIncreaseBalance(merged);
+                        // 再次检查所有红包结果key的过期时间是否为-1，如果是则全部设置过期时间，否则不做任何修改
+                        // 开启排名时，排名key追加在红包结果key之后，只与红包结果key一起设置过期时间
+                        List<String> settleKeys = new ArrayList<>(resultKeys);
+                        settledKeys.forEach(settledKey -> settleKeys.addAll(redPacketRankDao.rankKeys(settledKey)));
+                        Long success = luaScriptRegistry.execute(LuaScriptRegistry.Script.SETTLE_BATCH,
+                                settleKeys, String.valueOf(redPacketProperties.getBiz().getResultKeepTime()),
+                                String.valueOf(resultKeys.size()));
                         if (success == null) {
-                            throw new RuntimeException("[" + key + "] 访问Redis异常，结算失败");
+                            throw new RuntimeException("访问Redis异常，批量结算失败");
                         }
                         if (success != 1) {
-                            throw new RuntimeException("[" + key + "] 重复结算，结算失败");
+                            throw new RuntimeException("批次中存在重复结算，批量结算失败");
                         }
                     }
                 });
-                log.biz("[{}] [ ] 红包结算完成", key);
+            }
 
-                // 执行红包结算后具有幂等性的扩展方法
-                extensionComposite.afterSettlementIdempotent(key);
+        } catch (Exception e) {
+            log.warn("批量结算失败，改为逐个结算：{}", e.getMessage());
+            redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_BATCH_FALLBACK);
+            // 逐个结算，此时还没有执行任何结算后的扩展方法，已经完成的红包会被识别为重复消息而忽略
+            for (String key : keys) {
+                try {
+                    settle(key);
+                    settlementMap.get(key).forEach(settlement -> settlement.future.complete(null));
+                } catch (Exception ex) {
+                    redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_FAILURE);
+                    settlementMap.get(key).forEach(settlement -> settlement.future.completeExceptionally(ex));
+                }
+            }
+            return;
+        }
+
+        // 批量结算已经提交，逐个执行结算后处理，某个红包的结算后处理失败只使其对应的结算消息失败，
+        // 不会改为逐个结算，避免已经完成结算后处理的红包重复执行扩展方法
+        for (String key : keys) {
+            try {
+                Map<String, String> mapResult = mapResults.get(key);
+                if (mapResult != null) {
+                    redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_SUCCESS);
+                    log.biz("[{}] [ ] 红包结算完成", key);
+                    // 执行红包结算后具有幂等性的扩展方法
+                    extensionComposite.afterSettlementIdempotent(key);
+                }
+                if (mapResult == null) redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_DUPLICATE);
+                afterSettle(key, mapResult, parsedKeys.get(key).getAmount(), timestamp);
+                settlementMap.get(key).forEach(settlement -> settlement.future.complete(null));
+            } catch (Exception e) {
+                log.error("[{}] 红包结算后处理失败：{}", key, e.getMessage());
+                redPacketMetrics.increment(RedPacketMetrics.Counter.SETTLE_FAILURE);
+                settlementMap.get(key).forEach(settlement -> settlement.future.completeExceptionally(e));
             }
-        } finally {
-            lock.unlock();
         }
+    }
 
+    /**
+     * 红包结算后输出大数据日志并执行扩展方法
+     * @param key 红包key
+     * @param mapResult 从Redis获取的红包结果原始信息，如果是重复消息则为空
+     * @param amount 红包总金额
+     * @param timestamp 结算毫秒时间戳
+     */
+    private void afterSettle(String key, @Nullable Map<String, String> mapResult, int amount, long timestamp) {
         if (mapResult != null && log.isEnabled(Level.getLevel("BIGDATA"))) {
             Map<String, ShareInfo> map = fullSettle(mapResult);
             log.bigdata("{}", BigDataInfo.of(
@@ -180,8 +430,8 @@ public class RedPacketMQConsumer implements RocketMQListener<String> {
      * @param publisherId 发起用户ID
      * @return 整理后的红包结果
      */
-    private Map<String, Integer> settle(Map<String, String> mapResult, int amount, String publisherId) {
-        HashMap<String, Integer> result = new HashMap<>();
+    private Map<String, Long> settle(Map<String, String> mapResult, int amount, String publisherId) {
+        HashMap<String, Long> result = new HashMap<>();
 
         // 移除预生成结果占位项
         mapResult.remove(redPacketProperties.getBiz().getResultPlaceholder());
@@ -190,14 +440,13 @@ public class RedPacketMQConsumer implements RocketMQListener<String> {
         // 遍历红包结果
         for (Map.Entry<String, String> entry : mapResult.entrySet()) {
             // 从每项结果提取金额
-            String value = entry.getValue();
-            int share = Integer.parseInt(value.substring(0, value.indexOf('-')));
+            int share = RedPacketKeyUtil.parseShare(entry.getValue());
             // 为每个抢到红包的用户增加账户余额
-            result.put(entry.getKey(), share);
+            result.put(entry.getKey(), (long) share);
             amount -= share;
         }
         // 没有被抢完的红包金额以及本人抢到的红包金额，退回到发起者的账户
-        if (amount > 0) result.put(publisherId, amount);
+        if (amount > 0) result.put(publisherId, (long) amount);
 
         return result;
     }
@@ -216,12 +465,22 @@ public class RedPacketMQConsumer implements RocketMQListener<String> {
         for (Map.Entry<String, String> entry : mapResult.entrySet()) {
             // 从每项结果提取耗时和金额
             String value = entry.getValue();
-            int idx = value.indexOf('-');
-            ShareInfo info = new ShareInfo(Integer.parseInt(value.substring(0, idx)),
-                    RedPacketKeyUtil.decodeTimeCost(value.substring(idx + 1)));
+            ShareInfo info = new ShareInfo(RedPacketKeyUtil.parseShare(value), RedPacketKeyUtil.parseTimeCost(value));
             result.put(entry.getKey(), info);
         }
 
         return result;
     }
+
+    /**
+     * 等待批量结算的结算消息
+     */
+    private static class Settlement {
+        private final String key; // 红包key
+        private final CompletableFuture<Void> future = new CompletableFuture<>(); // 结算结果
+
+        private Settlement(String key) {
+            this.key = key;
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package com.practice.mq.producer;
+
+import com.practice.common.logging.ExtLogger;
+import com.practice.common.pojo.OutboxMessage;
+import com.practice.config.RedPacketProperties;
+import com.practice.mapper.OutboxMapper;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.spring.core.RocketMQTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发件箱中继<br/>
+ * 发件箱模式下，发起抢红包时结算消息与扣减余额在同一个本地事务中写入发件箱，由中继线程在事务提交后批量读取并发送延时消息<br/>
+ * 消息发送成功后从发件箱中删除，如果在删除前宕机，重启后消息会被重复发送，由结算消费者保证幂等
+ */
+@Component
+@Profile({"biz-dev", "biz-test" ,"biz-prod"})
+@ConditionalOnProperty(value = "red-packet.publish.mode", havingValue = "outbox")
+public class OutboxRelay {
+    private static final ExtLogger log = ExtLogger.create(OutboxRelay.class); // 日志Logger对象
+    private OutboxMapper outboxMapper;
+    private RocketMQTemplate rocketMQTemplate;
+    private RedPacketProperties redPacketProperties; // 配置参数类
+
+    @Autowired
+    private void setOutboxMapper(OutboxMapper outboxMapper) {
+        this.outboxMapper = outboxMapper;
+    }
+
+    @Autowired
+    private void setRocketMQTemplate(RocketMQTemplate rocketMQTemplate) {
+        this.rocketMQTemplate = rocketMQTemplate;
+    }
+
+    @Autowired
+    private void setRedPacketProperties(RedPacketProperties redPacketProperties) {
+        this.redPacketProperties = redPacketProperties;
+    }
+
+    @PostConstruct
+    private void init() {
+        int interval = redPacketProperties.getPublish().getOutboxInterval();
+        Executors.newScheduledThreadPool(1, r -> new Thread(r, "OutboxRelay"))
+                .scheduleWithFixedDelay(this::relay, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 读取本JVM写入的发件箱消息并发送，直到发件箱为空或发送失败<br/>
+     * 每批消息发送后，通过一条SQL语句删除其中发送成功的消息
+     */
+    private void relay() {
+        int serviceId = redPacketProperties.getServiceId();
+        int batchSize = redPacketProperties.getPublish().getOutboxBatchSize();
+        try {
+            List<OutboxMessage> messages;
+            do {
+                messages = outboxMapper.selectBatch(serviceId, batchSize);
+                if (messages.isEmpty()) return;
+
+                List<Long> sent = new ArrayList<>(messages.size());
+                long now = System.currentTimeMillis();
+                for (OutboxMessage message : messages) {
+                    // 按照投递时间计算剩余的延时时长，向上取整，已经到期的消息以最短延时发送
+                    long delay = Math.max((message.getDeliverTime() - now + 999) / 1000, 1L);
+                    try {
+                        if (rocketMQTemplate
+                                .syncSendDelayTimeSeconds("RedPacketSettlement",
+                                        MessageBuilder.withPayload(message.getRedPacketKey()).build(), delay)
+                                .getSendStatus() == SendStatus.SEND_OK) {
+                            sent.add(message.getId());
+                        }
+                    } catch (Exception e) {
+                        log.error("[{}] 发件箱消息发送失败：{}", message.getRedPacketKey(), e.getMessage());
+                    }
+                }
+
+                if (!sent.isEmpty()) outboxMapper.deleteBatch(sent);
+                // 存在发送失败的消息时，等待下一轮重试
+                if (sent.size() < messages.size()) return;
+            } while (messages.size() == batchSize);
+        } catch (Exception e) {
+            log.error("发件箱中继异常：{}", e.getMessage());
+        }
+    }
+}
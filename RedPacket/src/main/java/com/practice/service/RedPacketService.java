@@ -5,14 +5,24 @@ import com.practice.common.exception.BalanceNotEnoughException;
 import com.practice.common.exception.IllegalAccountException;
 import com.practice.common.logging.ExtLogger;
 import com.practice.common.pojo.BigDataInfo;
-import com.practice.common.pojo.ShareInfo;
+import com.practice.common.pojo.CachedResult;
+import com.practice.common.pojo.OutboxMessage;
+import com.practice.common.pojo.RedPacketInfo;
+import com.practice.common.pojo.RedPacketKey;
 import com.practice.common.result.RedPacketResult;
 import com.practice.common.result.ShareResult;
-import com.practice.common.util.RedPacketKeyUtil;
+import com.practice.common.util.VirtualThreadUtil;
 import com.practice.config.RedPacketProperties;
+import com.practice.dao.AsyncRedPacketDao;
 import com.practice.dao.RedPacketDao;
+import com.practice.dao.RedPacketRankDao;
+import com.practice.dao.ShareCoalesceDao;
+import com.practice.dao.ShareLeaseDao;
 import com.practice.extension.RedPacketExtensionComposite;
 import com.practice.mapper.AccountInterface;
+import com.practice.mapper.OutboxMapper;
+import com.practice.metrics.RedPacketMetrics;
+import com.practice.metrics.ShareLatencyMetrics;
 import org.apache.rocketmq.client.producer.SendStatus;
 import org.apache.rocketmq.spring.core.RocketMQTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -26,22 +36,35 @@ import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 @Profile({"biz-dev", "biz-test" ,"biz-prod"})
 public class RedPacketService {
     private final ExtLogger log = ExtLogger.create(RedPacketService.class); // 日志Logger对象
     private RedPacketDao redPacketDao;
+    private ShareLeaseDao shareLeaseDao; // 租约模式抢红包数据访问类，仅在租约模式下注入
+    private ShareCoalesceDao shareCoalesceDao; // 合并模式抢红包数据访问类，仅在合并模式下注入
+    private AsyncRedPacketDao asyncRedPacketDao; // 异步抢红包数据访问类，仅在启用异步访问时注入
+    private RedPacketRankDao redPacketRankDao; // 红包排名数据访问类
+    private ShareLatencyMetrics shareLatencyMetrics; // 参与抢红包各阶段的延迟统计
+    private RedPacketMetrics redPacketMetrics; // 红包业务运行指标注册表
     private AccountInterface accountInterface;
+    private OutboxMapper outboxMapper; // 发起抢红包结算消息发件箱数据库访问
     private RocketMQTemplate rocketMQTemplate;
     private TransactionTemplate transactionTemplate;
     private RedPacketExtensionComposite extensionComposite; // 抢红包业务扩展组合类
     private RedPacketProperties redPacketProperties; // 配置参数类
-    private ConcurrentLruLocalCache<Map<String, Object>> cache; // 本地缓存，存储红包key对应的抢红包结果
+    private ConcurrentLruLocalCache<CachedResult> cache; // 本地缓存，存储红包key对应的抢红包结果
     private AtomicMap atomicMap; // 原子整数Map，存储红包key对应的原子整数，用于避免抢红包阻塞
+    private ExecutorService asyncPool; // 异步处理无法以非阻塞方式完成的请求的线程池
+    private final ConcurrentHashMap<String, ShareLock> shareLocks = new ConcurrentHashMap<>(); // 红包key对应的锁，没有线程持有或等待时移除
     private ExecutorService transactionPool; // 异步处理发起抢红包的多个网络通信操作的线程池
 
     @Autowired
@@ -49,11 +72,46 @@ public class RedPacketService {
         this.redPacketDao = redPacketDao;
     }
 
+    @Autowired
+    private void setRedPacketRankDao(RedPacketRankDao redPacketRankDao) {
+        this.redPacketRankDao = redPacketRankDao;
+    }
+
+    @Autowired
+    private void setShareLatencyMetrics(ShareLatencyMetrics shareLatencyMetrics) {
+        this.shareLatencyMetrics = shareLatencyMetrics;
+    }
+
+    @Autowired
+    private void setRedPacketMetrics(RedPacketMetrics redPacketMetrics) {
+        this.redPacketMetrics = redPacketMetrics;
+    }
+
+    @Autowired(required = false)
+    private void setShareLeaseDao(ShareLeaseDao shareLeaseDao) {
+        this.shareLeaseDao = shareLeaseDao;
+    }
+
+    @Autowired(required = false)
+    private void setShareCoalesceDao(ShareCoalesceDao shareCoalesceDao) {
+        this.shareCoalesceDao = shareCoalesceDao;
+    }
+
+    @Autowired(required = false)
+    private void setAsyncRedPacketDao(AsyncRedPacketDao asyncRedPacketDao) {
+        this.asyncRedPacketDao = asyncRedPacketDao;
+    }
+
     @Autowired
     private void setAccountInterface(AccountInterface accountInterface) {
         this.accountInterface = accountInterface;
     }
 
+    @Autowired
+    private void setOutboxMapper(OutboxMapper outboxMapper) {
+        this.outboxMapper = outboxMapper;
+    }
+
     @Autowired
     private void setRocketMQTemplate(RocketMQTemplate rocketMQTemplate) {
         this.rocketMQTemplate = rocketMQTemplate;
@@ -76,22 +134,42 @@ public class RedPacketService {
 
     @PostConstruct
     private void init() throws NoSuchFieldException, IllegalAccessException {
-        // 初始化本地缓存
-        this.cache = new ConcurrentLruLocalCache<>(redPacketProperties.getShare().getCacheSize());
+        RedPacketProperties.ThreadMode threadMode = redPacketProperties.getThreadMode();
+        // 初始化本地缓存，虚拟线程模式下缓存的异步刷新也使用虚拟线程
+        this.cache = threadMode == RedPacketProperties.ThreadMode.VIRTUAL && VirtualThreadUtil.isSupported() ?
+                new ConcurrentLruLocalCache<>(redPacketProperties.getShare().getCacheSize(),
+                        VirtualThreadUtil.newVirtualThreadPerTaskExecutor("AsyncRefreshHandler")) :
+                new ConcurrentLruLocalCache<>(redPacketProperties.getShare().getCacheSize());
         // 初始化原子整数Map
         this.atomicMap = new AtomicMap(
                 redPacketProperties.getPublish().getAtomicKeepTime(),
                 redPacketProperties.getPublish().getAtomicMapSize()
         );
         // 初始化线程池
-        this.transactionPool = new ThreadPoolExecutor(
+        this.transactionPool = VirtualThreadUtil.newExecutor(threadMode, "TransactionHandler", () -> new ThreadPoolExecutor(
                 redPacketProperties.getPublish().getMinThreads(),
                 redPacketProperties.getPublish().getMaxThreads(),
                 60L, TimeUnit.SECONDS,
                 new LinkedBlockingQueue<>(redPacketProperties.getPublish().getQueueSize()),
                 r -> new Thread(r, "TransactionHandler"),
                 new ThreadPoolExecutor.CallerRunsPolicy()
-        );
+        ));
+        // 线程池队列已满时拒绝请求，避免请求无限堆积
+        this.asyncPool = VirtualThreadUtil.newExecutor(threadMode, "AsyncHandler", () -> new ThreadPoolExecutor(
+                redPacketProperties.getPublish().getMinThreads(),
+                redPacketProperties.getPublish().getMaxThreads(),
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(redPacketProperties.getPublish().getQueueSize()),
+                r -> new Thread(r, "AsyncHandler")
+        ));
+        // 注册计量值
+        redPacketMetrics.gauge("atomic_map_size", atomicMap::size);
+        if (transactionPool instanceof ThreadPoolExecutor pool) {
+            redPacketMetrics.gauge("transaction_pool_queue_size", () -> pool.getQueue().size());
+        }
+        if (asyncPool instanceof ThreadPoolExecutor pool) {
+            redPacketMetrics.gauge("async_pool_queue_size", () -> pool.getQueue().size());
+        }
     }
 
     /**
@@ -118,49 +196,80 @@ public class RedPacketService {
         // 将大红包预先分割成若干小红包
         String[] arr = splitRedPacket(amount, shareNum);
 
+        // 组提交模式下，扣减账户余额由组提交单独提交，后续操作失败时退回扣减金额
+        boolean groupCommit = redPacketProperties.getPublish().isGroupCommit();
+        String debitId = groupCommit ? debit(userId, amount) : null;
+        // 红包key是否已经由本次调用创建成功，之后的任何失败都需要移除红包key和红包结果key
+        AtomicBoolean created = new AtomicBoolean();
+
         // 使用线程池异步处理多个网络通信操作
         // 开启事务，当消息和Redis的key均创建成功后，提交账户操作
-        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
-            @Override
-            protected void doInTransactionWithoutResult(TransactionStatus status) {
-                // 为了避免恶意攻击产生大量垃圾消息和key，先同步扣减账户余额
-                try {
-                    if (accountInterface.decreaseBalance(userId, amount) != 1) throw new IllegalAccountException(userId);
-                } catch (DataIntegrityViolationException e) {
-                    throw new BalanceNotEnoughException(userId, amount);
-                }
-                // 在Redis中创建红包key
-                FutureTask<Integer> keyFuture = new FutureTask<>(
-                        () -> {
-                            try {
-                                redPacketDao.publish(key, arr, expireTime);
-                                return 1;
-                            } catch (Exception e) {
-                                return null;
-                            }
+        try {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    // 为了避免恶意攻击产生大量垃圾消息和key，先同步扣减账户余额
+                    // 组提交模式下删除扣减记录，与后续操作一起提交，之后扣减金额不会再被退回
+                    if (groupCommit) accountInterface.confirmDebit(debitId);
+                    else debit(userId, amount);
+                    if (redPacketProperties.getPublish().getMode() == RedPacketProperties.PublishMode.OUTBOX) {
+                        // 发件箱模式下，结算消息与扣减余额在同一个本地事务中写入发件箱，事务提交后由发件箱中继发送，不再同步等待消息发送
+                        if (outboxMapper.insert(redPacketProperties.getServiceId(), key, timestamp + expireTime * 1000L) != 1) {
+                            throw new RuntimeException("发件箱消息写入失败");
                         }
-                );
-                // 发送延时消息，用于结算
-                FutureTask<Integer> messageFuture = new FutureTask<>(
-                        () -> rocketMQTemplate
-                                    .syncSendDelayTimeSeconds("RedPacketSettlement",
-                                            MessageBuilder.withPayload(key).build(), expireTime)
-                                    .getSendStatus() == SendStatus.SEND_OK ? 1 : null
-                );
-                transactionPool.submit(keyFuture);
-                transactionPool.submit(messageFuture);
-                try {
-                    if (keyFuture.get() == null) throw new RuntimeException("红包key创建失败");
-                    if (messageFuture.get() == null) {
-                        // 如果消息发送失败，则预生成的红包结果key会无法访问，造成泄漏，因此需要主动移除
-                        redPacketDao.removeResult(key);
-                        throw new RuntimeException("延时消息发送失败");
+                        // 在Redis中创建红包key
+                        try {
+                            redPacketDao.publish(key, arr, expireTime);
+                            created.set(true);
+                        } catch (Exception e) {
+                            throw new RuntimeException("红包key创建失败", e);
+                        }
+                        return;
+                    }
+                    // 在Redis中创建红包key
+                    FutureTask<Integer> keyFuture = new FutureTask<>(
+                            () -> {
+                                try {
+                                    redPacketDao.publish(key, arr, expireTime);
+                                    created.set(true);
+                                    return 1;
+                                } catch (Exception e) {
+                                    return null;
+                                }
+                            }
+                    );
+                    // 发送延时消息，用于结算
+                    FutureTask<Integer> messageFuture = new FutureTask<>(
+                            () -> rocketMQTemplate
+                                        .syncSendDelayTimeSeconds("RedPacketSettlement",
+                                                MessageBuilder.withPayload(key).build(), expireTime)
+                                        .getSendStatus() == SendStatus.SEND_OK ? 1 : null
+                    );
+                    transactionPool.submit(keyFuture);
+                    transactionPool.submit(messageFuture);
+                    try {
+                        if (keyFuture.get() == null) throw new RuntimeException("红包key创建失败");
+                        // 如果消息发送失败，则预生成的红包结果key会无法访问，造成泄漏，由事务外统一移除
+                        if (messageFuture.get() == null) throw new RuntimeException("延时消息发送失败");
+                    } catch (InterruptedException | ExecutionException e) {
+                        throw new RuntimeException(e);
                     }
-                } catch (InterruptedException | ExecutionException e) {
-                    throw new RuntimeException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            // 扣减已经回滚，移除本次创建的红包key和红包结果key，无论失败发生在消息发送还是事务提交阶段
+            // 已经发送的延时消息在结算时找不到红包结果key，视为重复消息而忽略，不会对从未扣减的金额进行结算；
+            // 延时消息至少在红包有效期结束后才投递，晚于此处的移除，红包key一并移除后用户也无法再抢红包重新创建红包结果key
+            if (created.get()) {
+                try {
+                    redPacketDao.removeResult(key);
+                } catch (Exception ex) {
+                    log.error("[ ] [{}] 发起抢红包失败后移除红包key失败：{}", userId, ex.getMessage());
                 }
             }
-        });
+            if (groupCommit) refund(debitId, userId, amount);
+            throw e;
+        }
 
         // 创建红包key对应的原子整数，初始值为红包份数
         atomicMap.put(key, shareNum);
@@ -180,38 +289,65 @@ public class RedPacketService {
 
     /**
      * 参与抢红包
-     * @param key 红包key
+     * @param redPacketKey 解析后的红包key
      * @param userId 抢红包用户ID
      */
     @SuppressWarnings("rawtypes")
-    public RedPacketResult share(String key, String userId) {
+    public RedPacketResult share(RedPacketKey redPacketKey, String userId) {
+        String key = redPacketKey.getPayload();
+        long totalStart = shareLatencyMetrics.start();
+        long start = totalStart;
         // 执行参与抢红包前的扩展方法
         extensionComposite.beforeShare(key, userId);
+        // 扩展方法耗时，参与抢红包前和参与抢红包后的扩展方法合计为一次记录
+        long extensionNanos = shareLatencyMetrics.start() - start;
 
-        Map<String, Object> mapResult = null;
+        CachedResult mapResult = null;
         ShareResult shareResult = null;
         // 设置最大重试次数，防止缓存穿透导致的死循环
         int tryTimes = 0;
         while (mapResult == null && shareResult == null
                 && tryTimes++ <= redPacketProperties.getShare().getMaxTryTimes()) {
+            if (tryTimes > 1) redPacketMetrics.increment(RedPacketMetrics.Counter.SHARE_RETRY);
             // 如果在本地缓存中找不到对应的key，则准备访问Redis
-            if ((mapResult = cache.get(key)) == null) {
+            start = shareLatencyMetrics.start();
+            mapResult = cache.get(key);
+            shareLatencyMetrics.record(ShareLatencyMetrics.Stage.CACHE_LOOKUP, start);
+            if (mapResult != null) {
+                redPacketMetrics.increment(RedPacketMetrics.Counter.CACHE_HIT);
+            } else {
                 AtomicInteger count;
-                // 如果在原子整数Map中找不到对应的key，表示红包已经抢完或者系统中存在大量红包，可以通过竞争锁访问Redis回写本地缓存
-                if ((count = atomicMap.get(key)) == null || count.decrementAndGet() < 0) {
-                    // 锁住key对应的字符串常量对象
-                    synchronized (key.intern()) {
+                // 租约模式下，由本地租约判断红包是否已经确认结束，确认结束后通过竞争锁访问Redis回写本地缓存
+                // 否则，如果在原子整数Map中找不到对应的key，表示红包已经抢完或者系统中存在大量红包，可以通过竞争锁访问Redis回写本地缓存
+                start = shareLatencyMetrics.start();
+                boolean finished = shareLeaseDao != null ? shareLeaseDao.isFinished(key)
+                        : ((count = atomicMap.get(key)) == null || count.decrementAndGet() < 0);
+                shareLatencyMetrics.record(ShareLatencyMetrics.Stage.ATOMIC_DECREMENT, start);
+                if (finished) {
+                    redPacketMetrics.increment(RedPacketMetrics.Counter.SLOW_PATH);
+                    // 锁住key对应的锁，使用可重入锁而不是对象监视器，避免虚拟线程在访问Redis期间被固定在载体线程上
+                    // 每个红包key使用独立的锁，不同红包之间不会互相等待
+                    ShareLock lock = acquireShareLock(key);
+                    start = shareLatencyMetrics.start();
+                    lock.lock();
+                    shareLatencyMetrics.record(ShareLatencyMetrics.Stage.LOCK_WAIT, start);
+                    try {
                         // 如果在本地缓存中仍找不到对应的key，则访问Redis
                         if ((mapResult = cache.get(key)) == null) {
-                            shareResult = redPacketDao.share(key, userId);
+                            shareResult = doShare(redPacketKey, userId);
                             // 如果返回结果为空，表明请求超时，正常释放锁，进入下一轮循环重试
                             // 如果抢不到红包，那么返回的是红包结果，写入本地缓存
                             if (shareResult != null && shareResult.getStatus() == 0) mapResult = doCache(key, shareResult);
+                        } else {
+                            redPacketMetrics.increment(RedPacketMetrics.Counter.CACHE_HIT);
                         }
+                    } finally {
+                        releaseShareLock(key, lock);
                     }
                 } else {
-                    // 原子整数扣减到负数之前，都可以不必竞争锁，直接访问Redis
-                    shareResult = redPacketDao.share(key, userId);
+                    redPacketMetrics.increment(RedPacketMetrics.Counter.FAST_PATH);
+                    // 原子整数扣减到负数之前或租约模式下红包确认结束之前，都可以不必竞争锁，直接访问Redis
+                    shareResult = doShare(redPacketKey, userId);
                     // 如果返回结果为空，表明请求超时，进入下一轮循环重试
                     // 如果抢不到红包，那么返回的是红包结果，写入本地缓存
                     if (shareResult != null && shareResult.getStatus() == 0) mapResult = doCache(key, shareResult);
@@ -220,10 +356,341 @@ public class RedPacketService {
         }
 
         // 对结果进行判断和进一步处理
+        start = shareLatencyMetrics.start();
         RedPacketResult redPacketResult = doRedPacketResult(mapResult, shareResult, userId, key);
+        shareLatencyMetrics.record(ShareLatencyMetrics.Stage.RESPONSE_BUILD, start);
 
         // 执行参与抢红包后的扩展方法
-        return extensionComposite.afterShare(key, userId, redPacketResult);
+        start = shareLatencyMetrics.start();
+        redPacketResult = extensionComposite.afterShare(key, userId, redPacketResult);
+        shareLatencyMetrics.recordNanos(ShareLatencyMetrics.Stage.EXTENSION, extensionNanos + shareLatencyMetrics.start() - start);
+        shareLatencyMetrics.record(ShareLatencyMetrics.Stage.TOTAL, totalStart);
+        return countShare(redPacketResult);
+    }
+
+    /**
+     * 批量发起抢红包<br/>
+     * 在同一个事务中一次性扣减发起用户的账户余额，通过单次管道请求创建所有红包key，并并发发送所有结算消息
+     * @param userId 发起抢红包用户ID
+     * @param infos 每个红包的总金额、拆分小红包份数、过期时长
+     * @param keys 每个红包的红包key
+     * @param timestamps 每个红包的发起毫秒时间戳
+     */
+    public void publishBatch(String userId, List<RedPacketInfo> infos, String[] keys, long[] timestamps) {
+        int size = infos.size();
+        String[][] arrs = new String[size][];
+        int[] expireTimes = new int[size];
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            RedPacketInfo info = infos.get(i);
+            // 执行发起抢红包前的扩展方法
+            extensionComposite.beforePublish(userId, info.getAmount(), info.getShareNum(), info.getExpireTime());
+            // 将大红包预先分割成若干小红包
+            arrs[i] = splitRedPacket(info.getAmount(), info.getShareNum());
+            expireTimes[i] = info.getExpireTime();
+            total += info.getAmount();
+        }
+        int amount = total;
+
+        // 组提交模式下，扣减账户余额由组提交单独提交，后续操作失败时退回扣减金额
+        boolean groupCommit = redPacketProperties.getPublish().isGroupCommit();
+        String debitId = groupCommit ? debit(userId, amount) : null;
+        // 红包key是否已经由本次调用全部创建成功，之后的任何失败都需要移除所有红包key和红包结果key
+        AtomicBoolean created = new AtomicBoolean();
+
+        // 开启事务，当消息和Redis的key均创建成功后，提交账户操作
+        try {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    // 一次性扣减所有红包的总金额
+                    // 组提交模式下删除扣减记录，与后续操作一起提交，之后扣减金额不会再被退回
+                    if (groupCommit) accountInterface.confirmDebit(debitId);
+                    else debit(userId, amount);
+                    if (redPacketProperties.getPublish().getMode() == RedPacketProperties.PublishMode.OUTBOX) {
+                        // 发件箱模式下，通过一条SQL语句写入所有结算消息
+                        List<OutboxMessage> messages = new ArrayList<>(size);
+                        for (int i = 0; i < size; i++) {
+                            OutboxMessage message = new OutboxMessage();
+                            message.setRedPacketKey(keys[i]);
+                            message.setDeliverTime(timestamps[i] + expireTimes[i] * 1000L);
+                            messages.add(message);
+                        }
+                        if (outboxMapper.insertBatch(redPacketProperties.getServiceId(), messages) != size) {
+                            throw new RuntimeException("发件箱消息写入失败");
+                        }
+                        // 在Redis中创建所有红包key
+                        try {
+                            redPacketDao.publishBatch(keys, arrs, expireTimes);
+                            created.set(true);
+                        } catch (Exception e) {
+                            throw new RuntimeException("红包key创建失败", e);
+                        }
+                        return;
+                    }
+                    // 在Redis中创建所有红包key
+                    FutureTask<Integer> keyFuture = new FutureTask<>(
+                            () -> {
+                                try {
+                                    redPacketDao.publishBatch(keys, arrs, expireTimes);
+                                    created.set(true);
+                                    return 1;
+                                } catch (Exception e) {
+                                    return null;
+                                }
+                            }
+                    );
+                    transactionPool.submit(keyFuture);
+                    // 并发发送所有延时消息，RocketMQ批量消息不支持延时消息，因此逐条发送
+                    List<FutureTask<Integer>> messageFutures = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        String key = keys[i];
+                        int expireTime = expireTimes[i];
+                        FutureTask<Integer> messageFuture = new FutureTask<>(
+                                () -> rocketMQTemplate
+                                        .syncSendDelayTimeSeconds("RedPacketSettlement",
+                                                MessageBuilder.withPayload(key).build(), expireTime)
+                                        .getSendStatus() == SendStatus.SEND_OK ? 1 : null
+                        );
+                        messageFutures.add(messageFuture);
+                        transactionPool.submit(messageFuture);
+                    }
+                    try {
+                        if (keyFuture.get() == null) throw new RuntimeException("红包key创建失败");
+                        for (FutureTask<Integer> messageFuture : messageFutures) {
+                            Integer sent;
+                            try {
+                                sent = messageFuture.get();
+                            } catch (ExecutionException e) {
+                                sent = null;
+                            }
+                            // 如果任意消息发送失败，则整批回滚，预生成的红包结果key由事务外统一移除
+                            if (sent == null) throw new RuntimeException("延时消息发送失败");
+                        }
+                    } catch (InterruptedException | ExecutionException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // 扣减已经回滚，移除本次创建的所有红包key和红包结果key，原因与单个发起抢红包相同：
+            // 已经发送的延时消息在结算时找不到红包结果key，视为重复消息而忽略，不会对从未扣减的金额进行结算
+            if (created.get()) {
+                try {
+                    redPacketDao.removeResults(keys);
+                } catch (Exception ex) {
+                    log.error("[ ] [{}] 发起抢红包失败后移除红包key失败：{}", userId, ex.getMessage());
+                }
+            }
+            if (groupCommit) refund(debitId, userId, amount);
+            throw e;
+        }
+
+        for (int i = 0; i < size; i++) {
+            RedPacketInfo info = infos.get(i);
+            String key = keys[i];
+            long timestamp = timestamps[i];
+            // 创建红包key对应的原子整数，初始值为红包份数
+            atomicMap.put(key, info.getShareNum());
+
+            log.biz("[{}] [ ] 红包创建成功，有效期 {} 秒", key, info.getExpireTime());
+            // 使用惰性日志
+            log.bigdata("{}", () -> BigDataInfo.of(
+                    BigDataInfo.Status.PUBLISH, key, userId,
+                    BigDataInfo.Publish.of(info.getAmount(), info.getShareNum(), info.getExpireTime(), timestamp),
+                    null, null, null
+                    ).encode()
+            );
+
+            // 执行发起抢红包后的扩展方法
+            extensionComposite.afterPublish(key, userId, info.getAmount(), info.getShareNum(), info.getExpireTime());
+        }
+    }
+
+    /**
+     * 异步发起抢红包<br/>
+     * 账户操作和消息发送只能以阻塞方式完成，因此在线程池中执行，不占用请求线程
+     * @param key 红包key
+     * @param userId 发起抢红包用户ID
+     * @param amount 红包总金额，单位为分
+     * @param shareNum 拆分小红包份数
+     * @param expireTime 红包过期时长，单位为秒
+     * @param timestamp 红包发起毫秒时间戳
+     * @return 发起抢红包完成的结果
+     */
+    public CompletableFuture<Void> publishAsync(String key, String userId, int amount, int shareNum, int expireTime, long timestamp) {
+        return CompletableFuture.runAsync(() -> publish(key, userId, amount, shareNum, expireTime, timestamp), asyncPool);
+    }
+
+    /**
+     * 异步参与抢红包<br/>
+     * 启用异步访问的直接访问模式下，本地缓存命中时直接完成，否则通过Lettuce异步API访问Redis，全程不阻塞线程<br/>
+     * 其他Redis访问方式下，在线程池中执行同步的抢红包流程
+     * @param redPacketKey 解析后的红包key
+     * @param userId 抢红包用户ID
+     * @return 抢红包结果
+     */
+    @SuppressWarnings("rawtypes")
+    public CompletableFuture<RedPacketResult> shareAsync(RedPacketKey redPacketKey, String userId) {
+        if (asyncRedPacketDao == null || shareLeaseDao != null || shareCoalesceDao != null) {
+            return CompletableFuture.supplyAsync(() -> share(redPacketKey, userId), asyncPool);
+        }
+
+        long totalStart = shareLatencyMetrics.start();
+        // 执行参与抢红包前的扩展方法
+        extensionComposite.beforeShare(redPacketKey.getPayload(), userId);
+
+        // 异步流程在结果完成时记录总耗时，无论成功还是异常
+        return doShareAsync(redPacketKey, userId, 0).thenApply(this::countShare)
+                .whenComplete((result, e) -> shareLatencyMetrics.record(ShareLatencyMetrics.Stage.TOTAL, totalStart));
+    }
+
+    /**
+     * 异步参与抢红包，请求超时时重新访问Redis，直至达到最大重试次数
+     * @param redPacketKey 解析后的红包key
+     * @param userId 抢红包用户ID
+     * @param tryTimes 已经尝试的次数
+     * @return 抢红包结果
+     */
+    @SuppressWarnings("rawtypes")
+    private CompletableFuture<RedPacketResult> doShareAsync(RedPacketKey redPacketKey, String userId, int tryTimes) {
+        String key = redPacketKey.getPayload();
+        // 如果在本地缓存中找到对应的key，或已经达到最大重试次数，则直接处理结果
+        // 异步访问不持有锁，因此不需要原子整数判断是否竞争锁
+        long start = shareLatencyMetrics.start();
+        CachedResult mapResult = cache.get(key);
+        shareLatencyMetrics.record(ShareLatencyMetrics.Stage.CACHE_LOOKUP, start);
+        if (mapResult != null) redPacketMetrics.increment(RedPacketMetrics.Counter.CACHE_HIT);
+        if (mapResult != null || tryTimes > redPacketProperties.getShare().getMaxTryTimes()) {
+            // 执行参与抢红包后的扩展方法
+            return CompletableFuture.completedFuture(
+                    extensionComposite.afterShare(key, userId, doRedPacketResult(mapResult, null, userId, key)));
+        }
+
+        long evalStart = shareLatencyMetrics.start();
+        return asyncRedPacketDao.share(redPacketKey, userId).whenComplete((shareResult, e) ->
+                shareLatencyMetrics.record(ShareLatencyMetrics.Stage.REDIS_EVAL, evalStart)).thenCompose(shareResult -> {
+            // 如果返回结果为空，表明请求超时，进入下一轮重试
+            if (shareResult == null) {
+                redPacketMetrics.increment(RedPacketMetrics.Counter.REDIS_TIMEOUT);
+                redPacketMetrics.increment(RedPacketMetrics.Counter.SHARE_RETRY);
+                return doShareAsync(redPacketKey, userId, tryTimes + 1);
+            }
+            if (shareResult.getStatus() == 0 && redPacketRankDao.isEnabled()) {
+                // 从Redis读取排名是同步访问，不在Lettuce的事件循环线程中执行，改为在线程池中写入本地缓存
+                return CompletableFuture.supplyAsync(() -> doCache(key, shareResult), asyncPool).thenApply(result ->
+                        extensionComposite.afterShare(key, userId, doRedPacketResult(result, shareResult, userId, key)));
+            }
+            // 如果抢不到红包，那么返回的是红包结果，写入本地缓存
+            CachedResult result = shareResult.getStatus() == 0 ? doCache(key, shareResult) : null;
+            // 执行参与抢红包后的扩展方法
+            return CompletableFuture.completedFuture(
+                    extensionComposite.afterShare(key, userId, doRedPacketResult(result, shareResult, userId, key)));
+        });
+    }
+
+    /**
+     * 查询红包的金额排名和耗时排名
+     * @param redPacketKey 解析后的红包key
+     * @return 查询排名结果
+     */
+    @SuppressWarnings("rawtypes")
+    public RedPacketResult rank(RedPacketKey redPacketKey) {
+        if (!redPacketRankDao.isEnabled()) return RedPacketResult.error(RedPacketResult.ErrorType.RANK_DISABLED);
+        return RedPacketResult.rankSuccess(redPacketRankDao.top(redPacketKey.getPayload()));
+    }
+
+    /**
+     * 获取红包key对应的锁并登记使用者，不存在时创建<br/>
+     * 获取后必须调用 releaseShareLock 方法，无论是否已经加锁
+     * @param key 红包key
+     * @return 红包key对应的锁，尚未加锁
+     */
+    private ShareLock acquireShareLock(String key) {
+        return shareLocks.compute(key, (k, lock) -> {
+            if (lock == null) lock = new ShareLock();
+            lock.users++;
+            return lock;
+        });
+    }
+
+    /**
+     * 释放红包key对应的锁并注销使用者，没有其他线程持有或等待时从Map中移除
+     * @param key 红包key
+     * @param lock 通过 acquireShareLock 方法获取并已经加锁的锁
+     */
+    private void releaseShareLock(String key, ShareLock lock) {
+        lock.unlock();
+        shareLocks.computeIfPresent(key, (k, l) -> --l.users == 0 ? null : l);
+    }
+
+    /**
+     * 根据参与抢红包的Redis访问方式，选择数据访问类参与抢红包
+     * @param redPacketKey 解析后的红包key
+     * @param userId 抢红包用户ID
+     * @return 抢红包结果
+     */
+    @Nullable
+    private ShareResult doShare(RedPacketKey redPacketKey, String userId) {
+        ShareResult shareResult;
+        if (shareLeaseDao != null) shareResult = shareLeaseDao.share(redPacketKey, userId);
+        else if (shareCoalesceDao != null) shareResult = shareCoalesceDao.share(redPacketKey, userId);
+        else if (asyncRedPacketDao != null) shareResult = asyncRedPacketDao.share(redPacketKey, userId).join();
+        else shareResult = redPacketDao.share(redPacketKey, userId);
+        if (shareResult == null) redPacketMetrics.increment(RedPacketMetrics.Counter.REDIS_TIMEOUT);
+        return shareResult;
+    }
+
+    /**
+     * 统计有效红包访问次数和获取结果次数
+     * @param redPacketResult 参与抢红包结果
+     * @return 参与抢红包结果，不做修改
+     */
+    @SuppressWarnings("rawtypes")
+    private RedPacketResult countShare(RedPacketResult redPacketResult) {
+        if (redPacketResult.getResult() instanceof ShareResult shareResult
+                && (shareResult.getStatus() != 0 || shareResult.getMapResult() != null)) {
+            // 排除无效红包访问，有效红包访问次数增加
+            redPacketMetrics.increment(RedPacketMetrics.Counter.SHARE);
+            // 如果有效红包访问中携带红包结果，获取结果次数增加
+            if (shareResult.getMapResult() != null) redPacketMetrics.increment(RedPacketMetrics.Counter.SHARE_RESULT);
+        }
+        return redPacketResult;
+    }
+
+    /**
+     * 扣减发起抢红包用户的账户余额，组提交模式下以组提交的方式扣减
+     * @param userId 发起抢红包用户ID
+     * @param amount 扣减金额
+     * @return 组提交模式下返回扣减记录ID，否则返回空
+     */
+    private String debit(String userId, int amount) {
+        try {
+            if (redPacketProperties.getPublish().isGroupCommit()) {
+                String debitId = accountInterface.groupDecreaseBalance(userId, amount);
+                if (debitId == null) throw new IllegalAccountException(userId);
+                return debitId;
+            }
+            if (accountInterface.decreaseBalance(userId, amount) != 1) throw new IllegalAccountException(userId);
+            return null;
+        } catch (DataIntegrityViolationException e) {
+            throw new BalanceNotEnoughException(userId, amount);
+        }
+    }
+
+    /**
+     * 组提交模式下发起抢红包失败时，退回已经提交的扣减金额<br/>
+     * 退回失败时扣减记录仍然保留，由定时任务退回
+     * @param debitId 扣减记录ID
+     * @param userId 发起抢红包用户ID
+     * @param amount 退回金额
+     */
+    private void refund(String debitId, String userId, int amount) {
+        try {
+            accountInterface.refundDebit(debitId, userId, amount);
+        } catch (Exception e) {
+            log.error("[ ] [{}] 发起抢红包失败后退回扣减金额失败，等待定时任务退回，金额 {}", userId, amount);
+        }
     }
 
     /**
@@ -247,45 +714,35 @@ public class RedPacketService {
         return arr;
     }
 
-    /**
-     * 写入缓存前将红包结果中的原始信息进行解析
-     * @param mapResult 从Redis获取的红包结果原始信息
-     */
-    private void parseMapResult(Map<String, Object> mapResult) {
-        // 将红包结果中的每个用户抢到的红包金额和耗时进行解析封装
-        for (Map.Entry<String, Object> entry : mapResult.entrySet()) {
-            String shareAndTimeCost = (String) entry.getValue();
-            mapResult.put(entry.getKey(), parseMapEntry(shareAndTimeCost));
-        }
-    }
-
-    /**
-     * 对红包结果中的原始信息项进行解析并封装
-     * @param value 原始信息项
-     * @return 信息封装类，包含每个用户抢到的红包金额和耗时
-     */
-    private ShareInfo parseMapEntry(String value) {
-        int idx = value.indexOf('-');
-        return new ShareInfo(Integer.parseInt(value.substring(0, idx)),
-                RedPacketKeyUtil.decodeTimeCost(value.substring(idx + 1)));
-    }
-
     /**
      * 从抢红包结果中获取红包结果，进行前置处理后写入缓存
      * @param key 红包key
      * @param shareResult 抢红包结果
      */
     @Nullable
-    private Map<String, Object> doCache(String key, ShareResult shareResult) {
-        Map<String, Object> mapResult = shareResult.getMapResult();
+    private CachedResult doCache(String key, ShareResult shareResult) {
+        Map<String, Object> rawResult = shareResult.getRawResult();
         // 如果红包结果为空集，表示红包结果key已经过期或无效，直接返回空，统一视作过期处理
-        if (mapResult.size() == 0) return null;
-        // 移除预生成结果占位项
-        mapResult.remove(redPacketProperties.getBiz().getResultPlaceholder());
-        // 解析红包结果原始信息
-        parseMapResult(mapResult);
+        if (rawResult.size() == 0) return null;
+        long start = shareLatencyMetrics.start();
+        // 解析红包结果原始信息，转换为按列存储的红包结果，同时跳过预生成结果占位项
+        CachedResult mapResult = CachedResult.of(rawResult, redPacketProperties.getBiz().getResultPlaceholder());
+        long parseNanos = shareLatencyMetrics.start() - start;
+        // 开启排名时，直接读取抢红包过程中在Redis维护的排名，不需要在本地重新排序
+        if (redPacketRankDao.isEnabled()) {
+            start = shareLatencyMetrics.start();
+            mapResult = redPacketRankDao.rank(key, mapResult);
+            shareLatencyMetrics.record(ShareLatencyMetrics.Stage.RANK_READ, start);
+        }
         // 执行抢红包结果写入缓存前的扩展方法
-        cache.put(key, extensionComposite.onCache(mapResult));
+        start = shareLatencyMetrics.start();
+        mapResult = extensionComposite.onCache(mapResult);
+        shareLatencyMetrics.record(ShareLatencyMetrics.Stage.CACHE_EXTENSION, start);
+        // 解析耗时与写入缓存耗时累加记录
+        start = shareLatencyMetrics.start();
+        cache.put(key, mapResult);
+        redPacketMetrics.increment(RedPacketMetrics.Counter.CACHE_MISS);
+        shareLatencyMetrics.recordNanos(ShareLatencyMetrics.Stage.RESULT_PARSE, parseNanos + shareLatencyMetrics.start() - start);
         return mapResult;
     }
 
@@ -298,7 +755,7 @@ public class RedPacketService {
      * @return 参与抢红包结果
      */
     @SuppressWarnings("rawtypes")
-    private RedPacketResult doRedPacketResult(Map<String, Object> mapResult, ShareResult shareResult, String userId, String key) {
+    private RedPacketResult doRedPacketResult(CachedResult mapResult, ShareResult shareResult, String userId, String key) {
         long timestamp = System.currentTimeMillis();
         RedPacketResult redPacketResult;
         boolean checkShareSuccess = false;
@@ -355,10 +812,11 @@ public class RedPacketService {
                 checkShareSuccess = true;
             }
             if (checkShareSuccess) {
-                ShareInfo info = (ShareInfo) mapResult.get(userId);
-                if (info != null) {
-                    int share = info.getShare();
-                    long timeCost = info.getTimeCost();
+                // 通过二分查找定位用户
+                int i = mapResult.indexOf(userId);
+                if (i >= 0) {
+                    int share = mapResult.getShare(i);
+                    long timeCost = mapResult.getTimeCost(i);
                     shareResult = ShareResult.share(ShareResult.ShareType.SUCCESS_END, mapResult,
                             share, timeCost);
                     log.biz("[{}] [用户 {}] 抢到过红包，查询结果", key, userId);
@@ -386,6 +844,16 @@ public class RedPacketService {
         return redPacketResult;
     }
 
+    /**
+     * 红包key对应的锁，记录持有或等待的线程数量
+     */
+    private static class ShareLock extends ReentrantLock {
+        /**
+         * 持有或等待的线程数量，只在Map的compute方法中访问，由Map对同一key的操作互斥保护
+         */
+        private int users;
+    }
+
     /**
      * 原子整数Map，存储红包key对应的原子整数，用于避免抢红包阻塞<br/>
      * 内部使用两个Map定期交换的方式实现主动清理<br/>
@@ -462,5 +930,13 @@ public class RedPacketService {
             AtomicInteger result= map0.get(key);
             return result != null ? result : map1.get(key);
         }
+
+        /**
+         * 获取两个Map中的原子整数数量
+         * @return 原子整数数量
+         */
+        private int size() {
+            return map0.size() + map1.size();
+        }
     }
 }
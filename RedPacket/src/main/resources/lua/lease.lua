@@ -0,0 +1,26 @@
+-- 租约模式领取小红包
+-- KEYS[1]为红包key，KEYS[2]为红包结果key，KEYS[3]为红包租约计数key，为哈希表，count项为已被领取但未回写结果的小红包份数
+-- ARGV[1]为用户ID，ARGV[2]为单次领取份数上限
+local entry = redis.call('hget', KEYS[2], ARGV[1])
+if entry then
+    -- 已经参与过抢红包，返回金额耗时
+    return {"2", entry}
+end
+if redis.call('llen', KEYS[1]) == 0 then
+    -- 其他节点仍持有未派发的小红包，红包尚未结束
+    if tonumber(redis.call('hget', KEYS[3], 'count') or "0") > 0 then
+        return {"1"}
+    end
+    -- 红包已经结束
+    return {"0"}
+end
+local ttl = redis.call('pttl', KEYS[1])
+local shares = redis.call('lrange', KEYS[1], 0, tonumber(ARGV[2]) - 1)
+redis.call('ltrim', KEYS[1], #shares, -1)
+-- 记录已被领取但未回写结果的小红包份数，租约计数key与红包key同时过期
+redis.call('hincrby', KEYS[3], 'count', #shares)
+if ttl > 0 then
+    redis.call('pexpire', KEYS[3], ttl)
+end
+table.insert(shares, 1, "3")
+return shares
\ No newline at end of file
@@ -0,0 +1,25 @@
+-- 租约模式批量回写抢红包结果
+-- KEYS[1]为红包结果key，KEYS[2]为红包租约计数key，为哈希表，count项为已被领取但未回写结果的小红包份数
+-- ARGV[1]为本次回写的回执项，之后依次为用户ID和金额耗时，成对出现
+-- 回写结果以英文逗号拼接后写入租约计数key的回执项，与租约计数key同时过期，回写响应丢失时可以据此确认脚本是否已经执行及各项的回写结果
+local result = {}
+if redis.call('exists', KEYS[2]) == 0 then
+    -- 租约计数key已经过期，表示红包已经结束，不再接受回写，也不写入回执
+    for i = 2, #ARGV, 2 do
+        result[#result + 1] = "0"
+    end
+    return result
+end
+local recorded = 0
+for i = 2, #ARGV, 2 do
+    if redis.call('hsetnx', KEYS[1], ARGV[i], ARGV[i + 1]) == 1 then
+        result[#result + 1] = "1"
+        recorded = recorded + 1
+    else
+        -- 用户已经在其他节点抢到过红包，返回已有的金额耗时
+        result[#result + 1] = redis.call('hget', KEYS[1], ARGV[i])
+    end
+end
+redis.call('hincrby', KEYS[2], 'count', -recorded)
+redis.call('hset', KEYS[2], ARGV[1], table.concat(result, ","))
+return result
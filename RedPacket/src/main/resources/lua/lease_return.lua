@@ -0,0 +1,13 @@
+-- 租约模式退回未派发的小红包
+-- KEYS[1]为红包key，KEYS[2]为红包租约计数key
+-- ARGV为退回的小红包金额
+local ttl = redis.call('pttl', KEYS[2])
+if ttl <= 0 then
+    -- 红包已经结束，无需退回，剩余金额在结算时退回到发起者的账户
+    return 0
+end
+redis.call('rpush', KEYS[1], unpack(ARGV))
+-- 红包key可能因小红包被领取完而被移除，需要重新设置过期时间
+redis.call('pexpire', KEYS[1], ttl)
+redis.call('hincrby', KEYS[2], 'count', -#ARGV)
+return #ARGV
\ No newline at end of file
@@ -1,5 +1,10 @@
+-- 为红包结果key设置过期时间，作为结算完成的标记
+-- KEYS[1]为红包结果key，开启排名时之后为金额排名key和耗时排名key，ARGV[1]为红包结果保留时长
+-- 只根据红包结果key判断是否已经结算，排名key与红包结果key一起设置过期时间
 if redis.call('ttl', KEYS[1]) == -1 then
-    redis.call('expire', KEYS[1], ARGV[1])
+    for i = 1, #KEYS do
+        redis.call('expire', KEYS[i], ARGV[1])
+    end
     return 1
 else
     return 0
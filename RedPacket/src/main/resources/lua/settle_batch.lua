@@ -0,0 +1,14 @@
+-- 批量设置红包结果key的过期时间，作为批量结算完成的标记
+-- KEYS为各红包结果key，ARGV[1]为红包结果保留时长
+-- 开启排名时，ARGV[2]为红包结果key的数量，之后的KEYS为各红包的排名key，只与红包结果key一起设置过期时间，不参与判断
+-- 只有所有红包结果key都没有设置过期时间时才全部设置，否则不做任何修改并返回0，保证整批结算的原子性
+local n = tonumber(ARGV[2] or #KEYS)
+for i = 1, n do
+    if redis.call('ttl', KEYS[i]) ~= -1 then
+        return 0
+    end
+end
+for i = 1, #KEYS do
+    redis.call('expire', KEYS[i], ARGV[1])
+end
+return 1
\ No newline at end of file
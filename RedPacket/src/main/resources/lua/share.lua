@@ -1,3 +1,7 @@
+-- 抢红包
+-- KEYS[1]为红包key，KEYS[2]为红包结果key，开启排名时KEYS[3]为金额排名key，KEYS[4]为耗时排名key
+-- ARGV[1]为用户ID，ARGV[2]为编码后的抢红包耗时，ARGV[3]为十进制的抢红包耗时，用作耗时排名的分数
+-- 返回值0表示红包已经结束，正整数表示抢到的金额，金额耗时格式表示已经参与过抢红包
 if redis.call('llen', KEYS[1]) == 0 then
     return "0"
 end
@@ -8,5 +12,9 @@ else
     local share = redis.call('lpop', KEYS[1])
     local shareAndTimeCost = share .. "-" .. ARGV[2]
     redis.call('hset', KEYS[2], ARGV[1], shareAndTimeCost)
+    if #KEYS >= 4 then -- 增量维护金额排名和耗时排名
+        redis.call('zadd', KEYS[3], share, ARGV[1])
+        redis.call('zadd', KEYS[4], ARGV[3], ARGV[1])
+    end
     return share
 end
\ No newline at end of file
@@ -0,0 +1,26 @@
+-- 合并多个用户的抢红包请求，批量抢红包
+-- KEYS[1]为红包key，KEYS[2]为红包结果key，开启排名时KEYS[3]为金额排名key，KEYS[4]为耗时排名key
+-- ARGV为依次出现的用户ID、编码后的抢红包耗时和十进制的抢红包耗时，每三项对应一个用户，十进制的耗时用作耗时排名的分数
+-- 按用户顺序返回各用户的抢红包结果，格式与单个用户抢红包的结果相同
+-- 0表示红包已经结束，正整数表示抢到的金额，金额耗时格式表示已经参与过抢红包
+local rank = #KEYS >= 4
+local result = {}
+for i = 1, #ARGV, 3 do
+    if redis.call('llen', KEYS[1]) == 0 then
+        result[#result + 1] = "0"
+    else
+        local entry = redis.call('hget', KEYS[2], ARGV[i])
+        if entry then -- 不能使用 entry ~= nil 进行判断，此表达式总是为真
+            result[#result + 1] = entry
+        else
+            local share = redis.call('lpop', KEYS[1])
+            redis.call('hset', KEYS[2], ARGV[i], share .. "-" .. ARGV[i + 1])
+            if rank then -- 增量维护金额排名和耗时排名
+                redis.call('zadd', KEYS[3], share, ARGV[i])
+                redis.call('zadd', KEYS[4], ARGV[i + 2], ARGV[i])
+            end
+            result[#result + 1] = share
+        end
+    end
+end
+return result
\ No newline at end of file
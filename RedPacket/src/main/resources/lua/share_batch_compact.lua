@@ -0,0 +1,33 @@
+-- 紧凑编码模式下合并多个用户的抢红包请求，批量抢红包
+-- KEYS[1]为红包key，KEYS[2]为红包结果key，开启排名时KEYS[3]为金额排名key，KEYS[4]为耗时排名key
+-- ARGV[1]为红包结果key占位项，之后为依次出现的用户ID、编码后的抢红包耗时和十进制的抢红包耗时，每三项对应一个用户
+-- 按用户顺序返回各用户的抢红包结果，通过长度区分：
+-- "0"表示红包已经结束，5个字符表示抢到的编码后的金额，9个字符表示已经参与过抢红包的金额耗时
+local rank = #KEYS >= 4
+local total = redis.call('strlen', KEYS[1]) / 5
+local index = tonumber(redis.call('hget', KEYS[2], ARGV[1]) or "0")
+local start = index
+local result = {}
+for i = 2, #ARGV, 3 do
+    if index >= total then
+        result[#result + 1] = "0"
+    else
+        local entry = redis.call('hget', KEYS[2], ARGV[i])
+        if entry then -- 不能使用 entry ~= nil 进行判断，此表达式总是为真
+            result[#result + 1] = entry
+        else
+            local share = redis.call('getrange', KEYS[1], index * 5, index * 5 + 4)
+            index = index + 1
+            redis.call('hset', KEYS[2], ARGV[i], share .. ARGV[i + 1])
+            if rank then -- 增量维护金额排名和耗时排名
+                redis.call('zadd', KEYS[3], tonumber(share, 36), ARGV[i])
+                redis.call('zadd', KEYS[4], ARGV[i + 2], ARGV[i])
+            end
+            result[#result + 1] = share
+        end
+    end
+end
+if index > start then
+    redis.call('hincrby', KEYS[2], ARGV[1], index - start)
+end
+return result
\ No newline at end of file
@@ -0,0 +1,29 @@
+-- 紧凑编码模式抢红包
+-- KEYS[1]为红包key，KEYS[2]为红包结果key，开启排名时KEYS[3]为金额排名key，KEYS[4]为耗时排名key
+-- ARGV[1]为用户ID，ARGV[2]为编码后的抢红包耗时，ARGV[3]为红包结果key占位项，ARGV[4]为1时红包结束时在同一次响应中返回红包结果，
+-- ARGV[5]为十进制的抢红包耗时，用作耗时排名的分数
+-- 红包key为所有小红包金额按固定5个字符的36进制编码后依次拼接的字符串，已经派发的份数记录在红包结果key的占位项中
+-- 红包结果的金额耗时为编码后的金额和耗时直接拼接的固定9个字符，不需要分隔符
+-- 返回值首项为标识，0表示红包已经结束，如果需要返回红包结果，后续各项为红包结果的用户ID和金额耗时，成对出现
+-- 1表示抢到红包，第二项为编码后的金额；2表示已经参与过抢红包，第二项为金额耗时
+local index = tonumber(redis.call('hget', KEYS[2], ARGV[3]) or "0")
+if index * 5 >= redis.call('strlen', KEYS[1]) then
+    if ARGV[4] == "1" then
+        local result = redis.call('hgetall', KEYS[2])
+        table.insert(result, 1, "0")
+        return result
+    end
+    return {"0"}
+end
+local entry = redis.call('hget', KEYS[2], ARGV[1])
+if entry then -- 不能使用 entry ~= nil 进行判断，此表达式总是为真
+    return {"2", entry}
+end
+local share = redis.call('getrange', KEYS[1], index * 5, index * 5 + 4)
+redis.call('hincrby', KEYS[2], ARGV[3], 1)
+redis.call('hset', KEYS[2], ARGV[1], share .. ARGV[2])
+if #KEYS >= 4 then -- 增量维护金额排名和耗时排名
+    redis.call('zadd', KEYS[3], tonumber(share, 36), ARGV[1])
+    redis.call('zadd', KEYS[4], ARGV[5], ARGV[1])
+end
+return {"1", share}
\ No newline at end of file
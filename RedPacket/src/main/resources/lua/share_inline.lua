@@ -0,0 +1,23 @@
+-- 抢红包，红包结束时在同一次响应中返回红包结果
+-- KEYS[1]为红包key，KEYS[2]为红包结果key，开启排名时KEYS[3]为金额排名key，KEYS[4]为耗时排名key
+-- ARGV[1]为用户ID，ARGV[2]为编码后的抢红包耗时，ARGV[3]为十进制的抢红包耗时，用作耗时排名的分数
+-- 返回值首项为标识，0表示红包已经结束，后续各项为红包结果的用户ID和金额耗时，成对出现
+-- 1表示抢到红包，第二项为金额；2表示已经参与过抢红包，第二项为金额耗时
+if redis.call('llen', KEYS[1]) == 0 then
+    local result = redis.call('hgetall', KEYS[2])
+    table.insert(result, 1, "0")
+    return result
+end
+local entry = redis.call('hget', KEYS[2], ARGV[1])
+if entry then -- 不能使用 entry ~= nil 进行判断，此表达式总是为真
+    return {"2", entry}
+else
+    local share = redis.call('lpop', KEYS[1])
+    local shareAndTimeCost = share .. "-" .. ARGV[2]
+    redis.call('hset', KEYS[2], ARGV[1], shareAndTimeCost)
+    if #KEYS >= 4 then -- 增量维护金额排名和耗时排名
+        redis.call('zadd', KEYS[3], share, ARGV[1])
+        redis.call('zadd', KEYS[4], ARGV[3], ARGV[1])
+    end
+    return {"1", share}
+end
\ No newline at end of file
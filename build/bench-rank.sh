@@ -0,0 +1,14 @@
+#!/bin/bash
+
+# 抢红包金额耗时排名方式的基准测试，需要已执行build.sh拷贝jar包
+# 拷贝基准测试源码，并从应用jar包中取出前K名选择器
+mkdir -p /opt/bench/app
+cp ./bench/TopKSelectorBenchmark.java /opt/bench/TopKSelectorBenchmark.java
+unzip -o -q /opt/app/RedPacket.jar 'BOOT-INF/classes/com/practice/common/util/TopKSelector.class' -d /opt/bench/app
+# 可以通过第一个参数指定每种情况的执行次数
+docker run --rm \
+-v /opt/bench:/bench \
+-w /bench \
+openjdk:17 \
+sh -c "javac -encoding UTF-8 -cp /bench/app/BOOT-INF/classes -d /bench/classes TopKSelectorBenchmark.java && \
+java -cp /bench/classes:/bench/app/BOOT-INF/classes TopKSelectorBenchmark $1"
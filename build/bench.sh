@@ -0,0 +1,17 @@
+#!/bin/bash
+
+# 红包结算SQL批量发送方式的基准测试，需要MySQL容器已经启动，并已执行build.sh拷贝jar包
+# 拷贝基准测试源码，并从应用jar包中取出MySQL驱动
+mkdir -p /opt/bench
+cp ./bench/SettlementSqlBenchmark.java /opt/bench/SettlementSqlBenchmark.java
+unzip -o -j -q /opt/app/RedPacket.jar 'BOOT-INF/lib/mysql-connector-j-*.jar' -d /opt/bench
+# 使用与应用相同的数据库连接参数运行，可以通过第一个参数指定每种情况的执行次数
+docker run --rm \
+-v /opt/bench:/bench \
+--network=red-packet \
+-w /bench \
+openjdk:17 \
+sh -c "javac -encoding UTF-8 -d /bench/classes SettlementSqlBenchmark.java && \
+java -cp /bench/classes:\$(ls /bench/mysql-connector-j-*.jar) SettlementSqlBenchmark \
+'jdbc:mysql://mysql:3306/practice?allowMultiQueries=true&useServerPrepStmts=true&cachePrepStmts=true&rewriteBatchedStatements=true' \
+root 1234 $1"
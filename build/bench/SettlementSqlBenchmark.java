@@ -0,0 +1,264 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 红包结算SQL批量发送方式的基准测试<br/>
+ * 使用与MyBatis映射相同形式的JDBC调用，分别比较逐条发送、拼接发送、JDBC批处理和多行更新四种方式在不同获奖人数下的结算耗时<br/>
+ * 测试在独立的bench_account表上进行，结束后删除该表，不影响测试用数据<br/>
+ * 计时前先校验多行更新与JDBC批处理的结算结果一致：两种方式分别对相同的初始数据结算两次，
+ * 多行更新按较小的上限拆分，覆盖AccountInterface中相同形式的各份批量发送、最后一份单独发送的路径，
+ * 金额包含超过int范围的值，比较两者的最终余额以及按金额计算的期望余额，不一致时输出差异并以异常退出，不进行计时<br/>
+ * 使用方式：编译后执行 java -cp classes:mysql-connector-j.jar SettlementSqlBenchmark 数据库连接URL 用户名 密码 [每种情况的执行次数]，
+ * 或在部署环境中执行 build/bench.sh，连接参数与应用相同，其中rewriteBatchedStatements会影响拆分后批量发送的方式，校验需要在该参数下通过
+ */
+public class SettlementSqlBenchmark {
+    private static final int[] WINNERS = {1, 10, 100}; // 获奖人数
+    private static final int WARMUP = 200; // 预热执行次数
+    private static final int VERIFY_CHUNK_SIZE = 7; // 校验时多行更新的账户数量上限，使最后一份的账户数量与其余各份不同
+
+    public static void main(String[] args) throws Exception {
+        String url = args[0];
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+
+        try (Connection connection = DriverManager.getConnection(url, args[1], args[2])) {
+            prepare(connection);
+            try {
+                verify(connection);
+                System.out.printf("%-14s %8s %12s %12s %12s%n", "mode", "winners", "avg(us)", "p50(us)", "p99(us)");
+                for (int winners : WINNERS) {
+                    for (String mode : new String[]{"NON_BATCHED", "NON_PREPARED", "PREPARED", "MULTI_ROW"}) {
+                        long[] costs = run(connection, mode, winners, iterations);
+                        System.out.printf("%-14s %8d %12.1f %12.1f %12.1f%n", mode, winners,
+                                Arrays.stream(costs).average().orElse(0) / 1000,
+                                costs[costs.length / 2] / 1000.0,
+                                costs[(int) (costs.length * 0.99)] / 1000.0);
+                    }
+                }
+            } finally {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("drop table if exists bench_account");
+                }
+            }
+        }
+    }
+
+    /**
+     * 创建测试用账户表和账户数据
+     * @param connection 数据库连接
+     */
+    private static void prepare(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists bench_account");
+            statement.execute("create table bench_account (user_id varchar(50) not null primary key, balance bigint unsigned not null)");
+        }
+        try (PreparedStatement ps = connection.prepareStatement("insert into bench_account (user_id, balance) values (?, 0)")) {
+            for (int i = 0; i < WINNERS[WINNERS.length - 1]; i++) {
+                ps.setString(1, userId(i));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * 在事务中执行结算SQL并记录每次耗时
+     * @param connection 数据库连接
+     * @param mode SQL批量发送方式
+     * @param winners 获奖人数
+     * @param iterations 执行次数
+     * @return 排序后的每次耗时，单位为纳秒
+     */
+    private static long[] run(Connection connection, String mode, int winners, int iterations) throws SQLException {
+        long[] costs = new long[iterations];
+        connection.setAutoCommit(false);
+        try {
+            for (int i = -WARMUP; i < iterations; i++) {
+                long start = System.nanoTime();
+                settle(connection, mode, winners);
+                connection.commit();
+                if (i >= 0) costs[i] = System.nanoTime() - start;
+            }
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        Arrays.sort(costs);
+        return costs;
+    }
+
+    /**
+     * 执行一次结算SQL，语句形式与AccountMapper中的映射保持一致
+     * @param connection 数据库连接
+     * @param mode SQL批量发送方式
+     * @param winners 获奖人数
+     */
+    private static void settle(Connection connection, String mode, int winners) throws SQLException {
+        String single = "update bench_account set balance = balance + ? where user_id = ?";
+        switch (mode) {
+            case "NON_BATCHED" -> {
+                // 逐条发送
+                try (PreparedStatement ps = connection.prepareStatement(single)) {
+                    for (int i = 0; i < winners; i++) {
+                        ps.setLong(1, i + 1);
+                        ps.setString(2, userId(i));
+                        ps.executeUpdate();
+                    }
+                }
+            }
+            case "NON_PREPARED" -> {
+                // 拼接为以分号分隔的多条语句，一次性发送
+                String sql = String.join(";", Collections.nCopies(winners, single));
+                try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                    for (int i = 0; i < winners; i++) {
+                        ps.setLong((i << 1) + 1, i + 1);
+                        ps.setString((i << 1) + 2, userId(i));
+                    }
+                    ps.execute();
+                }
+            }
+            case "PREPARED" -> {
+                // JDBC批处理
+                try (PreparedStatement ps = connection.prepareStatement(single)) {
+                    for (int i = 0; i < winners; i++) {
+                        ps.setLong(1, i + 1);
+                        ps.setString(2, userId(i));
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+            }
+            case "MULTI_ROW" -> {
+                // 单条多行更新语句
+                try (PreparedStatement ps = connection.prepareStatement(multiRowSql(winners))) {
+                    for (int i = 0; i < winners; i++) {
+                        ps.setString((i << 1) + 1, userId(i));
+                        ps.setLong((i << 1) + 2, i + 1);
+                    }
+                    ps.executeUpdate();
+                }
+            }
+            default -> throw new IllegalArgumentException(mode);
+        }
+    }
+
+    /**
+     * 校验多行更新与JDBC批处理的结算结果一致
+     * @param connection 数据库连接
+     */
+    private static void verify(Connection connection) throws SQLException {
+        // 金额与AccountInterface中的结算结果相同，使用long类型，第一个账户的金额超过int范围
+        Map<String, Long> amounts = new LinkedHashMap<>();
+        for (int i = 0; i < WINNERS[WINNERS.length - 1]; i++) {
+            amounts.put(userId(i), i == 0 ? Integer.MAX_VALUE + 1L : (i + 1) * 1000003L);
+        }
+
+        Map<String, Long> prepared = verifySettle(connection, amounts, false);
+        Map<String, Long> multiRow = verifySettle(connection, amounts, true);
+        int mismatches = 0;
+        for (Map.Entry<String, Long> entry : prepared.entrySet()) {
+            String userId = entry.getKey();
+            long expected = amounts.getOrDefault(userId, 0L) * 2;
+            if (entry.getValue() != expected || !entry.getValue().equals(multiRow.get(userId))) {
+                System.out.printf("mismatch %s expected=%d PREPARED=%d MULTI_ROW=%d%n",
+                        userId, expected, entry.getValue(), multiRow.get(userId));
+                mismatches++;
+            }
+        }
+        if (mismatches > 0 || prepared.size() != multiRow.size()) {
+            throw new IllegalStateException("多行更新与JDBC批处理的结算结果不一致，差异账户数量：" + mismatches);
+        }
+        System.out.printf("verified %d accounts, MULTI_ROW chunk size %d%n", prepared.size(), VERIFY_CHUNK_SIZE);
+    }
+
+    /**
+     * 清空测试用账户余额，使用指定方式结算两次，并读取最终余额
+     * @param connection 数据库连接
+     * @param amounts 每个账户的结算金额
+     * @param multiRow 是否使用多行更新，否则使用JDBC批处理
+     * @return 每个账户的最终余额
+     */
+    private static Map<String, Long> verifySettle(Connection connection, Map<String, Long> amounts, boolean multiRow)
+            throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("update bench_account set balance = 0");
+        }
+        connection.setAutoCommit(false);
+        try {
+            for (int i = 0; i < 2; i++) {
+                if (multiRow) chunkedMultiRow(connection, amounts);
+                else {
+                    try (PreparedStatement ps = connection.prepareStatement(
+                            "update bench_account set balance = balance + ? where user_id = ?")) {
+                        for (Map.Entry<String, Long> entry : amounts.entrySet()) {
+                            ps.setLong(1, entry.getValue());
+                            ps.setString(2, entry.getKey());
+                            ps.addBatch();
+                        }
+                        ps.executeBatch();
+                    }
+                }
+                connection.commit();
+            }
+        } finally {
+            connection.setAutoCommit(true);
+        }
+
+        Map<String, Long> balances = new LinkedHashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("select user_id, balance from bench_account order by user_id")) {
+            while (rs.next()) balances.put(rs.getString(1), rs.getLong(2));
+        }
+        return balances;
+    }
+
+    /**
+     * 按上限拆分后执行多行更新，与AccountInterface一致，形式相同的各份通过JDBC批处理发送，最后不足上限的一份单独发送
+     * @param connection 数据库连接
+     * @param amounts 每个账户的结算金额
+     */
+    private static void chunkedMultiRow(Connection connection, Map<String, Long> amounts) throws SQLException {
+        String[] userIds = amounts.keySet().toArray(new String[0]);
+        int full = userIds.length / VERIFY_CHUNK_SIZE * VERIFY_CHUNK_SIZE;
+        try (PreparedStatement ps = connection.prepareStatement(multiRowSql(VERIFY_CHUNK_SIZE))) {
+            for (int from = 0; from < full; from += VERIFY_CHUNK_SIZE) {
+                for (int i = 0; i < VERIFY_CHUNK_SIZE; i++) {
+                    ps.setString((i << 1) + 1, userIds[from + i]);
+                    ps.setLong((i << 1) + 2, amounts.get(userIds[from + i]));
+                }
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        if (full < userIds.length) {
+            try (PreparedStatement ps = connection.prepareStatement(multiRowSql(userIds.length - full))) {
+                for (int i = 0; i < userIds.length - full; i++) {
+                    ps.setString((i << 1) + 1, userIds[full + i]);
+                    ps.setLong((i << 1) + 2, amounts.get(userIds[full + i]));
+                }
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * 生成与AccountMapper中multiRowIncreaseBalance形式相同的多行更新语句
+     * @param rows 账户数量
+     * @return 多行更新语句
+     */
+    private static String multiRowSql(int rows) {
+        return "update bench_account a join (values "
+                + String.join(",", Collections.nCopies(rows, "row(?, ?)"))
+                + ") v (user_id, amount) on a.user_id = v.user_id set a.balance = a.balance + v.amount";
+    }
+
+    private static String userId(int i) {
+        return String.format("bench%03d", i);
+    }
+}
@@ -0,0 +1,109 @@
+import com.practice.common.util.TopKSelector;
+
+import java.util.*;
+
+/**
+ * 抢红包金额耗时排名方式的基准测试<br/>
+ * 分别比较前K名选择器、基于java.util.PriorityQueue的装箱堆和全量排序三种方式在不同红包份数和排名数量下的排名耗时<br/>
+ * 金额为随机值，耗时按抢红包顺序单调递增，与实际红包结果的分布相同，同时以全量排序的结果校验其他方式的排名结果<br/>
+ * 使用方式：编译后执行 java -cp classes:RedPacket应用类路径 TopKSelectorBenchmark [每种情况的执行次数]
+ */
+public class TopKSelectorBenchmark {
+    private static final int[] SHARE_NUMS = {100, 1000}; // 红包份数
+    private static final int[] RANK_NUMS = {10, 100, 1000}; // 排名数量
+    private static final int WARMUP = 2000; // 预热执行次数
+    private static long sink = 0; // 汇总排名结果，避免被优化掉
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Random random = new Random(42);
+
+        System.out.printf("%-6s %-9s %6s %6s %12s %12s %12s%n", "mode", "order", "shares", "rank", "avg(us)", "p50(us)", "p99(us)");
+        for (int shareNum : SHARE_NUMS) {
+            // 金额随机，耗时按抢红包顺序递增
+            long[] shares = new long[shareNum];
+            long[] timeCosts = new long[shareNum];
+            for (int i = 0; i < shareNum; i++) {
+                shares[i] = 1 + random.nextInt(10000);
+                timeCosts[i] = i == 0 ? random.nextInt(50) : timeCosts[i - 1] + random.nextInt(50);
+            }
+            for (int rankNum : RANK_NUMS) {
+                if (rankNum > shareNum) continue;
+                for (String order : new String[]{"DESC", "ASC"}) {
+                    boolean saveLarger = order.equals("DESC");
+                    long[] values = saveLarger ? shares : timeCosts;
+                    int[] expected = rank("SORT", values, rankNum, saveLarger);
+                    for (String mode : new String[]{"HEAP", "PQ", "SORT"}) {
+                        if (!Arrays.equals(expected, rank(mode, values, rankNum, saveLarger))) {
+                            throw new IllegalStateException(mode + " 排名结果与全量排序不一致");
+                        }
+                        long[] costs = run(mode, values, rankNum, saveLarger, iterations);
+                        System.out.printf("%-6s %-9s %6d %6d %12.2f %12.2f %12.2f%n", mode,
+                                saveLarger ? "share" : "timeCost", shareNum, rankNum,
+                                Arrays.stream(costs).average().orElse(0) / 1000,
+                                costs[costs.length / 2] / 1000.0,
+                                costs[(int) (costs.length * 0.99)] / 1000.0);
+                    }
+                }
+            }
+        }
+        System.out.println("sink " + sink);
+    }
+
+    /**
+     * 预热后多次执行排名，记录每次耗时
+     * @return 升序排列的每次耗时，单位为纳秒
+     */
+    private static long[] run(String mode, long[] values, int rankNum, boolean saveLarger, int iterations) {
+        for (int i = 0; i < WARMUP; i++) {
+            sink += rank(mode, values, rankNum, saveLarger).length;
+        }
+        long[] costs = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            int[] list = rank(mode, values, rankNum, saveLarger);
+            costs[i] = System.nanoTime() - start;
+            sink += list[0];
+        }
+        Arrays.sort(costs);
+        return costs;
+    }
+
+    /**
+     * 按指定方式排名，与抢红包金额耗时排名扩展类相同，以下标作为标识值
+     * @return 按排名排序的下标数组
+     */
+    private static int[] rank(String mode, long[] values, int rankNum, boolean saveLarger) {
+        switch (mode) {
+            case "HEAP": {
+                TopKSelector selector = new TopKSelector(rankNum, saveLarger);
+                for (int i = 0; i < values.length; i++) selector.put(i, values[i]);
+                return selector.list();
+            }
+            case "PQ": {
+                // 堆顶为最差一项，比较值相等时下标较大的一项较差
+                Comparator<Integer> comparator = Comparator.comparingLong(i -> values[i]);
+                PriorityQueue<Integer> queue = new PriorityQueue<>(rankNum + 1, saveLarger ?
+                        comparator.thenComparing(Comparator.<Integer>reverseOrder()) :
+                        comparator.reversed().thenComparing(Comparator.<Integer>reverseOrder()));
+                for (int i = 0; i < values.length; i++) {
+                    queue.offer(i);
+                    if (queue.size() > rankNum) queue.poll();
+                }
+                int[] list = new int[queue.size()];
+                for (int i = list.length - 1; i >= 0; i--) list[i] = queue.poll();
+                return list;
+            }
+            default: {
+                // 全量排序，比较值相等时下标较小的一项排名较高
+                Integer[] indexes = new Integer[values.length];
+                for (int i = 0; i < indexes.length; i++) indexes[i] = i;
+                Comparator<Integer> comparator = Comparator.comparingLong(i -> values[i]);
+                Arrays.sort(indexes, saveLarger ? comparator.reversed().thenComparingInt(i -> i) : comparator.thenComparingInt(i -> i));
+                int[] list = new int[Math.min(rankNum, indexes.length)];
+                for (int i = 0; i < list.length; i++) list[i] = indexes[i];
+                return list;
+            }
+        }
+    }
+}
@@ -9,6 +9,43 @@ create table account
     username varchar(20)     not null,
     password varchar(60)     not null
 );
+# 热点账户的子账户，账户余额为主账户与所有子账户余额之和
+create table account_shard
+(
+    user_id varchar(50)     not null,
+    shard   int             not null,
+    balance bigint unsigned not null,
+    primary key (user_id, shard)
+);
+# 发起抢红包结算消息发件箱，发件箱模式下使用
+# 红包key负载数据由20个字符的编码字段和发起用户ID组成，最长为20 + 50 = 70个字符
+create table publish_outbox
+(
+    id             bigint unsigned auto_increment
+        primary key,
+    service_id     int             not null,
+    red_packet_key varchar(70)     not null,
+    deliver_time   bigint unsigned not null,
+    index idx_service_id (service_id, id)
+);
+# 红包结算台账，台账模式下使用，红包key长度与发件箱相同
+create table settlement_ledger
+(
+    red_packet_key varchar(70)     not null
+        primary key,
+    settle_time    bigint unsigned not null
+);
+# 组提交模式下的扣减记录，与扣减在同一个事务中写入，发起抢红包成功时删除，失败或宕机后据此退回扣减金额
+create table publish_debit
+(
+    debit_id   char(32)        not null
+        primary key,
+    service_id int             not null,
+    user_id    varchar(50)     not null,
+    amount     bigint unsigned not null,
+    debit_time bigint unsigned not null,
+    index idx_service_id (service_id, debit_time)
+);
 
 # 创建测试用数据
 INSERT INTO practice.account (user_id, balance, username, password) VALUES ('user001', 5000000, 'Aaron', 'A6xnQhbz4Vx2HuGl4lXwZ5U2I8iziLRFnhP5eNfIRvQ=');
@@ -1,2 +1,6 @@
 # 重置测试用数据
 UPDATE practice.account SET balance = 50000 where 1;
+DELETE FROM practice.account_shard where 1;
+DELETE FROM practice.publish_outbox where 1;
+DELETE FROM practice.settlement_ledger where 1;
+DELETE FROM practice.publish_debit where 1;